@@ -0,0 +1,373 @@
+package org.jehanson.livedata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jehanson.livedata.elements.LDList;
+import org.jehanson.livedata.elements.LDMap;
+
+/**
+ * Records what changes in an LDObject, and turns it into a patch (see
+ * {@link LDPatch}) that brings a copy of the object as of the last
+ * checkpoint up to date. Patch size and the work of making it go with the
+ * amount of change, not with the size of the object.
+ * <p>
+ * The tracker listens to the object. Between checkpoints it only notes which
+ * elements have changed; a checkpoint works out their paths and what to
+ * send. A changed value is sent whole, as is a changed long[] or double[]
+ * array. A map or list whose children have changed is compared with its
+ * children at the last checkpoint, by identity, and only the children added,
+ * removed or replaced are sent; that costs time in proportion to the
+ * container's size. To do this the tracker keeps every element's key and
+ * every container's children as of the last checkpoint: references only,
+ * nothing copied.
+ * <p>
+ * Typical use: send a full copy of the object, make a tracker, then at each
+ * interval send {@link #checkpoint()}'s patch, which the receiver applies
+ * with {@link LDPatch#apply(LDList, LDObject)}.
+ * <p>
+ * Not thread-safe; use it on the thread that changes the object.
+ *
+ * @author jehanson
+ */
+public class LDChangeTracker implements LDListener {
+
+	// =================================
+	// Inner classes
+	// =================================
+
+	/**
+	 * A container's children at the last checkpoint.
+	 */
+	private static final class Snapshot {
+
+		/** Null for a list. */
+		final String[] keys;
+		final LDElement[] children;
+
+		Snapshot(String[] keys, LDElement[] children) {
+			this.keys = keys;
+			this.children = children;
+		}
+	}
+
+	private static final class Change {
+
+		final LDElement element;
+		final LDPath path;
+		final int depth;
+
+		Change(LDElement element, LDPath path) {
+			this.element = element;
+			this.path = path;
+			this.depth = path.getSegmentCount();
+		}
+	}
+
+	// =================================
+	// Variables
+	// =================================
+
+	private static final Comparator<Change> byDepth = new Comparator<Change>() {
+		@Override
+		public int compare(Change c1, Change c2) {
+			return Integer.compare(c1.depth, c2.depth);
+		}
+	};
+
+	private final LDObject root;
+	private final Map<LDElement, Object> keys;
+	private final Map<LDElement, Snapshot> snapshots;
+	private final Set<LDElement> changed;
+
+	// =================================
+	// Creation
+	// =================================
+
+	/**
+	 * Starts tracking root, with a checkpoint at its current state.
+	 *
+	 * @param root
+	 *            Not null.
+	 */
+	public LDChangeTracker(LDObject root) {
+		if (root == null)
+			throw new IllegalArgumentException("root cannot be null");
+		this.root = root;
+		this.keys = new IdentityHashMap<LDElement, Object>();
+		this.snapshots = new IdentityHashMap<LDElement, Snapshot>();
+		this.changed = Collections.newSetFromMap(new IdentityHashMap<LDElement, Boolean>());
+		index(root, null);
+		root.addListener(this);
+	}
+
+	// =================================
+	// Operation
+	// =================================
+
+	public LDObject getRoot() {
+		return root;
+	}
+
+	/**
+	 * Indicates whether anything has changed since the last checkpoint. May
+	 * be true for changes that cancel out.
+	 */
+	public boolean hasChanges() {
+		return !changed.isEmpty();
+	}
+
+	/**
+	 * Returns a patch from the last checkpoint to the object as it is now,
+	 * and makes now the last checkpoint.
+	 *
+	 * @return the patch. Empty if nothing has changed. Not null.
+	 */
+	public LDList checkpoint() {
+		LDList patch = new LDList();
+		if (changed.isEmpty())
+			return patch;
+
+		// Shallowest first, so a container is brought up to date before
+		// anything under it, and whatever is sent whole covers everything
+		// under it.
+		List<Change> changes = new ArrayList<Change>(changed.size());
+		for (LDElement elem : changed) {
+			LDPath path = pathOf(elem);
+			if (path != null)
+				changes.add(new Change(elem, path));
+		}
+		changed.clear();
+		Collections.sort(changes, byDepth);
+
+		Set<LDElement> sent = Collections.newSetFromMap(new IdentityHashMap<LDElement, Boolean>());
+		for (Change c : changes) {
+			if (isUnder(c.element, sent))
+				continue;
+			Snapshot snapshot = snapshots.get(c.element);
+			if (snapshot == null) {
+				patch.addChild(LDPatch.createSet(c.path, c.element));
+				sent.add(c.element);
+				index(c.element, c.path.isRoot() ? null : c.path.getLastSegment());
+			}
+			else if (snapshot.keys != null)
+				diffMap((LDMap) c.element, c.path, snapshot, patch, sent);
+			else
+				diffList((LDList) c.element, c.path, snapshot, patch, sent);
+		}
+		return patch;
+	}
+
+	/**
+	 * Stops tracking and lets go of everything recorded.
+	 */
+	public void close() {
+		root.removeListener(this);
+		keys.clear();
+		snapshots.clear();
+		changed.clear();
+	}
+
+	@Override
+	public void parentChanged(LDElement element) {
+		// NOP
+	}
+
+	@Override
+	public void valueChanged(LDElement element) {
+		changed.add(element);
+	}
+
+	@Override
+	public void structureChanged(LDElement element) {
+		changed.add(element);
+	}
+
+	// =================================
+	// Private
+	// =================================
+
+	private void diffMap(LDMap map, LDPath path, Snapshot snapshot, LDList patch,
+			Set<LDElement> sent) {
+		Map<String, LDElement> before = new HashMap<String, LDElement>(
+				snapshot.keys.length * 4 / 3 + 1);
+		for (int i = 0; i < snapshot.keys.length; i++) {
+			String key = snapshot.keys[i];
+			LDElement prev = snapshot.children[i];
+			before.put(key, prev);
+			LDElement now = map.getChild(key);
+			if (now == null)
+				patch.addChild(LDPatch.createRemove(path.addSegment(key)));
+			if (now != prev)
+				forget(prev);
+		}
+		for (Map.Entry<String, LDElement> e : map.getChildEntries()) {
+			LDElement child = e.getValue();
+			if (before.get(e.getKey()) != child) {
+				LDPath childPath = path.addSegment(e.getKey());
+				patch.addChild(LDPatch.createSet(childPath, child));
+				sent.add(child);
+				index(child, e.getKey());
+			}
+		}
+		snapshots.put(map, snapshot(map));
+	}
+
+	private void diffList(LDList list, LDPath path, Snapshot snapshot, LDList patch,
+			Set<LDElement> sent) {
+		LDElement[] before = snapshot.children;
+		int n = list.getChildCount();
+		for (int i = 0; i < n; i++) {
+			LDElement child = list.getChild(i);
+			if (i >= before.length || before[i] != child) {
+				patch.addChild(LDPatch.createSet(path.addSegment(i), child));
+				sent.add(child);
+				index(child, Integer.valueOf(i));
+			}
+			else
+				keys.put(child, Integer.valueOf(i));
+		}
+		// From the end, so indices stay put.
+		for (int i = before.length - 1; i >= n; i--)
+			patch.addChild(LDPatch.createRemove(path.addSegment(i)));
+		for (int i = 0; i < before.length; i++) {
+			if (i >= n || list.getChild(i) != before[i])
+				forget(before[i]);
+		}
+		snapshots.put(list, snapshot(list));
+	}
+
+	/**
+	 * Returns elem's path from the root, or null if it's no longer under the
+	 * root.
+	 */
+	private LDPath pathOf(LDElement elem) {
+		List<Object> segments = new ArrayList<Object>();
+		while (elem != root) {
+			LDContainer parent = elem.getParent();
+			if (parent == null)
+				return null;
+			segments.add(keyOf(parent, elem));
+			elem = (LDElement) parent;
+		}
+		LDPath path = LDPath.root;
+		for (int i = segments.size() - 1; i >= 0; i--)
+			path = path.addSegment(segments.get(i));
+		return path;
+	}
+
+	/**
+	 * Returns child's key in parent: the recorded one if it's still right,
+	 * else found by search.
+	 */
+	private Object keyOf(LDContainer parent, LDElement child) {
+		Object key = keys.get(child);
+		if (key != null) {
+			if (parent instanceof LDList) {
+				LDList list = (LDList) parent;
+				if (key instanceof Integer) {
+					int idx = ((Integer) key).intValue();
+					if (idx < list.getChildCount() && list.getChild(idx) == child)
+						return key;
+				}
+			}
+			else if (key instanceof String && parent.getChild(key) == child)
+				return key;
+		}
+		key = parent.locateChild(child);
+		keys.put(child, key);
+		return key;
+	}
+
+	private boolean isUnder(LDElement elem, Set<LDElement> ancestors) {
+		for (LDElement e = elem; e != null; e = (LDElement) e.getParent()) {
+			if (ancestors.contains(e))
+				return true;
+		}
+		return false;
+	}
+
+	private boolean isAttached(LDElement elem) {
+		LDElement e = elem;
+		while (e != root) {
+			e = (LDElement) e.getParent();
+			if (e == null)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Records the keys and children of elem and everything under it.
+	 *
+	 * @param key
+	 *            elem's key in its parent, or null for the root.
+	 */
+	private void index(LDElement elem, Object key) {
+		if (key != null)
+			keys.put(elem, key);
+		switch (elem.getEType()) {
+		case MAP:
+			LDMap map = (LDMap) elem;
+			snapshots.put(map, snapshot(map));
+			for (Map.Entry<String, LDElement> e : map.getChildEntries())
+				index(e.getValue(), e.getKey());
+			break;
+		case LIST:
+			LDList list = (LDList) elem;
+			snapshots.put(list, snapshot(list));
+			for (int i = 0, n = list.getChildCount(); i < n; i++)
+				index(list.getChild(i), Integer.valueOf(i));
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Drops what's recorded for an element that has left the tree, and
+	 * everything under it. An element that has only moved is left alone.
+	 */
+	private void forget(LDElement elem) {
+		if (isAttached(elem))
+			return;
+		forgetTree(elem);
+	}
+
+	private void forgetTree(LDElement elem) {
+		keys.remove(elem);
+		Snapshot snapshot = snapshots.remove(elem);
+		if (snapshot != null) {
+			for (LDElement child : snapshot.children) {
+				if (child.getParent() == elem)
+					forgetTree(child);
+			}
+		}
+	}
+
+	private static Snapshot snapshot(LDMap map) {
+		int n = map.getChildCount();
+		String[] keys = new String[n];
+		LDElement[] children = new LDElement[n];
+		int i = 0;
+		for (Map.Entry<String, LDElement> e : map.getChildEntries()) {
+			keys[i] = e.getKey();
+			children[i++] = e.getValue();
+		}
+		return new Snapshot(keys, children);
+	}
+
+	private static Snapshot snapshot(LDList list) {
+		int n = list.getChildCount();
+		LDElement[] children = new LDElement[n];
+		for (int i = 0; i < n; i++)
+			children[i] = list.getChild(i);
+		return new Snapshot(null, children);
+	}
+}
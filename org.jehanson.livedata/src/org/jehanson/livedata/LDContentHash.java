@@ -0,0 +1,345 @@
+package org.jehanson.livedata;
+
+import java.net.URI;
+import java.util.Locale;
+import java.util.Map;
+
+import org.jehanson.livedata.elements.LDBoolean;
+import org.jehanson.livedata.elements.LDDouble;
+import org.jehanson.livedata.elements.LDDoubleArray;
+import org.jehanson.livedata.elements.LDList;
+import org.jehanson.livedata.elements.LDLong;
+import org.jehanson.livedata.elements.LDLongArray;
+import org.jehanson.livedata.elements.LDMap;
+import org.jehanson.livedata.elements.LDReference;
+import org.jehanson.livedata.elements.LDString;
+
+/**
+ * A 128-bit hash of an element's content. Elements that are equal have the
+ * same hash, and elements that differ almost certainly don't, so comparing
+ * hashes is a cheap check for equality, change or duplication of whole
+ * subtrees, and makes a good ETag. Get one from
+ * {@link LDElement#getContentHash()}.
+ * <p>
+ * The hash of a map or list is made from its children's hashes (a Merkle
+ * tree), and each element keeps its own until it changes, so after a change
+ * only the hashes on the path from it to the root are recomputed. Maps hash
+ * the same whatever their key order. The hash is MurmurHash3's 128-bit mix:
+ * it guards against accidents, not against someone crafting collisions.
+ * Hashes are the same from run to run and machine to machine.
+ *
+ * @author jehanson
+ */
+public final class LDContentHash {
+
+	// =================================
+	// Inner classes
+	// =================================
+
+	/**
+	 * Mixes longs, two at a time, into a 128-bit hash.
+	 */
+	private static final class Hasher {
+
+		private static final long C1 = 0x87c37b91114253d5L;
+		private static final long C2 = 0x4cf5ad432745937fL;
+
+		private long h1;
+		private long h2;
+		private long pending;
+		private boolean hasPending;
+		private long count;
+
+		Hasher(char tag) {
+			this.h1 = tag;
+			this.h2 = tag;
+			this.hasPending = false;
+			this.count = 0;
+		}
+
+		void add(long x) {
+			count++;
+			if (hasPending) {
+				mix(pending, x);
+				hasPending = false;
+			}
+			else {
+				pending = x;
+				hasPending = true;
+			}
+		}
+
+		void add(LDContentHash h) {
+			add(h.high);
+			add(h.low);
+		}
+
+		void add(String s) {
+			int n = s.length();
+			add(n);
+			int i = 0;
+			for (; i + 4 <= n; i += 4)
+				add((long) s.charAt(i) | (long) s.charAt(i + 1) << 16
+						| (long) s.charAt(i + 2) << 32 | (long) s.charAt(i + 3) << 48);
+			long x = 0;
+			for (int shift = 0; i < n; i++, shift += 16)
+				x |= (long) s.charAt(i) << shift;
+			add(x);
+		}
+
+		LDContentHash finish() {
+			if (hasPending)
+				mix(pending, 0);
+			h1 ^= count;
+			h2 ^= count;
+			h1 += h2;
+			h2 += h1;
+			h1 = fmix(h1);
+			h2 = fmix(h2);
+			h1 += h2;
+			h2 += h1;
+			return new LDContentHash(h1, h2);
+		}
+
+		private void mix(long k1, long k2) {
+			k1 *= C1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= C2;
+			h1 ^= k1;
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+
+			k2 *= C2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= C1;
+			h2 ^= k2;
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		private static long fmix(long k) {
+			k ^= k >>> 33;
+			k *= 0xff51afd7ed558ccdL;
+			k ^= k >>> 33;
+			k *= 0xc4ceb9fe1a85ec53L;
+			k ^= k >>> 33;
+			return k;
+		}
+	}
+
+	// =================================
+	// Variables
+	// =================================
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final long high;
+	private final long low;
+
+	// =================================
+	// Creation
+	// =================================
+
+	public LDContentHash(long high, long low) {
+		this.high = high;
+		this.low = low;
+	}
+
+	/**
+	 * Parses the 32 hex digits made by {@link #toString()}.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if s isn't 32 hex digits.
+	 */
+	public static LDContentHash parse(String s) {
+		if (s == null)
+			throw new IllegalArgumentException("s cannot be null");
+		if (s.length() != 32)
+			throw new IllegalArgumentException("Bad content hash: \"" + s + "\"");
+		try {
+			return new LDContentHash(Long.parseUnsignedLong(s.substring(0, 16), 16), Long
+					.parseUnsignedLong(s.substring(16), 16));
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad content hash: \"" + s + "\"");
+		}
+	}
+
+	/**
+	 * Computes elem's hash from its value or its children's hashes. For
+	 * {@link LDElement#getContentHash()}, which caches it.
+	 */
+	static LDContentHash compute(LDElement elem) {
+		LDElement.EType type = elem.getEType();
+		Hasher h = new Hasher(type.getSymbol());
+		switch (type) {
+		case BOOLEAN:
+			h.add(((LDBoolean) elem).getValue() ? 1 : 0);
+			break;
+		case DOUBLE:
+			double d = ((LDDouble) elem).getValue();
+			// Equal doubles hash alike: 0.0 == -0.0.
+			h.add(d == 0 ? 0 : Double.doubleToLongBits(d));
+			break;
+		case DOUBLE_ARRAY:
+			LDDoubleArray doubles = (LDDoubleArray) elem;
+			int nd = doubles.getChildCount();
+			h.add(nd);
+			for (int i = 0; i < nd; i++) {
+				double di = doubles.getValue(i);
+				h.add(di == 0 ? 0 : Double.doubleToLongBits(di));
+			}
+			break;
+		case LONG:
+			h.add(((LDLong) elem).getValue());
+			break;
+		case LONG_ARRAY:
+			LDLongArray longs = (LDLongArray) elem;
+			int nl = longs.getChildCount();
+			h.add(nl);
+			for (int i = 0; i < nl; i++)
+				h.add(longs.getValue(i));
+			break;
+		case STRING:
+			h.add(((LDString) elem).getValue());
+			break;
+		case REFERENCE:
+			addURI(h, ((LDReference) elem).getValue());
+			break;
+		case VOID:
+			break;
+		case LIST:
+			LDList list = (LDList) elem;
+			int n = list.getChildCount();
+			h.add(n);
+			for (int i = 0; i < n; i++)
+				h.add(list.getChild(i).getContentHash());
+			break;
+		case MAP:
+			// Entries are hashed separately and summed, so order doesn't
+			// matter.
+			LDMap map = (LDMap) elem;
+			long sumHigh = 0;
+			long sumLow = 0;
+			for (Map.Entry<String, LDElement> e : map.getChildEntries()) {
+				Hasher eh = new Hasher(':');
+				eh.add(e.getKey());
+				eh.add(e.getValue().getContentHash());
+				LDContentHash entry = eh.finish();
+				sumHigh += entry.high;
+				sumLow += entry.low;
+			}
+			h.add(map.getChildCount());
+			h.add(sumHigh);
+			h.add(sumLow);
+			break;
+		default:
+			throw new UnsupportedOperationException("No case found for type " + type);
+		}
+		return h.finish();
+	}
+
+	// =================================
+	// Operation
+	// =================================
+
+	public long getHigh() {
+		return high;
+	}
+
+	public long getLow() {
+		return low;
+	}
+
+	/**
+	 * Returns the hash's 16 bytes, most significant first.
+	 */
+	public byte[] toBytes() {
+		byte[] b = new byte[16];
+		for (int i = 0; i < 8; i++) {
+			b[i] = (byte) (high >>> (56 - 8 * i));
+			b[i + 8] = (byte) (low >>> (56 - 8 * i));
+		}
+		return b;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (low ^ (low >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this)
+			return true;
+		else if (!(obj instanceof LDContentHash))
+			return false;
+		else {
+			LDContentHash h1 = (LDContentHash) obj;
+			return high == h1.high && low == h1.low;
+		}
+	}
+
+	/**
+	 * Returns the hash as 32 lowercase hex digits.
+	 */
+	@Override
+	public String toString() {
+		char[] c = new char[32];
+		for (int i = 0; i < 16; i++) {
+			c[i] = HEX[(int) (high >>> (60 - 4 * i)) & 0xF];
+			c[i + 16] = HEX[(int) (low >>> (60 - 4 * i)) & 0xF];
+		}
+		return new String(c);
+	}
+
+	// =================================
+	// Private
+	// =================================
+
+	/**
+	 * Adds the parts of uri that URI.equals compares, in the same way: scheme
+	 * and host without case, escapes without case in their hex digits.
+	 */
+	private static void addURI(Hasher h, URI uri) {
+		h.add(lowerCase(uri.getScheme()));
+		h.add(escapes(uri.getRawFragment()));
+		if (uri.isOpaque()) {
+			h.add(escapes(uri.getRawSchemeSpecificPart()));
+			return;
+		}
+		h.add(escapes(uri.getRawPath()));
+		h.add(escapes(uri.getRawQuery()));
+		if (uri.getHost() != null) {
+			h.add(escapes(uri.getRawUserInfo()));
+			h.add(lowerCase(uri.getHost()));
+			h.add(uri.getPort());
+		}
+		else
+			h.add(escapes(uri.getRawAuthority()));
+	}
+
+	private static String lowerCase(String s) {
+		return (s == null) ? "" : s.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Returns s with the hex digits of its escapes in upper case.
+	 */
+	private static String escapes(String s) {
+		if (s == null)
+			return "";
+		if (s.indexOf('%') < 0)
+			return s;
+		char[] c = s.toCharArray();
+		for (int i = 0; i < c.length; i++) {
+			if (c[i] == '%') {
+				for (int j = i + 1; j < c.length && j <= i + 2; j++)
+					c[j] = Character.toUpperCase(c[j]);
+			}
+		}
+		return new String(c);
+	}
+}
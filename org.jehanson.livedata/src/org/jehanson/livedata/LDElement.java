@@ -104,6 +104,27 @@ public abstract class LDElement {
 				return true;
 			}
 		},
+		DOUBLE_ARRAY {
+			@Override
+			public String getName() {
+				return "double[]";
+			}
+
+			@Override
+			public char getSymbol() {
+				return 'D';
+			}
+
+			@Override
+			public boolean isContainer() {
+				return true;
+			}
+
+			@Override
+			public boolean isValue() {
+				return false;
+			}
+		},
 		LIST {
 			@Override
 			public String getName() {
@@ -146,6 +167,27 @@ public abstract class LDElement {
 				return true;
 			}
 		},
+		LONG_ARRAY {
+			@Override
+			public String getName() {
+				return "long[]";
+			}
+
+			@Override
+			public char getSymbol() {
+				return 'J';
+			}
+
+			@Override
+			public boolean isContainer() {
+				return true;
+			}
+
+			@Override
+			public boolean isValue() {
+				return false;
+			}
+		},
 		MAP {
 			@Override
 			public String getName() {
@@ -263,6 +305,9 @@ public abstract class LDElement {
 
 	private LDContainer parent;
 	private List<LDListener> listeners;
+	private int modCount;
+	private LDContentHash contentHash;
+	private int contentHashModCount;
 
 	// ===========================================
 	// Creation
@@ -271,6 +316,9 @@ public abstract class LDElement {
 	protected LDElement() {
 		this.parent = null;
 		this.listeners = null;
+		this.modCount = 0;
+		this.contentHash = null;
+		this.contentHashModCount = 0;
 	}
 
 	// ===========================================
@@ -287,13 +335,38 @@ public abstract class LDElement {
 	// types
 	// public abstract void copyFrom(LDObject dobj) throws LDException;
 
+	/**
+	 * Returns a count that changes whenever this element or anything under it
+	 * changes. If it's the same as before, so is the element's content. For
+	 * caches of things derived from a subtree.
+	 */
+	public int getModCount() {
+		return modCount;
+	}
+
+	/**
+	 * Returns a hash of this element's content, computed when first asked
+	 * for and kept until the element or anything under it changes.
+	 * 
+	 * @see LDContentHash
+	 */
+	public LDContentHash getContentHash() {
+		if (contentHash == null || contentHashModCount != modCount) {
+			contentHash = LDContentHash.compute(this);
+			contentHashModCount = modCount;
+		}
+		return contentHash;
+	}
+
 	public LDContainer getParent() {
 		return parent;
 	}
 
 	/**
-	 * Sets this element's parent, fires change event, adds new parent (if not
-	 * null) as change listener.
+	 * Sets this element's parent, fires change event. From then on the parent
+	 * is told of this element's structure and value changes, after the
+	 * listeners are. It is not kept in the listener list, so an element with
+	 * no listeners of its own costs nothing extra.
 	 * 
 	 * @param parent new parent. Not null.
 	 * @throws IllegalStateException if elem's parent is already set.
@@ -304,26 +377,19 @@ public abstract class LDElement {
 		if (this.parent != null)
 			throw new IllegalStateException("Parent is already set");
 
-		// set & fire, then add listener
+		// The parent isn't told of its own change.
 		this.parent = parent;
 		fireParentChanged();
-
-		addListener(this.parent);
 	}
 
 	/**
-	 * Removes current parent (if not null) as change listener, sets parent to
-	 * null, fires change event.
+	 * Sets parent to null, fires change event.
 	 * 
 	 */
 	public void unsetParent() {
 		if (this.parent == null)
 			return;
 
-		// remove listener, then set & fire
-		if (this.parent != null)
-			removeListener(this.parent);
-
 		this.parent = null;
 		fireParentChanged();
 	}
@@ -339,15 +405,8 @@ public abstract class LDElement {
 		if (this.parent == parent)
 			return;
 
-		// remove, set & fire, add
-		if (this.parent != null)
-			removeListener(this.parent);
-
 		this.parent = parent;
 		fireParentChanged();
-
-		if (this.parent != null)
-			addListener(this.parent);
 	}
 
 	public void addListener(LDListener listener) {
@@ -405,6 +464,17 @@ public abstract class LDElement {
 			writer.print(" ");
 	}
 
+	/**
+	 * Indicates whether this element and other are known to differ: both
+	 * have current content hashes, and they're different. For a quick
+	 * answer in equals; false says nothing.
+	 */
+	protected boolean isKnownToDiffer(LDElement other) {
+		return contentHash != null && contentHashModCount == modCount
+				&& other.contentHash != null && other.contentHashModCount == other.modCount
+				&& !contentHash.equals(other.contentHash);
+	}
+
 	protected void fireParentChanged() {
 		if (listeners == null)
 			return;
@@ -413,17 +483,23 @@ public abstract class LDElement {
 	}
 
 	protected void fireStructureChanged() {
-		if (listeners == null)
-			return;
-		for (LDListener listener : listeners)
-			listener.structureChanged(this);
+		modCount++;
+		if (listeners != null) {
+			for (LDListener listener : listeners)
+				listener.structureChanged(this);
+		}
+		if (parent != null)
+			parent.structureChanged(this);
 	}
 
 	protected void fireValueChanged() {
-		if (listeners == null)
-			return;
-		for (LDListener listener : listeners)
-			listener.valueChanged(this);
+		modCount++;
+		if (listeners != null) {
+			for (LDListener listener : listeners)
+				listener.valueChanged(this);
+		}
+		if (parent != null)
+			parent.valueChanged(this);
 	}
 	
 	protected List<LDListener> getListeners() {
@@ -434,11 +510,13 @@ public abstract class LDElement {
 	}
 
 	protected void propagateStructureChange(LDElement element) {
+		modCount++;
 		if (parent != null)
 			parent.structureChanged(element);
 	}
 
 	protected void propagateValueChange(LDElement element) {
+		modCount++;
 		if (parent != null)
 			parent.valueChanged(element);
 	}
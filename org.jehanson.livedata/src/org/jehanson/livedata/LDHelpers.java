@@ -3,12 +3,16 @@ package org.jehanson.livedata;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.jehanson.livedata.LDElement.EType;
 import org.jehanson.livedata.elements.LDBoolean;
 import org.jehanson.livedata.elements.LDDouble;
+import org.jehanson.livedata.elements.LDDoubleArray;
 import org.jehanson.livedata.elements.LDList;
 import org.jehanson.livedata.elements.LDLong;
+import org.jehanson.livedata.elements.LDLongArray;
 import org.jehanson.livedata.elements.LDMap;
 import org.jehanson.livedata.elements.LDReference;
 import org.jehanson.livedata.elements.LDString;
@@ -29,10 +33,14 @@ public class LDHelpers {
 			return new LDBoolean();
 		case DOUBLE:
 			return new LDDouble();
+		case DOUBLE_ARRAY:
+			return new LDDoubleArray();
 		case LIST:
 			return new LDList();
 		case LONG:
 			return new LDLong();
+		case LONG_ARRAY:
+			return new LDLongArray();
 		case MAP:
 			return new LDMap();
 		case REFERENCE:
@@ -71,6 +79,13 @@ public class LDHelpers {
 				+ EType.DOUBLE.getName());
 	}
 
+	public static LDDoubleArray asDoubleArray(LDElement item) throws LDTypeException {
+		if (item != null && item.getEType() == LDElement.EType.DOUBLE_ARRAY)
+			return (LDDoubleArray) item;
+		throw new LDTypeException("cannot cast " + getETypeNameOrNull(item) + " to "
+				+ EType.DOUBLE_ARRAY.getName());
+	}
+
 	public static LDList asList(LDElement item) throws LDTypeException {
 		if (item != null && item.getEType() == LDElement.EType.LIST)
 			return (LDList) item;
@@ -85,6 +100,13 @@ public class LDHelpers {
 				+ EType.LONG.getName());
 	}
 
+	public static LDLongArray asLongArray(LDElement item) throws LDTypeException {
+		if (item != null && item.getEType() == LDElement.EType.LONG_ARRAY)
+			return (LDLongArray) item;
+		throw new LDTypeException("cannot cast " + getETypeNameOrNull(item) + " to "
+				+ EType.LONG_ARRAY.getName());
+	}
+
 	public static LDMap asMap(LDElement item) throws LDTypeException {
 		if (item != null && item.getEType() == LDElement.EType.MAP)
 			return (LDMap) item;
@@ -132,6 +154,11 @@ public class LDHelpers {
 				: null;
 	}
 
+	public static LDDoubleArray optDoubleArray(LDElement item) {
+		return (item != null && item.getEType() == LDElement.EType.DOUBLE_ARRAY) ? (LDDoubleArray) item
+				: null;
+	}
+
 	public static LDList optList(LDElement item) {
 		return (item != null && item.getEType() == LDElement.EType.LIST) ? (LDList) item
 				: null;
@@ -142,6 +169,11 @@ public class LDHelpers {
 				: null;
 	}
 
+	public static LDLongArray optLongArray(LDElement item) {
+		return (item != null && item.getEType() == LDElement.EType.LONG_ARRAY) ? (LDLongArray) item
+				: null;
+	}
+
 	public static LDMap optMap(LDElement item) {
 		return (item != null && item.getEType() == LDElement.EType.MAP) ? (LDMap) item
 				: null;
@@ -207,4 +239,97 @@ public class LDHelpers {
 		return w1.toString();
 	}
 
+	/**
+	 * Makes target equal to source while changing as little as possible.
+	 * Elements that are already equal are left alone, keeping their
+	 * identities and firing nothing; a value that differs is changed with
+	 * setValue; map entries and list elements are added or removed only
+	 * where the two differ. Where an element has to be replaced, e.g.
+	 * because its type differs, a deep copy from source is put in its place.
+	 * source is not changed.
+	 * 
+	 * @param target
+	 *            Not null.
+	 * @param source
+	 *            Not null.
+	 * @return true if target was updated, false if it is of a different
+	 *         type than source and the caller has to replace it.
+	 */
+	public static boolean update(LDElement target, LDElement source) {
+		if (target == null)
+			throw new IllegalArgumentException("target cannot be null");
+		if (source == null)
+			throw new IllegalArgumentException("source cannot be null");
+		if (target.getEType() != source.getEType())
+			return false;
+		switch (target.getEType()) {
+		case BOOLEAN:
+			((LDBoolean) target).setValue(((LDBoolean) source).getValue());
+			return true;
+		case DOUBLE:
+			double d = ((LDDouble) source).getValue();
+			// setValue alone would fire for NaN every time.
+			if (Double.doubleToLongBits(d) != Double.doubleToLongBits(((LDDouble) target)
+					.getValue()))
+				((LDDouble) target).setValue(d);
+			return true;
+		case LONG:
+			((LDLong) target).setValue(((LDLong) source).getValue());
+			return true;
+		case REFERENCE:
+			((LDReference) target).setValue(((LDReference) source).getValue());
+			return true;
+		case STRING:
+			((LDString) target).setValue(((LDString) source).getValue());
+			return true;
+		case VOID:
+			return true;
+		case MAP:
+			updateMap((LDMap) target, (LDMap) source);
+			return true;
+		case LIST:
+			updateList((LDList) target, (LDList) source);
+			return true;
+		case LONG_ARRAY:
+			((LDLongArray) target).setValues((LDLongArray) source);
+			return true;
+		case DOUBLE_ARRAY:
+			((LDDoubleArray) target).setValues((LDDoubleArray) source);
+			return true;
+		default:
+			throw new UnsupportedOperationException("No case found for type "
+					+ target.getEType());
+		}
+	}
+
+	private static void updateMap(LDMap target, LDMap source) {
+		List<String> removed = new ArrayList<String>();
+		for (String key : target.getChildKeys()) {
+			if (source.getChild(key) == null)
+				removed.add(key);
+		}
+		for (String key : removed)
+			target.removeChild(key);
+		for (String key : source.getChildKeys()) {
+			LDElement s = source.getChild(key);
+			LDElement t = target.getChild(key);
+			if (t == null || !update(t, s))
+				target.putChild(key, s.deepCopy());
+		}
+	}
+
+	private static void updateList(LDList target, LDList source) {
+		int n = source.getChildCount();
+		int common = Math.min(n, target.getChildCount());
+		for (int i = 0; i < common; i++) {
+			LDElement s = source.getChild(i);
+			if (!update(target.getChild(i), s))
+				target.setChild(i, s.deepCopy());
+		}
+		for (int i = target.getChildCount() - 1; i >= n; i--)
+			target.removeChild(i);
+		for (int i = common; i < n; i++)
+			target.addChild(source.getChild(i).deepCopy());
+	}
+
 }
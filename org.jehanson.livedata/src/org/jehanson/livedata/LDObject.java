@@ -41,6 +41,7 @@ public class LDObject extends LDMap {
 
 	@Override
 	public void valueChanged(LDElement element) {
+		super.valueChanged(element);
 		for (LDListener listener : getListeners()) {
 			listener.valueChanged(element);
 		}
@@ -48,6 +49,7 @@ public class LDObject extends LDMap {
 
 	@Override
 	public void structureChanged(LDElement element) {
+		super.structureChanged(element);
 		for (LDListener listener : getListeners()) {
 			listener.structureChanged(element);
 		}
@@ -0,0 +1,201 @@
+package org.jehanson.livedata;
+
+import org.jehanson.livedata.elements.LDDoubleArray;
+import org.jehanson.livedata.elements.LDList;
+import org.jehanson.livedata.elements.LDLongArray;
+import org.jehanson.livedata.elements.LDMap;
+import org.jehanson.livedata.elements.LDString;
+
+/**
+ * Patch documents, as made by {@link LDChangeTracker}, and their application
+ * to an LDObject.
+ * <p>
+ * A patch is an LDList of operations, applied in order. Each operation is a
+ * map:
+ * <ul>
+ * <li><code>{ "op": "set", "path": "/a/b/0", "value": ... }</code> makes the
+ * element at path equal to value. The parent must exist. A list index at the
+ * end of the list appends; path "/" is the whole object. The parent may be
+ * a long[] or double[], value then being a number.</li>
+ * <li><code>{ "op": "remove", "path": "/a/b" }</code> removes the element at
+ * path from its parent, which must be a map or list.</li>
+ * </ul>
+ * Paths are {@link LDPath#toString()} strings. A patch is an ordinary
+ * element, so any serializer can carry it.
+ *
+ * @author jehanson
+ */
+public final class LDPatch {
+
+	// =================================
+	// Variables
+	// =================================
+
+	public static final String OP_KEY = "op";
+	public static final String PATH_KEY = "path";
+	public static final String VALUE_KEY = "value";
+
+	public static final String SET = "set";
+	public static final String REMOVE = "remove";
+
+	// =================================
+	// Creation
+	// =================================
+
+	private LDPatch() {
+	}
+
+	// =================================
+	// Operation
+	// =================================
+
+	/**
+	 * Applies the patch to target. Set operations change target with
+	 * {@link LDHelpers#update(LDElement, LDElement)}, so target's listeners
+	 * see only what actually differs.
+	 *
+	 * @param patch
+	 *            Not null. Not changed.
+	 * @param target
+	 *            Not null.
+	 * @throws IllegalArgumentException
+	 *             if an operation is malformed, or its path doesn't lead to
+	 *             anything in target. Operations before it have been applied.
+	 */
+	public static void apply(LDList patch, LDObject target) {
+		if (patch == null)
+			throw new IllegalArgumentException("patch cannot be null");
+		if (target == null)
+			throw new IllegalArgumentException("target cannot be null");
+		for (int i = 0, n = patch.getChildCount(); i < n; i++) {
+			LDMap op = LDHelpers.optMap(patch.getChild(i));
+			if (op == null)
+				throw new IllegalArgumentException("Bad patch: operation " + i + " is not a map");
+			String kind = getString(op, OP_KEY, i);
+			LDPath path = parsePath(getString(op, PATH_KEY, i));
+			if (SET.equals(kind)) {
+				LDElement value = op.getChild(VALUE_KEY);
+				if (value == null)
+					throw new IllegalArgumentException("Bad patch: operation " + i
+							+ " has no value");
+				set(target, path, value, i);
+			}
+			else if (REMOVE.equals(kind))
+				remove(target, path, i);
+			else
+				throw new IllegalArgumentException("Bad patch: operation " + i + " is \"" + kind
+						+ "\"");
+		}
+	}
+
+	/**
+	 * Returns a set operation with a copy of value.
+	 */
+	static LDMap createSet(LDPath path, LDElement value) {
+		LDMap op = new LDMap();
+		op.putChild(OP_KEY, new LDString(SET));
+		op.putChild(PATH_KEY, new LDString(path.toString()));
+		op.putChild(VALUE_KEY, value.deepCopy());
+		return op;
+	}
+
+	static LDMap createRemove(LDPath path) {
+		LDMap op = new LDMap();
+		op.putChild(OP_KEY, new LDString(REMOVE));
+		op.putChild(PATH_KEY, new LDString(path.toString()));
+		return op;
+	}
+
+	// =================================
+	// Private
+	// =================================
+
+	private static void set(LDObject target, LDPath path, LDElement value, int i) {
+		if (path.isRoot()) {
+			if (!LDHelpers.update(target, value))
+				throw new IllegalArgumentException("Bad patch: operation " + i
+						+ " sets the root to a " + value.getEType().getName());
+			return;
+		}
+		LDContainer parent = getParent(target, path, i);
+		Object key = path.getLastSegment();
+		LDElement prev = getChild(parent, key);
+		// An array's children are copies, so updating one would change
+		// nothing.
+		if (prev == null || isArray(parent) || !LDHelpers.update(prev, value)) {
+			try {
+				parent.putChild(key, value.deepCopy());
+			}
+			catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Bad patch: operation " + i + ": "
+						+ e.getMessage());
+			}
+		}
+	}
+
+	private static void remove(LDObject target, LDPath path, int i) {
+		if (path.isRoot())
+			throw new IllegalArgumentException("Bad patch: operation " + i
+					+ " removes the root");
+		LDContainer parent = getParent(target, path, i);
+		Object key = path.getLastSegment();
+		if (getChild(parent, key) == null)
+			throw new IllegalArgumentException("Bad patch: nothing at " + path);
+		if (isArray(parent))
+			throw new IllegalArgumentException("Bad patch: operation " + i + " removes from a "
+					+ ((LDElement) parent).getEType().getName());
+		if (parent instanceof LDList)
+			((LDList) parent).removeChild(LDList.asListIndex(key));
+		else
+			((LDMap) parent).removeChild(LDMap.asMapKey(key));
+	}
+
+	private static LDContainer getParent(LDObject target, LDPath path, int i) {
+		LDElement elem = target;
+		for (Object segment : path.getPrefix().getSegments()) {
+			LDContainer c = LDHelpers.optContainer(elem);
+			elem = (c == null) ? null : getChild(c, segment);
+			if (elem == null)
+				throw new IllegalArgumentException("Bad patch: operation " + i + ": nothing at "
+						+ path.getPrefix());
+		}
+		LDContainer parent = LDHelpers.optContainer(elem);
+		if (parent == null)
+			throw new IllegalArgumentException("Bad patch: operation " + i + ": "
+					+ path.getPrefix() + " is not a container");
+		return parent;
+	}
+
+	/**
+	 * Like {@link LDContainer#getChild(Object)}, but null for a list or array
+	 * index past the end.
+	 */
+	private static LDElement getChild(LDContainer parent, Object key) {
+		if (!parent.isValidKey(key))
+			throw new IllegalArgumentException("Bad patch: bad key " + key);
+		if (parent instanceof LDList || isArray(parent)) {
+			int idx = LDList.asListIndex(key);
+			return (idx < parent.getChildCount()) ? parent.getChild(idx) : null;
+		}
+		return parent.getChild(key);
+	}
+
+	private static boolean isArray(LDContainer parent) {
+		return parent instanceof LDLongArray || parent instanceof LDDoubleArray;
+	}
+
+	private static String getString(LDMap op, String key, int i) {
+		LDString s = LDHelpers.optString(op.getChild(key));
+		if (s == null)
+			throw new IllegalArgumentException("Bad patch: operation " + i + " has no " + key);
+		return s.getValue();
+	}
+
+	private static LDPath parsePath(String s) {
+		if (!s.startsWith(LDPath.separator))
+			throw new IllegalArgumentException("Bad patch: bad path \"" + s + "\"");
+		if (s.length() == LDPath.separator.length())
+			return LDPath.root;
+		return LDPath.create(s.substring(LDPath.separator.length()));
+	}
+}
@@ -0,0 +1,262 @@
+package org.jehanson.livedata.elements;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.jehanson.livedata.LDElement;
+
+/**
+ * LDMap's children while there are only a few of them: keys and values in
+ * parallel arrays, found by scanning. Takes a half to a third of the memory
+ * of a HashMap, LinkedHashMap or TreeMap, which have an object per entry.
+ * LDMap replaces it with one of those once it's full; see
+ * {@link #isFull()}.
+ * <p>
+ * Keeps the entries in the order the KeyOrder calls for: ALPHABETICAL keeps
+ * them sorted, inserting each new key in its place and finding keys by
+ * binary search, and the others keep them in insertion order. Not
+ * thread-safe; null keys and values are not allowed.
+ *
+ * @author jehanson
+ */
+final class CompactMap extends AbstractMap<String, LDElement> {
+
+	// ==============================
+	// Inner classes
+	// ==============================
+
+	private final class EntryIterator implements Iterator<Map.Entry<String, LDElement>> {
+
+		private int idx;
+		private int expectedModCount;
+		private boolean canRemove;
+
+		EntryIterator() {
+			this.idx = 0;
+			this.expectedModCount = modCount;
+			this.canRemove = false;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return idx < size;
+		}
+
+		@Override
+		public Map.Entry<String, LDElement> next() {
+			if (modCount != expectedModCount)
+				throw new ConcurrentModificationException();
+			if (idx >= size)
+				throw new NoSuchElementException();
+			Map.Entry<String, LDElement> e = new SimpleImmutableEntry<String, LDElement>(keys[idx],
+					values[idx]);
+			idx++;
+			canRemove = true;
+			return e;
+		}
+
+		@Override
+		public void remove() {
+			if (!canRemove)
+				throw new IllegalStateException();
+			if (modCount != expectedModCount)
+				throw new ConcurrentModificationException();
+			removeAt(--idx);
+			expectedModCount = modCount;
+			canRemove = false;
+		}
+	}
+
+	private final class EntrySet extends AbstractSet<Map.Entry<String, LDElement>> {
+
+		@Override
+		public Iterator<Map.Entry<String, LDElement>> iterator() {
+			return new EntryIterator();
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+
+	// ==============================
+	// Variables
+	// ==============================
+
+	/** Most entries held before LDMap switches to a hash or tree map. */
+	static final int MAX_SIZE = 8;
+
+	private static final String[] NO_KEYS = new String[0];
+	private static final LDElement[] NO_VALUES = new LDElement[0];
+
+	private final boolean sorted;
+	private String[] keys;
+	private LDElement[] values;
+	private int size;
+	private int modCount;
+
+	// ==============================
+	// Creation
+	// ==============================
+
+	/**
+	 * @param expectedSize
+	 *            entries the map will hold without growing; 0 to make room
+	 *            only when the first is put, so empty maps cost little.
+	 */
+	CompactMap(LDMap.KeyOrder keyOrder, int expectedSize) {
+		int capacity = Math.min(expectedSize, MAX_SIZE);
+		this.sorted = (keyOrder == LDMap.KeyOrder.ALPHABETICAL);
+		this.keys = (capacity == 0) ? NO_KEYS : new String[capacity];
+		this.values = (capacity == 0) ? NO_VALUES : new LDElement[capacity];
+		this.size = 0;
+		this.modCount = 0;
+	}
+
+	// ==============================
+	// Operation
+	// ==============================
+
+	/**
+	 * Indicates whether the map holds as many entries as it may. Putting a
+	 * new key into a full map is an error.
+	 */
+	boolean isFull() {
+		return size == MAX_SIZE;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return indexOf(key) >= 0;
+	}
+
+	@Override
+	public LDElement get(Object key) {
+		int i = indexOf(key);
+		return (i >= 0) ? values[i] : null;
+	}
+
+	/**
+	 * @throws IllegalStateException
+	 *             if key is new and the map is full.
+	 */
+	@Override
+	public LDElement put(String key, LDElement value) {
+		if (key == null)
+			throw new IllegalArgumentException("key cannot be null");
+		if (value == null)
+			throw new IllegalArgumentException("value cannot be null");
+		int i = indexOf(key);
+		if (i >= 0) {
+			LDElement prev = values[i];
+			values[i] = value;
+			return prev;
+		}
+		if (size == MAX_SIZE)
+			throw new IllegalStateException("Map is full");
+		if (size == keys.length) {
+			int capacity = Math.min(MAX_SIZE, Math.max(4, size * 2));
+			keys = Arrays.copyOf(keys, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+		// Not found: for a sorted map, i encodes the insertion point.
+		int at = sorted ? -(i + 1) : size;
+		System.arraycopy(keys, at, keys, at + 1, size - at);
+		System.arraycopy(values, at, values, at + 1, size - at);
+		keys[at] = key;
+		values[at] = value;
+		size++;
+		modCount++;
+		return null;
+	}
+
+	@Override
+	public LDElement remove(Object key) {
+		int i = indexOf(key);
+		return (i >= 0) ? removeAt(i) : null;
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(keys, 0, size, null);
+		Arrays.fill(values, 0, size, null);
+		size = 0;
+		modCount++;
+	}
+
+	@Override
+	public Set<Map.Entry<String, LDElement>> entrySet() {
+		return new EntrySet();
+	}
+
+	// ==============================
+	// Private
+	// ==============================
+
+	/**
+	 * Returns key's index, or if it's not found a negative number: for a
+	 * sorted map, -(insertion point) - 1, as Arrays.binarySearch returns.
+	 */
+	private int indexOf(Object key) {
+		if (!(key instanceof String))
+			return -1;
+		String k = (String) key;
+		if (sorted) {
+			int lo = 0;
+			int hi = size - 1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				int cmp = keys[mid].compareTo(k);
+				if (cmp < 0)
+					lo = mid + 1;
+				else if (cmp > 0)
+					hi = mid - 1;
+				else
+					return mid;
+			}
+			return -(lo + 1);
+		}
+		// Keys from the parsers are often the same String, so try identity
+		// first.
+		for (int i = 0; i < size; i++) {
+			if (keys[i] == k)
+				return i;
+		}
+		int hash = k.hashCode();
+		for (int i = 0; i < size; i++) {
+			String ki = keys[i];
+			if (ki.hashCode() == hash && ki.equals(k))
+				return i;
+		}
+		return -1;
+	}
+
+	private LDElement removeAt(int i) {
+		LDElement prev = values[i];
+		int moved = size - i - 1;
+		System.arraycopy(keys, i + 1, keys, i, moved);
+		System.arraycopy(values, i + 1, values, i, moved);
+		size--;
+		keys[size] = null;
+		values[size] = null;
+		modCount++;
+		return prev;
+	}
+}
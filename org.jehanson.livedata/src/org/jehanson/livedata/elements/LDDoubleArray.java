@@ -0,0 +1,406 @@
+package org.jehanson.livedata.elements;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.jehanson.livedata.LDContainer;
+import org.jehanson.livedata.LDCursor;
+import org.jehanson.livedata.LDElement;
+import org.jehanson.livedata.LDPath;
+
+/**
+ * A list of doubles, held in a double[] rather than as a child element
+ * apiece. The counterpart of {@link LDLongArray}.
+ * <p>
+ * The values are not elements. {@link #getChild(Object)} and the child
+ * iterator hand out new LDDoubles holding them, with no parent; changing one
+ * of those doesn't change the array. Changing a value fires valueChanged
+ * for the array; changing the length fires structureChanged. Either way,
+ * once per call.
+ *
+ * @author jehanson
+ */
+public class LDDoubleArray extends LDElement implements LDContainer {
+
+	// ===============================
+	// Inner classes
+	// ===============================
+
+	private static class ValueIterator implements Iterator<LDCursor> {
+
+		private final LDPath parentPath;
+		private final LDDoubleArray parent;
+		private int idx;
+
+		public ValueIterator(LDPath parentPath, LDDoubleArray parent) {
+			this.parentPath = parentPath;
+			this.parent = parent;
+			this.idx = 0;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return idx < parent.size;
+		}
+
+		@Override
+		public LDCursor next() {
+			if (idx < parent.size) {
+				LDCursor cc = new LDCursor(parentPath.addSegment(idx), new LDDouble(
+						parent.values[idx]));
+				idx++;
+				return cc;
+			}
+			else
+				throw new NoSuchElementException();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+	// ===============================
+	// Variables
+	// ===============================
+
+	private static final double[] EMPTY = new double[0];
+
+	private double[] values;
+	private int size;
+
+	// ===============================
+	// Creation
+	// ===============================
+
+	public LDDoubleArray() {
+		this.values = EMPTY;
+		this.size = 0;
+	}
+
+	/**
+	 * @param values
+	 *            Not null. Copied.
+	 */
+	public LDDoubleArray(double[] values) {
+		this(values, 0, (values == null) ? 0 : values.length);
+	}
+
+	/**
+	 * Creates an array holding count values of values, starting at offset.
+	 *
+	 * @param values
+	 *            Not null. Copied.
+	 */
+	public LDDoubleArray(double[] values, int offset, int count) {
+		if (values == null)
+			throw new IllegalArgumentException("values cannot be null");
+		this.values = Arrays.copyOfRange(values, offset, offset + count);
+		this.size = count;
+	}
+
+	public LDDoubleArray(LDDoubleArray item) {
+		if (item == null)
+			throw new IllegalArgumentException("Argument \"item\" cannot be null");
+		this.values = Arrays.copyOf(item.values, item.size);
+		this.size = item.size;
+	}
+
+	// ===============================
+	// Operation
+	// ===============================
+
+	@Override
+	public LDDoubleArray deepCopy() {
+		return new LDDoubleArray(this);
+	}
+
+	@Override
+	public LDElement.EType getEType() {
+		return LDElement.EType.DOUBLE_ARRAY;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public int getChildCount() {
+		return size;
+	}
+
+	@Override
+	public boolean isValidKey(Object key) {
+		try {
+			LDList.asListIndex(key);
+			return true;
+		}
+		catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns a new LDDouble holding the value at the given index.
+	 */
+	@Override
+	public LDElement getChild(Object key) {
+		return new LDDouble(getValue(asIndex(key)));
+	}
+
+	/**
+	 * Sets the value at the given index to elem's, which must be an LDDouble
+	 * or an LDLong.
+	 * Like {@link LDList#putChild(Object, LDElement)}, extends the array if
+	 * necessary, here with zeros.
+	 *
+	 * @return a new LDDouble holding the previous value, or null if the array
+	 *         was extended.
+	 */
+	@Override
+	public LDElement putChild(Object key, LDElement elem) {
+		double x = asValue(elem);
+		int k = asIndex(key);
+		if (k < size) {
+			LDDouble prev = new LDDouble(values[k]);
+			setValue(k, x);
+			return prev;
+		}
+		ensureCapacity(k + 1);
+		values[k] = x;
+		size = k + 1;
+		fireStructureChanged();
+		return null;
+	}
+
+	/**
+	 * Always returns null: the values are not elements, so none can be this
+	 * one.
+	 */
+	@Override
+	public Number locateChild(LDElement elem) {
+		if (elem == null)
+			throw new IllegalArgumentException("elem cannot be null");
+		return null;
+	}
+
+	@Override
+	public Number locateChildEqualTo(LDElement elem) {
+		if (elem == null)
+			throw new IllegalArgumentException("elem cannot be null");
+		if (elem instanceof LDDouble) {
+			double x = ((LDDouble) elem).getValue();
+			for (int i = 0; i < size; i++) {
+				if (values[i] == x)
+					return Integer.valueOf(i);
+			}
+		}
+		return null;
+	}
+
+	public double getValue(int idx) {
+		checkIndex(idx);
+		return values[idx];
+	}
+
+	public void setValue(int idx, double value) {
+		checkIndex(idx);
+		// Compared by bits, so setting NaN again fires nothing.
+		if (Double.doubleToLongBits(values[idx]) != Double.doubleToLongBits(value)) {
+			values[idx] = value;
+			fireValueChanged();
+		}
+	}
+
+	/**
+	 * Makes this array's values the same as count values of values, starting
+	 * at offset. Fires nothing if they already are.
+	 *
+	 * @param values
+	 *            Not null. Copied.
+	 */
+	public void setValues(double[] values, int offset, int count) {
+		if (values == null)
+			throw new IllegalArgumentException("values cannot be null");
+		if (offset < 0 || count < 0 || offset + count > values.length)
+			throw new IndexOutOfBoundsException("offset " + offset + ", count " + count
+					+ ", length " + values.length);
+		boolean resized = (count != size);
+		if (!resized && sameBits(this.values, values, offset, count))
+			return;
+		if (resized)
+			this.values = Arrays.copyOfRange(values, offset, offset + count);
+		else
+			System.arraycopy(values, offset, this.values, 0, count);
+		this.size = count;
+		if (resized)
+			fireStructureChanged();
+		else
+			fireValueChanged();
+	}
+
+	/**
+	 * Like {@link #setValues(double[], int, int)}, with source's values.
+	 */
+	public void setValues(LDDoubleArray source) {
+		if (source == null)
+			throw new IllegalArgumentException("source cannot be null");
+		setValues(source.values, 0, source.size);
+	}
+
+	public void addValue(double value) {
+		ensureCapacity(size + 1);
+		values[size++] = value;
+		fireStructureChanged();
+	}
+
+	/**
+	 * @param values
+	 *            Not null. Copied.
+	 */
+	public void addValues(double[] values) {
+		if (values == null)
+			throw new IllegalArgumentException("values cannot be null");
+		addValues(values, 0, values.length);
+	}
+
+	/**
+	 * Appends count values of values, starting at offset.
+	 *
+	 * @param values
+	 *            Not null. Copied.
+	 */
+	public void addValues(double[] values, int offset, int count) {
+		if (values == null)
+			throw new IllegalArgumentException("values cannot be null");
+		if (offset < 0 || count < 0 || offset + count > values.length)
+			throw new IndexOutOfBoundsException("offset " + offset + ", count " + count
+					+ ", length " + values.length);
+		if (count == 0)
+			return;
+		ensureCapacity(size + count);
+		System.arraycopy(values, offset, this.values, size, count);
+		size += count;
+		fireStructureChanged();
+	}
+
+	/**
+	 * Returns a copy of the values.
+	 */
+	public double[] getValues() {
+		return Arrays.copyOf(values, size);
+	}
+
+	public void removeAllChildren() {
+		if (size > 0) {
+			values = EMPTY;
+			size = 0;
+			fireStructureChanged();
+		}
+	}
+
+	@Override
+	public Iterator<LDCursor> childIterator(LDPath parentPath) {
+		return new ValueIterator(parentPath, this);
+	}
+
+	@Override
+	public int hashCode() {
+		return getContentHash().hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this)
+			return true;
+		else if (!(obj instanceof LDDoubleArray))
+			return false;
+		else {
+			LDDoubleArray array1 = (LDDoubleArray) obj;
+			return this.size == array1.size && !isKnownToDiffer(array1)
+					&& rangeEquals(this.values, 0, array1.values, 0, size);
+		}
+	}
+
+	@Override
+	public void print(PrintWriter writer, int level, boolean insertLineBreaks) {
+		writer.print(getEType());
+		writer.print("{");
+		for (int i = 0; i < size; i++) {
+			if (i > 0)
+				writer.print(", ");
+			writer.print(values[i]);
+		}
+		writer.print("}");
+	}
+
+	@Override
+	public void parentChanged(LDElement element) {
+		// NOP. The values have no parents.
+	}
+
+	@Override
+	public void valueChanged(LDElement element) {
+		this.propagateValueChange(element);
+	}
+
+	@Override
+	public void structureChanged(LDElement element) {
+		this.propagateStructureChange(element);
+	}
+
+	// ===============================
+	// Private
+	// ===============================
+
+	private static double asValue(LDElement elem) {
+		if (elem instanceof LDDouble)
+			return ((LDDouble) elem).getValue();
+		if (elem instanceof LDLong)
+			return ((LDLong) elem).getValue();
+		throw new IllegalArgumentException("Bad child: " + elem + " -- must be "
+				+ LDElement.EType.DOUBLE.getName() + ".");
+	}
+
+	private static int asIndex(Object key) {
+		try {
+			return LDList.asListIndex(key);
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad key: " + key
+					+ " -- must be nonnegative integer.");
+		}
+	}
+
+	private void checkIndex(int idx) {
+		if (idx < 0 || idx >= size)
+			throw new IndexOutOfBoundsException("Index: " + idx + ", Size: " + size);
+	}
+
+	private void ensureCapacity(int n) {
+		if (n > values.length)
+			values = Arrays.copyOf(values, Math.max(n, Math.max(8, values.length * 2)));
+	}
+
+	private static boolean rangeEquals(double[] a, int aOffset, double[] b, int bOffset,
+			int count) {
+		for (int i = 0; i < count; i++) {
+			if (a[aOffset + i] != b[bOffset + i])
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean sameBits(double[] a, double[] b, int bOffset, int count) {
+		for (int i = 0; i < count; i++) {
+			if (Double.doubleToLongBits(a[i]) != Double.doubleToLongBits(b[bOffset + i]))
+				return false;
+		}
+		return true;
+	}
+}
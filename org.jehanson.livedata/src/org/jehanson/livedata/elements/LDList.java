@@ -29,7 +29,7 @@ public class LDList extends LDElement implements LDContainer {
 
 		public LNListIterator(LDPath parentPath, LDList parent) {
 			this.parentPath = parentPath;
-			this.children = parent.children;
+			this.children = parent.children();
 			this.idx = 0;
 		}
 
@@ -70,6 +70,12 @@ public class LDList extends LDElement implements LDContainer {
 		this.children = new ArrayList<LDElement>();
 	}
 
+	private LDList(LDElement[] elems, int offset, int count) {
+		this.children = new ArrayList<LDElement>(count);
+		for (int i = offset, end = offset + count; i < end; i++)
+			attachChild(elems[i]);
+	}
+
 	public LDList(LDList item) {
 		this();
 		if (item == null)
@@ -81,6 +87,25 @@ public class LDList extends LDElement implements LDContainer {
 
 	}
 
+	/**
+	 * Creates a list holding count elements of elems, starting at offset. The
+	 * elements are attached without firing any events, since nothing can be
+	 * listening to a list that doesn't exist yet; parsers use this to build
+	 * trees bottom-up.
+	 * <p>
+	 * Protected, like
+	 * {@link LDMap#createUnchecked(LDMap.KeyOrder, String[], LDElement[], int, int)},
+	 * for the parsers.
+	 * 
+	 * @param elems
+	 *            Not null. The elements must not be null or have parents.
+	 */
+	protected static LDList createUnchecked(LDElement[] elems, int offset, int count) {
+		if (elems == null)
+			throw new IllegalArgumentException("elems cannot be null");
+		return new LDList(elems, offset, count);
+	}
+
 	// ===============================
 	// Operation
 	// ===============================
@@ -100,7 +125,7 @@ public class LDList extends LDElement implements LDContainer {
 	public boolean contains(LDList list2) {
 		if (list2 == null)
 			throw new IllegalArgumentException("list2 cannot be null");
-		for (LDElement elem2 : list2.children) {
+		for (LDElement elem2 : list2.children()) {
 			if (this.locateChild(elem2) == null)
 				return false;
 		}
@@ -126,12 +151,12 @@ public class LDList extends LDElement implements LDContainer {
 
 	@Override
 	public boolean isEmpty() {
-		return children.isEmpty();
+		return children().isEmpty();
 	}
 
 	@Override
 	public int getChildCount() {
-		return children.size();
+		return children().size();
 	}
 
 	@Override
@@ -190,11 +215,11 @@ public class LDList extends LDElement implements LDContainer {
 	@Override
 	public LDElement putChild(Object key, LDElement elem) {
 		int k = asListIndex(key);
-		if (k <= children.size())
+		if (k < children().size())
 			return setChild(k, elem);
 
-		while (k > children.size())
-			addChild(children.size(), new LDVoid());
+		while (k > children().size())
+			addChild(children().size(), new LDVoid());
 		addChild(k, elem);
 		return null;
 	}
@@ -203,8 +228,8 @@ public class LDList extends LDElement implements LDContainer {
 	public Number locateChild(LDElement elem) {
 		if (elem == null)
 			throw new IllegalArgumentException("elem cannot be null");
-		for (int i = 0, n = children.size(); i < n; i++) {
-			if (elem == children.get(i))
+		for (int i = 0, n = children().size(); i < n; i++) {
+			if (elem == children().get(i))
 				return Integer.valueOf(i);
 		}
 		return null;
@@ -214,15 +239,15 @@ public class LDList extends LDElement implements LDContainer {
 	public Number locateChildEqualTo(LDElement elem) {
 		if (elem == null)
 			throw new IllegalArgumentException("elem cannot be null");
-		for (int i = 0, n = children.size(); i < n; i++) {
-			if (elem.equals(children.get(i)))
+		for (int i = 0, n = children().size(); i < n; i++) {
+			if (elem.equals(children().get(i)))
 				return Integer.valueOf(i);
 		}
 		return null;
 	}
 
 	public LDElement getChild(int idx) {
-		return children.get(idx);
+		return children().get(idx);
 	}
 
 	public void addChild(LDElement elem) {
@@ -230,7 +255,7 @@ public class LDList extends LDElement implements LDContainer {
 			throw new IllegalArgumentException("elem cannot be null");
 		elem.setParent(this);
 		try {
-			children.add(elem);
+			children().add(elem);
 		}
 		catch (Exception e) {
 			elem.unsetParent();
@@ -244,7 +269,7 @@ public class LDList extends LDElement implements LDContainer {
 			throw new IllegalArgumentException("elem cannot be null");
 		elem.setParent(this);
 		try {
-			children.add(idx, elem);
+			children().add(idx, elem);
 		}
 		catch (Exception e) {
 			elem.unsetParent();
@@ -259,7 +284,7 @@ public class LDList extends LDElement implements LDContainer {
 		LDElement prevChild = null;
 		elem.setParent(this);
 		try {
-			prevChild = children.set(idx, elem);
+			prevChild = children().set(idx, elem);
 			prevChild.unsetParent();
 		}
 		catch (Exception e) {
@@ -271,18 +296,18 @@ public class LDList extends LDElement implements LDContainer {
 	}
 
 	public LDElement removeChild(int idx) {
-		LDElement prevChild = children.remove(idx);
+		LDElement prevChild = children().remove(idx);
 		prevChild.unsetParent();
 		fireStructureChanged();
 		return prevChild;
 	}
 
 	public void removeAllChildren() {
-		if (children.size() > 0) {
-			for (LDElement c : children) {
+		if (children().size() > 0) {
+			for (LDElement c : children()) {
 				c.unsetParent();
 			}
-			children.clear();
+			children().clear();
 			fireStructureChanged();
 		}
 	}
@@ -292,11 +317,38 @@ public class LDList extends LDElement implements LDContainer {
 		return new LNListIterator(parentPath, this);
 	}
 
+	/**
+	 * Called before every access to the children. Does nothing here;
+	 * subclasses whose children are filled in on demand override it, and use
+	 * {@link #attachChild(LDElement)} to do the filling.
+	 */
+	protected void loadChildren() {
+	}
+
+	/**
+	 * Appends a child without calling {@link #loadChildren()} and without
+	 * firing an event. For use by {@link #loadChildren()}.
+	 * 
+	 * @param elem
+	 *            Not null, and without a parent.
+	 */
+	protected void attachChild(LDElement elem) {
+		elem.setParent(this);
+		children.add(elem);
+	}
+
+	/**
+	 * Returns the children, loading them first if necessary. Everything but
+	 * attachChild goes through here.
+	 */
+	private List<LDElement> children() {
+		loadChildren();
+		return children;
+	}
+
 	@Override
 	public int hashCode() {
-		int hc = 23;
-		hc = 37 * hc + children.hashCode();
-		return hc;
+		return getContentHash().hashCode();
 	}
 
 	@Override
@@ -307,7 +359,7 @@ public class LDList extends LDElement implements LDContainer {
 			return false;
 		else {
 			LDList list1 = (LDList) obj;
-			if (this.getChildCount() != list1.getChildCount())
+			if (this.getChildCount() != list1.getChildCount() || isKnownToDiffer(list1))
 				return false;
 			else {
 				for (int i = 0, n = this.getChildCount(); i < n; i++) {
@@ -323,7 +375,7 @@ public class LDList extends LDElement implements LDContainer {
 	public void print(PrintWriter writer, int level, boolean insertLineBreaks) {
 		writer.print(getEType());
 		writer.print("{");
-		Iterator<LDElement> cIter = children.iterator();
+		Iterator<LDElement> cIter = children().iterator();
 		if (cIter.hasNext()) {
 			printBreak(writer, level + 1, insertLineBreaks, false);
 			cIter.next().print(writer, level + 1, insertLineBreaks);
@@ -353,11 +405,11 @@ public class LDList extends LDElement implements LDContainer {
 	}
 
 	public void replaceChildren(List<LDElement> newChildren) {
-		int oldSize = this.children.size();
+		int oldSize = this.children().size();
 		int newSize = newChildren.size();
 		int shorter = (oldSize <= newSize) ? oldSize : newSize;
 		for (int i = 0; i < shorter; i++) {
-			if (!children.get(i).equals(newChildren.get(i)))
+			if (!children().get(i).equals(newChildren.get(i)))
 				setChild(i, newChildren.get(i));
 		}
 		for (int i = newSize; i < oldSize; i++)
@@ -0,0 +1,390 @@
+package org.jehanson.livedata.elements;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.jehanson.livedata.LDContainer;
+import org.jehanson.livedata.LDCursor;
+import org.jehanson.livedata.LDElement;
+import org.jehanson.livedata.LDPath;
+
+/**
+ * A list of longs, held in a long[] rather than as a child element apiece.
+ * Takes about a fifth of the memory of an LDList of LDLongs, and numeric
+ * code can work on the values directly.
+ * <p>
+ * The values are not elements. {@link #getChild(Object)} and the child
+ * iterator hand out new LDLongs holding them, with no parent; changing one
+ * of those doesn't change the array. Changing a value fires valueChanged
+ * for the array; changing the length fires structureChanged. Either way,
+ * once per call.
+ *
+ * @author jehanson
+ */
+public class LDLongArray extends LDElement implements LDContainer {
+
+	// ===============================
+	// Inner classes
+	// ===============================
+
+	private static class ValueIterator implements Iterator<LDCursor> {
+
+		private final LDPath parentPath;
+		private final LDLongArray parent;
+		private int idx;
+
+		public ValueIterator(LDPath parentPath, LDLongArray parent) {
+			this.parentPath = parentPath;
+			this.parent = parent;
+			this.idx = 0;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return idx < parent.size;
+		}
+
+		@Override
+		public LDCursor next() {
+			if (idx < parent.size) {
+				LDCursor cc = new LDCursor(parentPath.addSegment(idx), new LDLong(
+						parent.values[idx]));
+				idx++;
+				return cc;
+			}
+			else
+				throw new NoSuchElementException();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+	// ===============================
+	// Variables
+	// ===============================
+
+	private static final long[] EMPTY = new long[0];
+
+	private long[] values;
+	private int size;
+
+	// ===============================
+	// Creation
+	// ===============================
+
+	public LDLongArray() {
+		this.values = EMPTY;
+		this.size = 0;
+	}
+
+	/**
+	 * @param values
+	 *            Not null. Copied.
+	 */
+	public LDLongArray(long[] values) {
+		this(values, 0, (values == null) ? 0 : values.length);
+	}
+
+	/**
+	 * Creates an array holding count values of values, starting at offset.
+	 *
+	 * @param values
+	 *            Not null. Copied.
+	 */
+	public LDLongArray(long[] values, int offset, int count) {
+		if (values == null)
+			throw new IllegalArgumentException("values cannot be null");
+		this.values = Arrays.copyOfRange(values, offset, offset + count);
+		this.size = count;
+	}
+
+	public LDLongArray(LDLongArray item) {
+		if (item == null)
+			throw new IllegalArgumentException("Argument \"item\" cannot be null");
+		this.values = Arrays.copyOf(item.values, item.size);
+		this.size = item.size;
+	}
+
+	// ===============================
+	// Operation
+	// ===============================
+
+	@Override
+	public LDLongArray deepCopy() {
+		return new LDLongArray(this);
+	}
+
+	@Override
+	public LDElement.EType getEType() {
+		return LDElement.EType.LONG_ARRAY;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public int getChildCount() {
+		return size;
+	}
+
+	@Override
+	public boolean isValidKey(Object key) {
+		try {
+			LDList.asListIndex(key);
+			return true;
+		}
+		catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns a new LDLong holding the value at the given index.
+	 */
+	@Override
+	public LDElement getChild(Object key) {
+		return new LDLong(getValue(asIndex(key)));
+	}
+
+	/**
+	 * Sets the value at the given index to elem's, which must be an LDLong.
+	 * Like {@link LDList#putChild(Object, LDElement)}, extends the array if
+	 * necessary, here with zeros.
+	 *
+	 * @return a new LDLong holding the previous value, or null if the array
+	 *         was extended.
+	 */
+	@Override
+	public LDElement putChild(Object key, LDElement elem) {
+		if (!(elem instanceof LDLong))
+			throw new IllegalArgumentException("Bad child: " + elem + " -- must be "
+					+ LDElement.EType.LONG.getName() + ".");
+		int k = asIndex(key);
+		long x = ((LDLong) elem).getValue();
+		if (k < size) {
+			LDLong prev = new LDLong(values[k]);
+			setValue(k, x);
+			return prev;
+		}
+		ensureCapacity(k + 1);
+		values[k] = x;
+		size = k + 1;
+		fireStructureChanged();
+		return null;
+	}
+
+	/**
+	 * Always returns null: the values are not elements, so none can be this
+	 * one.
+	 */
+	@Override
+	public Number locateChild(LDElement elem) {
+		if (elem == null)
+			throw new IllegalArgumentException("elem cannot be null");
+		return null;
+	}
+
+	@Override
+	public Number locateChildEqualTo(LDElement elem) {
+		if (elem == null)
+			throw new IllegalArgumentException("elem cannot be null");
+		if (elem instanceof LDLong) {
+			long x = ((LDLong) elem).getValue();
+			for (int i = 0; i < size; i++) {
+				if (values[i] == x)
+					return Integer.valueOf(i);
+			}
+		}
+		return null;
+	}
+
+	public long getValue(int idx) {
+		checkIndex(idx);
+		return values[idx];
+	}
+
+	public void setValue(int idx, long value) {
+		checkIndex(idx);
+		if (values[idx] != value) {
+			values[idx] = value;
+			fireValueChanged();
+		}
+	}
+
+	/**
+	 * Makes this array's values the same as count values of values, starting
+	 * at offset. Fires nothing if they already are.
+	 *
+	 * @param values
+	 *            Not null. Copied.
+	 */
+	public void setValues(long[] values, int offset, int count) {
+		if (values == null)
+			throw new IllegalArgumentException("values cannot be null");
+		if (offset < 0 || count < 0 || offset + count > values.length)
+			throw new IndexOutOfBoundsException("offset " + offset + ", count " + count
+					+ ", length " + values.length);
+		boolean resized = (count != size);
+		if (!resized && rangeEquals(this.values, 0, values, offset, count))
+			return;
+		if (resized)
+			this.values = Arrays.copyOfRange(values, offset, offset + count);
+		else
+			System.arraycopy(values, offset, this.values, 0, count);
+		this.size = count;
+		if (resized)
+			fireStructureChanged();
+		else
+			fireValueChanged();
+	}
+
+	/**
+	 * Like {@link #setValues(long[], int, int)}, with source's values.
+	 */
+	public void setValues(LDLongArray source) {
+		if (source == null)
+			throw new IllegalArgumentException("source cannot be null");
+		setValues(source.values, 0, source.size);
+	}
+
+	public void addValue(long value) {
+		ensureCapacity(size + 1);
+		values[size++] = value;
+		fireStructureChanged();
+	}
+
+	/**
+	 * @param values
+	 *            Not null. Copied.
+	 */
+	public void addValues(long[] values) {
+		if (values == null)
+			throw new IllegalArgumentException("values cannot be null");
+		addValues(values, 0, values.length);
+	}
+
+	/**
+	 * Appends count values of values, starting at offset.
+	 *
+	 * @param values
+	 *            Not null. Copied.
+	 */
+	public void addValues(long[] values, int offset, int count) {
+		if (values == null)
+			throw new IllegalArgumentException("values cannot be null");
+		if (offset < 0 || count < 0 || offset + count > values.length)
+			throw new IndexOutOfBoundsException("offset " + offset + ", count " + count
+					+ ", length " + values.length);
+		if (count == 0)
+			return;
+		ensureCapacity(size + count);
+		System.arraycopy(values, offset, this.values, size, count);
+		size += count;
+		fireStructureChanged();
+	}
+
+	/**
+	 * Returns a copy of the values.
+	 */
+	public long[] getValues() {
+		return Arrays.copyOf(values, size);
+	}
+
+	public void removeAllChildren() {
+		if (size > 0) {
+			values = EMPTY;
+			size = 0;
+			fireStructureChanged();
+		}
+	}
+
+	@Override
+	public Iterator<LDCursor> childIterator(LDPath parentPath) {
+		return new ValueIterator(parentPath, this);
+	}
+
+	@Override
+	public int hashCode() {
+		return getContentHash().hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this)
+			return true;
+		else if (!(obj instanceof LDLongArray))
+			return false;
+		else {
+			LDLongArray array1 = (LDLongArray) obj;
+			return this.size == array1.size && !isKnownToDiffer(array1)
+					&& rangeEquals(this.values, 0, array1.values, 0, size);
+		}
+	}
+
+	@Override
+	public void print(PrintWriter writer, int level, boolean insertLineBreaks) {
+		writer.print(getEType());
+		writer.print("{");
+		for (int i = 0; i < size; i++) {
+			if (i > 0)
+				writer.print(", ");
+			writer.print(values[i]);
+		}
+		writer.print("}");
+	}
+
+	@Override
+	public void parentChanged(LDElement element) {
+		// NOP. The values have no parents.
+	}
+
+	@Override
+	public void valueChanged(LDElement element) {
+		this.propagateValueChange(element);
+	}
+
+	@Override
+	public void structureChanged(LDElement element) {
+		this.propagateStructureChange(element);
+	}
+
+	// ===============================
+	// Private
+	// ===============================
+
+	private static int asIndex(Object key) {
+		try {
+			return LDList.asListIndex(key);
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad key: " + key
+					+ " -- must be nonnegative integer.");
+		}
+	}
+
+	private void checkIndex(int idx) {
+		if (idx < 0 || idx >= size)
+			throw new IndexOutOfBoundsException("Index: " + idx + ", Size: " + size);
+	}
+
+	private void ensureCapacity(int n) {
+		if (n > values.length)
+			values = Arrays.copyOf(values, Math.max(n, Math.max(8, values.length * 2)));
+	}
+
+	private static boolean rangeEquals(long[] a, int aOffset, long[] b, int bOffset, int count) {
+		for (int i = 0; i < count; i++) {
+			if (a[aOffset + i] != b[bOffset + i])
+				return false;
+		}
+		return true;
+	}
+}
@@ -19,6 +19,9 @@ import org.jehanson.livedata.LDElement;
 import org.jehanson.livedata.LDPath;
 
 /**
+ * Children are held in a {@link CompactMap} while there are few of them, as
+ * there usually are, and in a HashMap, LinkedHashMap or TreeMap, as the
+ * KeyOrder calls for, once there are more.
  * 
  * @author jehanson
  */
@@ -39,7 +42,7 @@ public class LDMap extends LDElement implements LDContainer {
 
 		public LNMapIterator(LDPath parentPath, LDMap parent) {
 			this.parentPath = parentPath;
-			base = parent.children.entrySet().iterator();
+			base = parent.children().entrySet().iterator();
 		}
 
 		@Override
@@ -75,7 +78,8 @@ public class LDMap extends LDElement implements LDContainer {
 	private static final Pattern whitespaceRegex = Pattern.compile("\\s");
 
 	private final KeyOrder keyOrder;
-	private final Map<String, LDElement> children;
+	/** Replaced when a CompactMap fills up; see {@link #putInner}. */
+	private Map<String, LDElement> children;
 
 	// ==============================
 	// Creation
@@ -87,14 +91,25 @@ public class LDMap extends LDElement implements LDContainer {
 
 	public LDMap(KeyOrder keyOrder) {
 		this.keyOrder = keyOrder;
-		this.children = createInnerMap(keyOrder);
+		this.children = createInnerMap(keyOrder, 0);
+	}
+
+	private LDMap(KeyOrder keyOrder, String[] keys, LDElement[] values, int offset, int count) {
+		this.keyOrder = keyOrder;
+		this.children = createInnerMap(keyOrder, count);
+		for (int i = offset, end = offset + count; i < end; i++) {
+			values[i].setParent(this);
+			LDElement prevChild = putInner(keys[i], values[i]);
+			if (prevChild != null)
+				prevChild.unsetParent();
+		}
 	}
 
 	public LDMap(LDMap item) {
 		if (item == null)
 			throw new IllegalArgumentException("Argument \"item\" cannot be null");
 		this.keyOrder = KeyOrder.ANY;
-		this.children = createInnerMap(keyOrder);
+		this.children = createInnerMap(keyOrder, item.getChildCount());
 		for (String k : item.getChildKeys()) {
 			LDElement v = item.getChild(k);
 			LDElement c = v.deepCopy();
@@ -102,6 +117,31 @@ public class LDMap extends LDElement implements LDContainer {
 		}
 	}
 
+	/**
+	 * Creates a map holding count entries of keys and values, starting at
+	 * offset. The values are attached without firing any events, since
+	 * nothing can be listening to a map that doesn't exist yet; parsers use
+	 * this to build trees bottom-up. If a key appears more than once the last
+	 * value wins, as with {@link #putChild(Object, LDElement)}.
+	 * <p>
+	 * Protected, like {@link #putChildUnchecked(LDMap, String, LDElement)},
+	 * because the keys are not checked.
+	 * 
+	 * @param keys
+	 *            Not null. Each key must be one for which
+	 *            {@link #isValidKey(Object)} returns true.
+	 * @param values
+	 *            Not null. The values must not have parents.
+	 */
+	protected static LDMap createUnchecked(KeyOrder keyOrder, String[] keys, LDElement[] values,
+			int offset, int count) {
+		if (keys == null)
+			throw new IllegalArgumentException("keys cannot be null");
+		if (values == null)
+			throw new IllegalArgumentException("values cannot be null");
+		return new LDMap(keyOrder, keys, values, offset, count);
+	}
+
 	// ==============================
 	// Operation
 	// ==============================
@@ -151,7 +191,7 @@ public class LDMap extends LDElement implements LDContainer {
 		if (key == null)
 			throw new IllegalArgumentException("key cannot be null");
 		String k = key.toString();
-		if (k.isEmpty() || k.equals("null") || whitespaceRegex.matcher(k).find() || !LDPath.isSegment(k))
+		if (k.isEmpty() || k.equals("null") || containsWhitespace(k) || !LDPath.isSegment(k))
 			throw new IllegalArgumentException("Bad key: \"" + key + "\"");
 		return k;
 	}
@@ -174,7 +214,7 @@ public class LDMap extends LDElement implements LDContainer {
 		String base = fixKey(hint);
 		int count = 0;
 		String test = base;
-		while (children.containsKey(test)) {
+		while (children().containsKey(test)) {
 			test = base + "-" + count++;
 		}
 		return test;
@@ -195,8 +235,8 @@ public class LDMap extends LDElement implements LDContainer {
 	public boolean contains(LDMap map2) {
 		if (map2 == null)
 			throw new IllegalArgumentException("map2 cannot be null");
-		for (Entry<String, LDElement> e : map2.children.entrySet()) {
-			LDElement elem1 = this.children.get(e.getKey());
+		for (Entry<String, LDElement> e : map2.children().entrySet()) {
+			LDElement elem1 = this.children().get(e.getKey());
 			if (!e.getValue().equals(elem1))
 				return false;
 		}
@@ -210,35 +250,44 @@ public class LDMap extends LDElement implements LDContainer {
 
 	@Override
 	public boolean isEmpty() {
-		return children.isEmpty();
+		return children().isEmpty();
 	}
 
 	public Collection<String> getChildKeys() {
-		return Collections.unmodifiableCollection(children.keySet());
+		return Collections.unmodifiableCollection(children().keySet());
+	}
+
+	/**
+	 * Returns the keys with their children, for callers such as serializers
+	 * that visit every entry. Cheaper than {@link #childIterator(LDPath)},
+	 * which makes a path per child.
+	 */
+	public Collection<Map.Entry<String, LDElement>> getChildEntries() {
+		return Collections.unmodifiableMap(children()).entrySet();
 	}
 
 	@Override
 	public LDElement getChild(Object key) {
 		if (!isValidKey(key))
 			throw new IllegalArgumentException("Bad key: " + key);
-		return children.get(String.valueOf(key));
+		return children().get(String.valueOf(key));
 	}
 
 	public LDElement getChild(String key) {
 		if (!isValidKey(key))
 			throw new IllegalArgumentException("Bad key: " + key);
-		return children.get(key);
+		return children().get(key);
 	}
 
 	public @Override int getChildCount() {
-		return children.size();
+		return children().size();
 	}
 
 	@Override
 	public String locateChild(LDElement elem) {
 		if (elem == null)
 			throw new IllegalArgumentException("elem cannot be null");
-		for (Entry<String, LDElement> e : children.entrySet()) {
+		for (Entry<String, LDElement> e : children().entrySet()) {
 			if (elem == e.getValue())
 				return e.getKey();
 		}
@@ -249,7 +298,7 @@ public class LDMap extends LDElement implements LDContainer {
 	public String locateChildEqualTo(LDElement elem) {
 		if (elem == null)
 			throw new IllegalArgumentException("elem cannot be null");
-		for (Entry<String, LDElement> e : children.entrySet()) {
+		for (Entry<String, LDElement> e : children().entrySet()) {
 			if (elem.equals(e.getValue()))
 				return e.getKey();
 		}
@@ -258,18 +307,29 @@ public class LDMap extends LDElement implements LDContainer {
 
 	@Override
 	public LDElement putChild(Object key, LDElement elem) {
-		String k = asMapKey(key);
-		elem.setParent(this);
-		LDElement prevChild = children.put(k, elem);
-		if (prevChild != null) {
-			prevChild.unsetParent();
-		}
-		fireStructureChanged();
-		return prevChild;
+		return putValidChild(asMapKey(key), elem);
+	}
+
+	/**
+	 * Like {@link #putChild(Object, LDElement)}, but doesn't check the key.
+	 * For parsers that have already checked it, usually once for many maps.
+	 * Protected, and static so that a subclass in another package may call it
+	 * on any LDMap; the parsers reach it that way.
+	 * 
+	 * @param map
+	 *            Not null.
+	 * @param key
+	 *            a key for which {@link #isValidKey(Object)} returns true.
+	 * @param elem
+	 *            Not null.
+	 * @return the child previously under key, or null.
+	 */
+	protected static LDElement putChildUnchecked(LDMap map, String key, LDElement elem) {
+		return map.putValidChild(key, elem);
 	}
 
 	public LDElement removeChild(String key) {
-		LDElement prevChild = children.remove(key);
+		LDElement prevChild = children().remove(key);
 		if (prevChild != null) {
 			prevChild.unsetParent();
 			fireStructureChanged();
@@ -278,13 +338,13 @@ public class LDMap extends LDElement implements LDContainer {
 	}
 
 	public void removeAllChildren() {
-		if (children.isEmpty())
+		if (children().isEmpty())
 			return;
 
 		List<String> keys = new ArrayList<String>();
-		keys.addAll(children.keySet());
+		keys.addAll(children().keySet());
 		for (String key : keys) {
-			LDElement prevChild = children.remove(key);
+			LDElement prevChild = children().remove(key);
 			if (prevChild != null)
 				prevChild.unsetParent();
 		}
@@ -296,11 +356,32 @@ public class LDMap extends LDElement implements LDContainer {
 		return new LNMapIterator(parentPath, this);
 	}
 
+	/**
+	 * Called before every access to the children. Does nothing here;
+	 * subclasses whose children are filled in on demand override it, and use
+	 * {@link #attachChild(String, LDElement)} to do the filling.
+	 */
+	protected void loadChildren() {
+	}
+
+	/**
+	 * Adds a child without checking the key, without calling
+	 * {@link #loadChildren()} and without firing an event. For use by
+	 * {@link #loadChildren()}.
+	 * 
+	 * @param key
+	 *            a valid key not already in this map.
+	 * @param elem
+	 *            Not null, and without a parent.
+	 */
+	protected void attachChild(String key, LDElement elem) {
+		elem.setParent(this);
+		putInner(key, elem);
+	}
+
 	@Override
 	public int hashCode() {
-		int hc = 23;
-		hc = 37 * hc + children.hashCode();
-		return hc;
+		return getContentHash().hashCode();
 	}
 
 	@Override
@@ -311,10 +392,10 @@ public class LDMap extends LDElement implements LDContainer {
 			return false;
 		else {
 			LDMap map1 = (LDMap) obj;
-			if (this.getChildCount() != map1.getChildCount())
+			if (this.getChildCount() != map1.getChildCount() || isKnownToDiffer(map1))
 				return false;
 			else {
-				for (Map.Entry<String, LDElement> entry0 : this.children.entrySet()) {
+				for (Map.Entry<String, LDElement> entry0 : this.children().entrySet()) {
 					if (!entry0.getValue().equals(map1.getChild(entry0.getKey())))
 						return false;
 				}
@@ -327,7 +408,7 @@ public class LDMap extends LDElement implements LDContainer {
 	public void print(PrintWriter writer, int level, boolean insertLineBreaks) {
 		writer.print(getEType());
 		writer.print("{");
-		Iterator<Map.Entry<String, LDElement>> cIter = children.entrySet().iterator();
+		Iterator<Map.Entry<String, LDElement>> cIter = children().entrySet().iterator();
 		Map.Entry<String, LDElement> c;
 		if (cIter.hasNext()) {
 			printBreak(writer, level + 1, insertLineBreaks, false);
@@ -352,14 +433,82 @@ public class LDMap extends LDElement implements LDContainer {
 	// Private
 	// ===================================
 
-	private static Map<String, LDElement> createInnerMap(KeyOrder keyOrder) {
+	/**
+	 * Loads the children first, so that if loading fails elem is left as it
+	 * was.
+	 */
+	private LDElement putValidChild(String key, LDElement elem) {
+		loadChildren();
+		elem.setParent(this);
+		LDElement prevChild = putInner(key, elem);
+		if (prevChild != null) {
+			prevChild.unsetParent();
+		}
+		fireStructureChanged();
+		return prevChild;
+	}
+
+	/**
+	 * Returns the children, loading them first if necessary. Everything but
+	 * attachChild goes through here.
+	 */
+	private Map<String, LDElement> children() {
+		loadChildren();
+		return children;
+	}
+
+	/**
+	 * Same test as whitespaceRegex, without a Matcher per call.
+	 */
+	private static boolean containsWhitespace(String s) {
+		for (int i = 0, n = s.length(); i < n; i++) {
+			switch (s.charAt(i)) {
+			case ' ':
+			case '\t':
+			case '\n':
+			case '\013':
+			case '\f':
+			case '\r':
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Puts into the children, moving them out of a CompactMap that is full.
+	 * Doesn't load them.
+	 */
+	private LDElement putInner(String key, LDElement elem) {
+		if (children instanceof CompactMap && ((CompactMap) children).isFull()
+				&& !children.containsKey(key)) {
+			Map<String, LDElement> larger = createLargeMap(keyOrder, children.size() * 2);
+			larger.putAll(children);
+			children = larger;
+		}
+		return children.put(key, elem);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            entries the map will hold without growing; 0 for the
+	 *            default capacity.
+	 */
+	private static Map<String, LDElement> createInnerMap(KeyOrder keyOrder, int expectedSize) {
+		if (expectedSize <= CompactMap.MAX_SIZE)
+			return new CompactMap(keyOrder, expectedSize);
+		return createLargeMap(keyOrder, expectedSize);
+	}
+
+	private static Map<String, LDElement> createLargeMap(KeyOrder keyOrder, int expectedSize) {
+		int capacity = (expectedSize == 0) ? 16 : expectedSize * 4 / 3 + 1;
 		switch (keyOrder) {
 		case ALPHABETICAL:
 			return new TreeMap<String, LDElement>();
 		case INSERTION:
-			return new LinkedHashMap<String, LDElement>();
+			return new LinkedHashMap<String, LDElement>(capacity);
 		default:
-			return new HashMap<String, LDElement>();
+			return new HashMap<String, LDElement>(capacity);
 		}
 	}
 
@@ -0,0 +1,77 @@
+package org.jehanson.livedata.serialization;
+
+import org.jehanson.livedata.LDElement;
+import org.jehanson.livedata.elements.LDList;
+import org.jehanson.livedata.elements.LDMap;
+
+/**
+ * The parsers' way to the methods of LDMap and LDList that skip checks the
+ * parsers have already made. Those are protected, so that only subclasses
+ * can call them; this calls them from subclasses that are never
+ * instantiated.
+ *
+ * @author jehanson
+ */
+final class ElementAccess {
+
+	// =================================
+	// Inner classes
+	// =================================
+
+	private static final class MapAccess extends LDMap {
+
+		private MapAccess() {
+		}
+
+		static LDMap create(String[] keys, LDElement[] values, int offset, int count) {
+			return createUnchecked(getDefaultKeyOrder(), keys, values, offset, count);
+		}
+
+		static LDElement put(LDMap map, String key, LDElement elem) {
+			return putChildUnchecked(map, key, elem);
+		}
+	}
+
+	private static final class ListAccess extends LDList {
+
+		private ListAccess() {
+		}
+
+		static LDList create(LDElement[] elems, int offset, int count) {
+			return createUnchecked(elems, offset, count);
+		}
+	}
+
+	// =================================
+	// Creation
+	// =================================
+
+	private ElementAccess() {
+	}
+
+	// =================================
+	// Operation
+	// =================================
+
+	/**
+	 * Returns a map in the default key order; see
+	 * {@link LDMap#createUnchecked(LDMap.KeyOrder, String[], LDElement[], int, int)}.
+	 */
+	static LDMap createMap(String[] keys, LDElement[] values, int offset, int count) {
+		return MapAccess.create(keys, values, offset, count);
+	}
+
+	/**
+	 * See {@link LDList#createUnchecked(LDElement[], int, int)}.
+	 */
+	static LDList createList(LDElement[] elems, int offset, int count) {
+		return ListAccess.create(elems, offset, count);
+	}
+
+	/**
+	 * See {@link LDMap#putChildUnchecked(LDMap, String, LDElement)}.
+	 */
+	static LDElement putChildUnchecked(LDMap map, String key, LDElement elem) {
+		return MapAccess.put(map, key, elem);
+	}
+}
@@ -0,0 +1,488 @@
+package org.jehanson.livedata.serialization;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.jehanson.livedata.LDElement;
+
+/**
+ * JSONScanner that reads UTF-8 bytes directly, with no separate decoding
+ * pass. Only keys and string values are turned into chars, and a string with
+ * no escapes and no non-ASCII bytes is copied straight out of the window.
+ * <p>
+ * The input is either a byte array that is scanned in place, or a stream or
+ * a run of ByteBuffers (direct or memory-mapped) that is copied into a window
+ * in large blocks. Malformed
+ * UTF-8 inside a string decodes to U+FFFD, as with the JDK's decoder.
+ *
+ * @author jehanson
+ */
+final class JSONByteScanner extends JSONScanner {
+
+	// =================================
+	// Variables
+	// =================================
+
+	static final int DEFAULT_WINDOW_SIZE = 1 << 16;
+
+	private static final char REPLACEMENT_CHAR = '\uFFFD';
+
+	/** ASCII bytes that Character.isWhitespace accepts. */
+	private static final boolean[] whitespace = new boolean[128];
+
+	static {
+		for (int i = 0; i < whitespace.length; i++)
+			whitespace[i] = Character.isWhitespace(i);
+	}
+
+	// Refill sources. At most one is non-null.
+	private final InputStream stream;
+	private final ByteBuffer[] sources;
+	private int sourceIndex;
+
+	private byte[] buf;
+	private int pos;
+	private int limit;
+
+	/**
+	 * Start of the token being scanned, or -1. Bytes from here on survive a
+	 * refill.
+	 */
+	private int mark;
+
+	/** Offset from the start of the input to buf[0]. */
+	private long base;
+
+	// Line accounting for the bytes that have been dropped from the window.
+	private int droppedLines;
+	private int droppedLineChars;
+	private boolean droppedCR;
+
+	// =================================
+	// Creation
+	// =================================
+
+	/**
+	 * Scans the given bytes in place.
+	 */
+	JSONByteScanner(byte[] data, int offset, int length) {
+		if (data == null)
+			throw new IllegalArgumentException("data cannot be null");
+		if (offset < 0 || length < 0 || offset + length > data.length)
+			throw new IndexOutOfBoundsException("offset=" + offset + " length=" + length
+					+ " data.length=" + data.length);
+		this.stream = null;
+		this.sources = null;
+		this.buf = data;
+		this.pos = offset;
+		this.limit = offset + length;
+		this.mark = -1;
+		this.base = -offset;
+	}
+
+	JSONByteScanner(InputStream stream) {
+		this(stream, DEFAULT_WINDOW_SIZE);
+	}
+
+	JSONByteScanner(InputStream stream, int windowSize) {
+		if (stream == null)
+			throw new IllegalArgumentException("stream cannot be null");
+		this.stream = stream;
+		this.sources = null;
+		this.buf = new byte[windowSize];
+		this.mark = -1;
+	}
+
+	/**
+	 * Scans the remaining bytes of the given buffer, without changing its
+	 * position. A buffer backed by an array is scanned in place.
+	 */
+	static JSONByteScanner create(ByteBuffer buffer) {
+		if (buffer == null)
+			throw new IllegalArgumentException("buffer cannot be null");
+		if (buffer.hasArray())
+			return new JSONByteScanner(buffer.array(), buffer.arrayOffset() + buffer.position(),
+					buffer.remaining());
+		return new JSONByteScanner(new ByteBuffer[] { buffer.duplicate() }, DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * Scans the remaining bytes of each buffer in turn, as one input. Takes
+	 * ownership of the buffers: their positions are advanced.
+	 */
+	JSONByteScanner(ByteBuffer[] sources, int windowSize) {
+		if (sources == null)
+			throw new IllegalArgumentException("sources cannot be null");
+		this.stream = null;
+		this.sources = sources;
+		this.sourceIndex = 0;
+		this.buf = new byte[windowSize];
+		this.mark = -1;
+	}
+
+	// =================================
+	// Operation
+	// =================================
+
+	@Override
+	int nextClean() throws IOException {
+		for (;;) {
+			while (pos < limit) {
+				int b = buf[pos++];
+				if (b < 0 || !whitespace[b])
+					return b & 0xff;
+			}
+			if (!fill())
+				return -1;
+		}
+	}
+
+	@Override
+	String scanString() throws IOException, LDFormatException {
+		int start = pos;
+		boolean ascii = true;
+		for (;;) {
+			while (pos < limit) {
+				int b = buf[pos];
+				if (b == LDParserJSON.QUOTE) {
+					String s = new String(buf, start, pos - start,
+							ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+					pos++;
+					return s;
+				}
+				else if (b == LDParserJSON.ESC || (b >= 0 && b < ' '))
+					return new String(chars, 0, decodeChars(start));
+				else if (b < 0)
+					ascii = false;
+				pos++;
+			}
+			mark = start;
+			boolean more = fill();
+			start = mark;
+			mark = -1;
+			if (!more)
+				throw error("Unterminated JSON string");
+		}
+	}
+
+	@Override
+	LDElement.EType scanScalar() throws IOException, LDFormatException {
+		int start = pos - 1;
+		for (;;) {
+			while (pos < limit) {
+				int b = buf[pos];
+				if (b >= 0 && delimiters[b])
+					return decodeBytes(start, pos);
+				pos++;
+			}
+			mark = start;
+			boolean more = fill();
+			start = mark;
+			mark = -1;
+			if (!more)
+				return decodeBytes(start, pos);
+		}
+	}
+
+	@Override
+	void skipString() throws IOException, LDFormatException {
+		for (;;) {
+			while (pos < limit) {
+				byte b = buf[pos++];
+				if (b == LDParserJSON.QUOTE)
+					return;
+				else if (b == LDParserJSON.ESC) {
+					if (pos == limit && !fill())
+						break;
+					pos++;
+				}
+			}
+			if (!fill())
+				throw error("Unterminated JSON string");
+		}
+	}
+
+	@Override
+	void skipScalar() throws IOException {
+		for (;;) {
+			while (pos < limit) {
+				int b = buf[pos];
+				if (b >= 0 && delimiters[b])
+					return;
+				pos++;
+			}
+			if (!fill())
+				return;
+		}
+	}
+
+	@Override
+	void skipContainerBody() throws IOException, LDFormatException {
+		int level = 1;
+		for (;;) {
+			while (pos < limit) {
+				switch (buf[pos++]) {
+				case LDParserJSON.MAP_PREFIX:
+				case LDParserJSON.LIST_PREFIX:
+					level++;
+					break;
+				case LDParserJSON.MAP_SUFFIX:
+				case LDParserJSON.LIST_SUFFIX:
+					if (--level == 0)
+						return;
+					break;
+				case LDParserJSON.QUOTE:
+					skipString();
+					break;
+				}
+			}
+			if (!fill())
+				throw error("Premature end of file");
+		}
+	}
+
+	/**
+	 * Returns the number of bytes consumed since the start of the input.
+	 */
+	long position() {
+		return base + pos;
+	}
+
+	/**
+	 * Position is counted in chars, not bytes.
+	 */
+	@Override
+	String location() {
+		int line = droppedLines + 1;
+		int column = droppedLineChars;
+		boolean cr = droppedCR;
+		int first = (int) Math.max(0, -base);
+		for (int i = first; i < pos; i++) {
+			byte b = buf[i];
+			if (b == '\n') {
+				if (!cr)
+					line++;
+				column = 0;
+			}
+			else if (b == '\r') {
+				line++;
+				column = 0;
+			}
+			else if ((b & 0xC0) != 0x80)
+				column++;
+			cr = (b == '\r');
+		}
+		return "line " + line + " position " + column;
+	}
+
+	@Override
+	void close() throws IOException {
+		if (stream != null)
+			stream.close();
+	}
+
+	// =================================
+	// Private
+	// =================================
+
+	@Override
+	int scanChars() throws IOException, LDFormatException {
+		return decodeChars(pos);
+	}
+
+	/**
+	 * Decodes the scalar in buf from start to end by widening it into
+	 * {@link #chars}, so that the number grammar lives only in
+	 * {@link #decodeScalar(char[], int, int)}. Scalars are short, so the copy
+	 * is cheap. A non-ASCII byte can only be part of a bad scalar, which goes
+	 * to {@link #decodeScalar(String)} as UTF-8.
+	 */
+	private LDElement.EType decodeBytes(int start, int end) throws LDFormatException {
+		int n = end - start;
+		if (chars.length < n)
+			chars = new char[Math.max(n, chars.length * 2)];
+		for (int i = 0; i < n; i++) {
+			int b = buf[start + i];
+			if (b < 0)
+				return decodeScalar(new String(buf, start, n, StandardCharsets.UTF_8));
+			chars[i] = (char) b;
+		}
+		return decodeScalar(chars, 0, n);
+	}
+
+	/**
+	 * Decodes a string into {@link #chars}, starting from its first byte.
+	 * Consumes the closing quote.
+	 *
+	 * @return the number of chars.
+	 */
+	private int decodeChars(int start) throws IOException, LDFormatException {
+		char[] cbuf = chars;
+		int n = 0;
+		pos = start;
+		for (;;) {
+			if (n + 2 > cbuf.length)
+				chars = cbuf = Arrays.copyOf(cbuf, cbuf.length * 2);
+			int b = nextRaw();
+			if (b == LDParserJSON.QUOTE)
+				return n;
+			else if (b == LDParserJSON.ESC)
+				cbuf[n++] = readEscape();
+			else if (b >= 0x80)
+				n = decodeMultiByte(b, n);
+			else if (b < ' ' && LDParserJSON.CONTROL_CHARS.indexOf(b) >= 0)
+				throw error("Control char (" + (char) b + ") in JSON string");
+			else
+				cbuf[n++] = (char) b;
+		}
+	}
+
+	/**
+	 * Decodes the rest of a UTF-8 sequence into {@link #chars}, which has room
+	 * for 2 more.
+	 *
+	 * @param b0
+	 *            the lead byte, already consumed.
+	 * @param n
+	 *            where to put the decoded chars.
+	 * @return the new char count.
+	 */
+	private int decodeMultiByte(int b0, int n) throws IOException, LDFormatException {
+		int cp;
+		int more;
+		int min;
+		if ((b0 & 0xE0) == 0xC0) {
+			cp = b0 & 0x1F;
+			more = 1;
+			min = 0x80;
+		}
+		else if ((b0 & 0xF0) == 0xE0) {
+			cp = b0 & 0x0F;
+			more = 2;
+			min = 0x800;
+		}
+		else if ((b0 & 0xF8) == 0xF0) {
+			cp = b0 & 0x07;
+			more = 3;
+			min = 0x10000;
+		}
+		else {
+			chars[n++] = REPLACEMENT_CHAR;
+			return n;
+		}
+		for (int i = 0; i < more; i++) {
+			// Don't consume a byte that can't continue the sequence: it may
+			// be the closing quote.
+			if (pos == limit && !fill())
+				throw error("Unterminated JSON string");
+			int b = buf[pos];
+			if ((b & 0xC0) != 0x80) {
+				chars[n++] = REPLACEMENT_CHAR;
+				return n;
+			}
+			pos++;
+			cp = (cp << 6) | (b & 0x3F);
+		}
+		if (cp < min || cp > Character.MAX_CODE_POINT
+				|| (cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE))
+			chars[n++] = REPLACEMENT_CHAR;
+		else if (cp < 0x10000)
+			chars[n++] = (char) cp;
+		else {
+			chars[n++] = Character.highSurrogate(cp);
+			chars[n++] = Character.lowSurrogate(cp);
+		}
+		return n;
+	}
+
+	/** Reads the rest of an escape sequence whose backslash was consumed. */
+	private char readEscape() throws IOException, LDFormatException {
+		int c = nextRaw();
+		int x = simpleEscape(c);
+		if (x >= 0)
+			return (char) x;
+		if (c != 'u')
+			throw error("Illegal char \'" + (char) c + "\' in escape sequence");
+		int c0 = nextRaw();
+		int c1 = nextRaw();
+		int c2 = nextRaw();
+		int c3 = nextRaw();
+		x = hexValue(c0, c1, c2, c3);
+		if (x < 0)
+			throw error("Expected 4 hex digits, got \"" + (char) c0 + (char) c1 + (char) c2
+					+ (char) c3 + "\"");
+		return (char) x;
+	}
+
+	private int nextRaw() throws IOException, LDFormatException {
+		if (pos == limit && !fill())
+			throw error("Unterminated JSON string");
+		return buf[pos++] & 0xff;
+	}
+
+	/**
+	 * Reads another block into the window. Drops the bytes before the mark (or
+	 * before pos if there is no mark) to make room.
+	 *
+	 * @return false if the input is exhausted.
+	 */
+	private boolean fill() throws IOException {
+		ByteBuffer source = null;
+		if (sources != null) {
+			while (sourceIndex < sources.length && !sources[sourceIndex].hasRemaining())
+				sourceIndex++;
+			if (sourceIndex == sources.length)
+				return false;
+			source = sources[sourceIndex];
+		}
+		else if (stream == null)
+			return false;
+		int keep = (mark >= 0) ? mark : pos;
+		if (keep > 0) {
+			countDroppedLines(keep);
+			System.arraycopy(buf, keep, buf, 0, limit - keep);
+			base += keep;
+			limit -= keep;
+			pos -= keep;
+			if (mark >= 0)
+				mark -= keep;
+		}
+		if (limit == buf.length)
+			buf = Arrays.copyOf(buf, buf.length * 2);
+		int n;
+		if (stream != null) {
+			do {
+				n = stream.read(buf, limit, buf.length - limit);
+			} while (n == 0);
+			if (n < 0)
+				return false;
+		}
+		else {
+			n = Math.min(source.remaining(), buf.length - limit);
+			source.get(buf, limit, n);
+		}
+		limit += n;
+		return true;
+	}
+
+	private void countDroppedLines(int end) {
+		for (int i = 0; i < end; i++) {
+			byte b = buf[i];
+			if (b == '\n') {
+				if (!droppedCR)
+					droppedLines++;
+				droppedLineChars = 0;
+			}
+			else if (b == '\r') {
+				droppedLines++;
+				droppedLineChars = 0;
+			}
+			else if ((b & 0xC0) != 0x80)
+				droppedLineChars++;
+			droppedCR = (b == '\r');
+		}
+	}
+}
@@ -0,0 +1,591 @@
+package org.jehanson.livedata.serialization;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.jehanson.livedata.LDElement;
+import org.jehanson.livedata.elements.LDBoolean;
+import org.jehanson.livedata.elements.LDDouble;
+import org.jehanson.livedata.elements.LDDoubleArray;
+import org.jehanson.livedata.elements.LDList;
+import org.jehanson.livedata.elements.LDLong;
+import org.jehanson.livedata.elements.LDLongArray;
+import org.jehanson.livedata.elements.LDMap;
+import org.jehanson.livedata.elements.LDReference;
+import org.jehanson.livedata.elements.LDString;
+
+/**
+ * Writes JSON text as UTF-8 straight into a byte array, and passes it to the
+ * stream a block at a time. Produces the same text as
+ * {@link LDSerializerJSON}'s PrintWriter path, byte for byte.
+ * <p>
+ * Not thread-safe.
+ *
+ * @author jehanson
+ */
+final class JSONByteWriter {
+
+	// =================================
+	// Variables
+	// =================================
+
+	static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+	/** Room for the longest thing written without a check: a \\uXXXX escape. */
+	private static final int SLACK = 32;
+
+	private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a',
+			'b', 'c', 'd', 'e', 'f' };
+
+	/**
+	 * For each ASCII char, the char that follows a backslash when it is
+	 * escaped, 'u' if it needs a \\uXXXX escape, or 0 if it is written as is.
+	 */
+	private static final byte[] ESCAPES = new byte[128];
+
+	// For scanning four chars at a time, one in each 16-bit lane of a long.
+	private static final long LANES = 0x0001000100010001L;
+	private static final long NON_ASCII = 0xff80L * LANES;
+	private static final long BIT7 = 0x0080L * LANES;
+
+	private static final byte[] TRUE_BYTES = ascii(LDParserJSON.TRUE);
+	private static final byte[] FALSE_BYTES = ascii(LDParserJSON.FALSE);
+	private static final byte[] NULL_BYTES = ascii(LDParserJSON.NULL);
+	private static final byte[] MIN_LONG_BYTES = ascii(Long.toString(Long.MIN_VALUE));
+
+	static {
+		for (int i = 0; i < ' '; i++)
+			ESCAPES[i] = 'u';
+		ESCAPES['\b'] = 'b';
+		ESCAPES['\f'] = 'f';
+		ESCAPES['\n'] = 'n';
+		ESCAPES['\r'] = 'r';
+		ESCAPES['\t'] = 't';
+		ESCAPES['"'] = '"';
+		ESCAPES['\\'] = '\\';
+	}
+
+	private final OutputStream out;
+	private final byte[] buf;
+	private int pos;
+
+	private final boolean insertLineBreaks;
+	private final byte[] lineSeparator;
+	private final byte[] indent;
+
+	/** Null unless set with {@link #setCache(LDSerializationCache)}. */
+	private LDSerializationCache cache;
+
+	// Everything written since the outermost container being cached began.
+	// Bytes up to captureBase in buf have been copied to captured.
+	private byte[] captured;
+	private int capturedLength;
+	private int captureBase;
+	private int captureDepth;
+
+	/**
+	 * Line separator followed by i indents, for each level i so far. May be
+	 * shared with other writers, so it's replaced, never changed.
+	 */
+	private byte[][] breaks;
+
+	// =================================
+	// Creation
+	// =================================
+
+	/**
+	 * @param buf
+	 *            the buffer to write into. Its size must be more than
+	 *            {@link #SLACK}.
+	 * @param indentStr
+	 *            one level of indentation. Ignored if insertLineBreaks is
+	 *            false.
+	 * @param lineBreaks
+	 *            from {@link #lineBreaks(String, int)} with the same
+	 *            indentStr. Not changed.
+	 */
+	JSONByteWriter(OutputStream out, byte[] buf, boolean insertLineBreaks, String indentStr,
+			byte[][] lineBreaks) {
+		this.out = out;
+		this.buf = buf;
+		this.pos = 0;
+		this.insertLineBreaks = insertLineBreaks;
+		this.lineSeparator = ascii(System.lineSeparator());
+		this.indent = ascii(indentStr);
+		this.breaks = lineBreaks;
+		this.cache = null;
+		this.captured = null;
+		this.capturedLength = 0;
+		this.captureBase = 0;
+		this.captureDepth = 0;
+	}
+
+	/**
+	 * Returns the line separator followed by i copies of indentStr, for each
+	 * level i below levels.
+	 */
+	static byte[][] lineBreaks(String indentStr, int levels) {
+		return extend(new byte[0][], ascii(System.lineSeparator()), ascii(indentStr), levels);
+	}
+
+	// =================================
+	// Operation
+	// =================================
+
+	void write(LDElement elem, int level) throws IOException {
+		switch (elem.getEType()) {
+		case BOOLEAN:
+			writeBoolean(((LDBoolean) elem).getValue());
+			break;
+		case DOUBLE:
+			writeDouble(((LDDouble) elem).getValue());
+			break;
+		case LONG:
+			writeLong(((LDLong) elem).getValue());
+			break;
+		case STRING:
+			writeString(((LDString) elem).getValue());
+			break;
+		case REFERENCE:
+			writeReference(((LDReference) elem).getValue());
+			break;
+		case VOID:
+			writeNull();
+			break;
+		case LIST:
+			if (cache != null)
+				writeCached(elem, level);
+			else
+				writeList((LDList) elem, level);
+			break;
+		case MAP:
+			if (cache != null)
+				writeCached(elem, level);
+			else
+				writeMap((LDMap) elem, level);
+			break;
+		case LONG_ARRAY:
+			writeLongArray((LDLongArray) elem, level);
+			break;
+		case DOUBLE_ARRAY:
+			writeDoubleArray((LDDoubleArray) elem, level);
+			break;
+		default:
+			throw new UnsupportedOperationException("No case found for type " + elem.getEType());
+		}
+	}
+
+	/**
+	 * Makes maps and lists be written from cache when they're held there,
+	 * and put there when they're not.
+	 *
+	 * @param cache
+	 *            made for a serializer with this writer's settings.
+	 */
+	void setCache(LDSerializationCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Writes what goes before an item or a closing bracket: a line break
+	 * indented to level if line breaks are on, else a space if afterItem.
+	 */
+	void writeBreak(boolean afterItem, int level) throws IOException {
+		if (insertLineBreaks)
+			writeBytes(lineBreak(level));
+		else if (afterItem)
+			writeByte(LDParserJSON.SPACE);
+	}
+
+	/**
+	 * Writes s as a quoted JSON string, escaping the same chars as
+	 * LDSerializerJSON.printJSONString.
+	 */
+	void writeString(String s) throws IOException {
+		writeByte(LDParserJSON.QUOTE);
+		int n = s.length();
+		int i = 0;
+		while (i < n) {
+			if (pos + SLACK > buf.length)
+				flushBuffer();
+			// Room for this many chars at up to 6 bytes each.
+			int end = Math.min(n, i + (buf.length - pos - SLACK) / 6 + 1);
+			for (; i < end; i++) {
+				char c = s.charAt(i);
+				if (c < 0x80 && ESCAPES[c] == 0) {
+					i = copyClean(s, i, end) - 1;
+					continue;
+				}
+				if (c < 0x80) {
+					byte esc = ESCAPES[c];
+					if (esc != 'u') {
+						buf[pos++] = LDParserJSON.ESC;
+						buf[pos++] = esc;
+					}
+					else
+						writeUnicodeEscape(c);
+				}
+				else if (c < 0xa0 || (c >= 0x2000 && c < 0x2100))
+					writeUnicodeEscape(c);
+				else if (c < 0x800) {
+					buf[pos++] = (byte) (0xc0 | (c >> 6));
+					buf[pos++] = (byte) (0x80 | (c & 0x3f));
+				}
+				else if (Character.isSurrogate(c)) {
+					char c2;
+					if (Character.isHighSurrogate(c) && i + 1 < n
+							&& Character.isLowSurrogate(c2 = s.charAt(i + 1))) {
+						int cp = Character.toCodePoint(c, c2);
+						buf[pos++] = (byte) (0xf0 | (cp >> 18));
+						buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+						buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+						buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+						i++;
+					}
+					else {
+						// Unpaired, as OutputStreamWriter writes it.
+						buf[pos++] = '?';
+					}
+				}
+				else {
+					buf[pos++] = (byte) (0xe0 | (c >> 12));
+					buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+					buf[pos++] = (byte) (0x80 | (c & 0x3f));
+				}
+			}
+		}
+		writeByte(LDParserJSON.QUOTE);
+	}
+
+	void writeLong(long x) throws IOException {
+		if (x == Long.MIN_VALUE) {
+			writeBytes(MIN_LONG_BYTES);
+			return;
+		}
+		if (pos + SLACK > buf.length)
+			flushBuffer();
+		if (x < 0) {
+			buf[pos++] = '-';
+			x = -x;
+		}
+		// Digits go in backwards, then get reversed.
+		int start = pos;
+		do {
+			buf[pos++] = (byte) ('0' + (int) (x % 10));
+			x /= 10;
+		} while (x != 0);
+		for (int i = start, j = pos - 1; i < j; i++, j--) {
+			byte b = buf[i];
+			buf[i] = buf[j];
+			buf[j] = b;
+		}
+	}
+
+	/**
+	 * Returns the index of the first char at or after start that can't be
+	 * written as a single byte, or end if there is none. Such chars are
+	 * non-ASCII, control chars, quotes and backslashes.
+	 * <p>
+	 * Most strings need no escaping, so this looks at four chars per step,
+	 * with the checks done on all four at once in the lanes of a long.
+	 */
+	static int cleanRun(String s, int start, int end) {
+		int i = start;
+		for (; i + 4 <= end; i += 4) {
+			long w = s.charAt(i) | ((long) s.charAt(i + 1) << 16)
+					| ((long) s.charAt(i + 2) << 32) | ((long) s.charAt(i + 3) << 48);
+			if (!isClean(w))
+				break;
+		}
+		for (; i < end; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x80 || ESCAPES[c] != 0)
+				break;
+		}
+		return i;
+	}
+
+	void writeBoolean(boolean x) throws IOException {
+		writeBytes(x ? TRUE_BYTES : FALSE_BYTES);
+	}
+
+	void writeDouble(double x) throws IOException {
+		writeAscii(Double.toString(x));
+	}
+
+	void writeReference(URI x) throws IOException {
+		writeString(LDParserJSON.REFERENCE_PREFIX + x.toString() + LDParserJSON.REFERENCE_SUFFIX);
+	}
+
+	void writeNull() throws IOException {
+		writeBytes(NULL_BYTES);
+	}
+
+	void writeByte(int b) throws IOException {
+		if (pos == buf.length)
+			flushBuffer();
+		buf[pos++] = (byte) b;
+	}
+
+	/**
+	 * Passes whatever is in the buffer to the stream. Doesn't flush the
+	 * stream.
+	 */
+	void flushBuffer() throws IOException {
+		if (pos > 0) {
+			if (captureDepth > 0) {
+				capture(buf, captureBase, pos - captureBase);
+				captureBase = 0;
+			}
+			out.write(buf, 0, pos);
+			pos = 0;
+		}
+	}
+
+	// =================================
+	// Private
+	// =================================
+
+	private void writeCached(LDElement container, int level) throws IOException {
+		// Compact text is the same at any level.
+		int cacheLevel = insertLineBreaks ? level : 0;
+		byte[] text = cache.get(container, cacheLevel);
+		if (text != null) {
+			writeBytes(text);
+			return;
+		}
+		int modCount = container.getModCount();
+		int start = startCapture();
+		if (container.getEType() == LDElement.EType.MAP)
+			writeMap((LDMap) container, level);
+		else
+			writeList((LDList) container, level);
+		cache.put(container, modCount, cacheLevel, endCapture(start));
+	}
+
+	/**
+	 * Starts recording what's written, if not already.
+	 *
+	 * @return where the text from here on starts in the recording.
+	 */
+	private int startCapture() {
+		if (captureDepth++ == 0) {
+			capturedLength = 0;
+			captureBase = pos;
+		}
+		return capturedLength + (pos - captureBase);
+	}
+
+	/**
+	 * Returns what's been written since start, and stops recording if this
+	 * ends the outermost container being recorded.
+	 */
+	private byte[] endCapture(int start) {
+		capture(buf, captureBase, pos - captureBase);
+		captureBase = pos;
+		captureDepth--;
+		return Arrays.copyOfRange(captured, start, capturedLength);
+	}
+
+	private void capture(byte[] b, int off, int len) {
+		if (captured == null)
+			captured = new byte[Math.max(4096, len)];
+		else if (capturedLength + len > captured.length)
+			captured = Arrays.copyOf(captured, Math.max(capturedLength + len,
+					captured.length * 2));
+		System.arraycopy(b, off, captured, capturedLength, len);
+		capturedLength += len;
+	}
+
+	private void writeList(LDList list, int level) throws IOException {
+		writeByte(LDParserJSON.LIST_PREFIX);
+		int n = list.getChildCount();
+		if (n > 0) {
+			int childLevel = level + 1;
+			writeBreak(false, childLevel);
+			write(list.getChild(0), childLevel);
+			for (int i = 1; i < n; i++) {
+				writeByte(LDParserJSON.ELEMENT_SEPARATOR);
+				writeBreak(true, childLevel);
+				write(list.getChild(i), childLevel);
+			}
+			writeBreak(false, level);
+		}
+		writeByte(LDParserJSON.LIST_SUFFIX);
+	}
+
+	private void writeLongArray(LDLongArray array, int level) throws IOException {
+		writeByte(LDParserJSON.LIST_PREFIX);
+		int n = array.getChildCount();
+		if (n > 0) {
+			int childLevel = level + 1;
+			writeBreak(false, childLevel);
+			writeLong(array.getValue(0));
+			for (int i = 1; i < n; i++) {
+				writeByte(LDParserJSON.ELEMENT_SEPARATOR);
+				writeBreak(true, childLevel);
+				writeLong(array.getValue(i));
+			}
+			writeBreak(false, level);
+		}
+		writeByte(LDParserJSON.LIST_SUFFIX);
+	}
+
+	private void writeDoubleArray(LDDoubleArray array, int level) throws IOException {
+		writeByte(LDParserJSON.LIST_PREFIX);
+		int n = array.getChildCount();
+		if (n > 0) {
+			int childLevel = level + 1;
+			writeBreak(false, childLevel);
+			writeDouble(array.getValue(0));
+			for (int i = 1; i < n; i++) {
+				writeByte(LDParserJSON.ELEMENT_SEPARATOR);
+				writeBreak(true, childLevel);
+				writeDouble(array.getValue(i));
+			}
+			writeBreak(false, level);
+		}
+		writeByte(LDParserJSON.LIST_SUFFIX);
+	}
+
+	private void writeMap(LDMap map, int level) throws IOException {
+		writeByte(LDParserJSON.MAP_PREFIX);
+		if (!map.isEmpty()) {
+			int childLevel = level + 1;
+			boolean first = true;
+			for (Map.Entry<String, LDElement> e : map.getChildEntries()) {
+				if (first) {
+					writeBreak(false, childLevel);
+					first = false;
+				}
+				else {
+					writeByte(LDParserJSON.ELEMENT_SEPARATOR);
+					writeBreak(true, childLevel);
+				}
+				writeString(e.getKey());
+				writeByte(LDParserJSON.KEY_VALUE_SEP_CHAR);
+				writeByte(LDParserJSON.SPACE);
+				write(e.getValue(), childLevel);
+			}
+			writeBreak(false, level);
+		}
+		writeByte(LDParserJSON.MAP_SUFFIX);
+	}
+
+	private byte[] lineBreak(int level) {
+		if (level >= breaks.length)
+			breaks = extend(breaks, lineSeparator, indent, Math.max(level + 1, breaks.length * 2));
+		return breaks[level];
+	}
+
+	private static byte[][] extend(byte[][] breaks, byte[] lineSeparator, byte[] indent,
+			int levels) {
+		int n = breaks.length;
+		byte[][] result = Arrays.copyOf(breaks, levels);
+		for (int i = n; i < levels; i++) {
+			byte[] b = Arrays.copyOf(lineSeparator, lineSeparator.length + i * indent.length);
+			for (int j = 0; j < i; j++)
+				System.arraycopy(indent, 0, b, lineSeparator.length + j * indent.length,
+						indent.length);
+			result[i] = b;
+		}
+		return result;
+	}
+
+	/**
+	 * Like {@link #cleanRun(String, int, int)}, but copies the chars as it
+	 * goes. There must be room in the buffer for them.
+	 *
+	 * @return the index of the first char not copied.
+	 */
+	private int copyClean(String s, int start, int end) {
+		byte[] b = buf;
+		int p = pos;
+		int i = start;
+		for (; i + 4 <= end; i += 4) {
+			long w = s.charAt(i) | ((long) s.charAt(i + 1) << 16)
+					| ((long) s.charAt(i + 2) << 32) | ((long) s.charAt(i + 3) << 48);
+			if (!isClean(w))
+				break;
+			b[p] = (byte) w;
+			b[p + 1] = (byte) (w >>> 16);
+			b[p + 2] = (byte) (w >>> 32);
+			b[p + 3] = (byte) (w >>> 48);
+			p += 4;
+		}
+		for (; i < end; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x80 || ESCAPES[c] != 0)
+				break;
+			b[p++] = (byte) c;
+		}
+		pos = p;
+		return i;
+	}
+
+	/**
+	 * Returns true if none of the four chars in w's lanes needs escaping or
+	 * is non-ASCII.
+	 */
+	private static boolean isClean(long w) {
+		if ((w & NON_ASCII) != 0)
+			return false;
+		// Each lane is now below 0x80, so these sums don't carry out of it.
+		// Bit 7 of a sum is clear exactly when its lane is below 0x20, or
+		// equal to the quote or backslash.
+		long x = (w + 0x60 * LANES) & ((w ^ (LDParserJSON.QUOTE * LANES)) + 0x7f * LANES)
+				& ((w ^ (LDParserJSON.ESC * LANES)) + 0x7f * LANES);
+		return (x & BIT7) == BIT7;
+	}
+
+	private void writeUnicodeEscape(char c) {
+		buf[pos++] = LDParserJSON.ESC;
+		buf[pos++] = 'u';
+		buf[pos++] = HEX[(c >> 12) & 0xf];
+		buf[pos++] = HEX[(c >> 8) & 0xf];
+		buf[pos++] = HEX[(c >> 4) & 0xf];
+		buf[pos++] = HEX[c & 0xf];
+	}
+
+	private void writeAscii(String s) throws IOException {
+		int n = s.length();
+		if (pos + n > buf.length)
+			flushBuffer();
+		if (n > buf.length) {
+			writeThrough(ascii(s));
+			return;
+		}
+		for (int i = 0; i < n; i++)
+			buf[pos++] = (byte) s.charAt(i);
+	}
+
+	private void writeBytes(byte[] b) throws IOException {
+		if (pos + b.length > buf.length)
+			flushBuffer();
+		if (b.length > buf.length) {
+			writeThrough(b);
+			return;
+		}
+		System.arraycopy(b, 0, buf, pos, b.length);
+		pos += b.length;
+	}
+
+	/**
+	 * Writes b to the stream, bypassing the buffer, which must be empty.
+	 */
+	private void writeThrough(byte[] b) throws IOException {
+		if (captureDepth > 0)
+			capture(b, 0, b.length);
+		out.write(b);
+	}
+
+	private static byte[] ascii(String s) {
+		byte[] b = new byte[s.length()];
+		for (int i = 0; i < b.length; i++)
+			b[i] = (byte) s.charAt(i);
+		return b;
+	}
+}
@@ -0,0 +1,336 @@
+package org.jehanson.livedata.serialization;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+import org.jehanson.livedata.LDElement;
+
+/**
+ * JSONScanner over a window of chars read from a Reader in large blocks.
+ * <p>
+ * The window is refilled only when a scan runs off its end. A token that
+ * straddles a refill is kept contiguous by moving it to the front of the
+ * window (growing the window if the token is bigger than it).
+ *
+ * @author jehanson
+ */
+final class JSONCharScanner extends JSONScanner {
+
+	// =================================
+	// Variables
+	// =================================
+
+	static final int DEFAULT_WINDOW_SIZE = 1 << 16;
+
+	private final Reader reader;
+	private char[] buf;
+	private int pos;
+	private int limit;
+
+	/**
+	 * Start of the token being scanned, or -1. Chars from here on survive a
+	 * refill.
+	 */
+	private int mark;
+
+	/** Absolute offset of buf[0]. */
+	private long base;
+
+	// Line accounting for the chars that have been dropped from the window.
+	private int droppedLines;
+	private long droppedLineStart;
+	private boolean droppedCR;
+
+	/** Scratch space for strings with escapes. Created on first use. */
+	private StringBuilder sbuf;
+
+	// =================================
+	// Creation
+	// =================================
+
+	JSONCharScanner(Reader reader) {
+		this(reader, DEFAULT_WINDOW_SIZE);
+	}
+
+	JSONCharScanner(Reader reader, int windowSize) {
+		if (reader == null)
+			throw new IllegalArgumentException("reader cannot be null");
+		this.reader = reader;
+		this.buf = new char[windowSize];
+		this.pos = 0;
+		this.limit = 0;
+		this.mark = -1;
+	}
+
+	// =================================
+	// Operation
+	// =================================
+
+	@Override
+	int nextClean() throws IOException {
+		for (;;) {
+			while (pos < limit) {
+				char c = buf[pos++];
+				if ((c > ' ' && c < 0x80) || !Character.isWhitespace(c))
+					return c;
+			}
+			if (!fill())
+				return -1;
+		}
+	}
+
+	@Override
+	String scanString() throws IOException, LDFormatException {
+		int start = pos;
+		for (;;) {
+			while (pos < limit) {
+				char c = buf[pos];
+				if (c == LDParserJSON.QUOTE) {
+					String s = new String(buf, start, pos - start);
+					pos++;
+					return s;
+				}
+				else if (c == LDParserJSON.ESC || c < ' ')
+					return scanEscapedString(start);
+				pos++;
+			}
+			mark = start;
+			boolean more = fill();
+			start = mark;
+			mark = -1;
+			if (!more)
+				throw error("Unterminated JSON string");
+		}
+	}
+
+	@Override
+	LDElement.EType scanScalar() throws IOException, LDFormatException {
+		int start = pos - 1;
+		for (;;) {
+			while (pos < limit) {
+				char c = buf[pos];
+				if (c < 0x80 ? delimiters[c] : Character.isWhitespace(c))
+					return decodeScalar(buf, start, pos);
+				pos++;
+			}
+			mark = start;
+			boolean more = fill();
+			start = mark;
+			mark = -1;
+			if (!more)
+				return decodeScalar(buf, start, pos);
+		}
+	}
+
+	@Override
+	void skipString() throws IOException, LDFormatException {
+		for (;;) {
+			while (pos < limit) {
+				char c = buf[pos++];
+				if (c == LDParserJSON.QUOTE)
+					return;
+				else if (c == LDParserJSON.ESC) {
+					if (pos == limit && !fill())
+						break;
+					pos++;
+				}
+			}
+			if (!fill())
+				throw error("Unterminated JSON string");
+		}
+	}
+
+	@Override
+	void skipScalar() throws IOException {
+		for (;;) {
+			while (pos < limit) {
+				char c = buf[pos];
+				if (c < 0x80 ? delimiters[c] : Character.isWhitespace(c))
+					return;
+				pos++;
+			}
+			if (!fill())
+				return;
+		}
+	}
+
+	@Override
+	void skipContainerBody() throws IOException, LDFormatException {
+		int level = 1;
+		for (;;) {
+			while (pos < limit) {
+				switch (buf[pos++]) {
+				case LDParserJSON.MAP_PREFIX:
+				case LDParserJSON.LIST_PREFIX:
+					level++;
+					break;
+				case LDParserJSON.MAP_SUFFIX:
+				case LDParserJSON.LIST_SUFFIX:
+					if (--level == 0)
+						return;
+					break;
+				case LDParserJSON.QUOTE:
+					skipString();
+					break;
+				}
+			}
+			if (!fill())
+				throw error("Premature end of file");
+		}
+	}
+
+	@Override
+	String location() {
+		int line = droppedLines + 1;
+		long lineStart = droppedLineStart;
+		boolean cr = droppedCR;
+		for (int i = 0; i < pos; i++) {
+			char c = buf[i];
+			if (c == '\n') {
+				if (!cr)
+					line++;
+				lineStart = base + i + 1;
+			}
+			else if (c == '\r') {
+				line++;
+				lineStart = base + i + 1;
+			}
+			cr = (c == '\r');
+		}
+		return "line " + line + " position " + (base + pos - lineStart);
+	}
+
+	@Override
+	void close() throws IOException {
+		reader.close();
+	}
+
+	// =================================
+	// Private
+	// =================================
+
+	/**
+	 * Finishes a string that contains escapes (or stray control chars),
+	 * starting over from its first char.
+	 */
+	private String scanEscapedString(int start) throws IOException, LDFormatException {
+		if (sbuf == null)
+			sbuf = new StringBuilder();
+		else
+			sbuf.setLength(0);
+		pos = start;
+		for (;;) {
+			int runStart = pos;
+			while (pos < limit) {
+				char c = buf[pos];
+				if (c == LDParserJSON.QUOTE || c == LDParserJSON.ESC || c < ' ')
+					break;
+				pos++;
+			}
+			sbuf.append(buf, runStart, pos - runStart);
+			if (pos == limit) {
+				if (!fill())
+					throw error("Unterminated JSON string");
+				continue;
+			}
+			char c = buf[pos++];
+			if (c == LDParserJSON.QUOTE)
+				return sbuf.toString();
+			else if (c == LDParserJSON.ESC)
+				sbuf.append(readEscape());
+			else if (LDParserJSON.CONTROL_CHARS.indexOf(c) >= 0)
+				throw error("Control char (" + c + ") in JSON string");
+			else
+				sbuf.append(c);
+		}
+	}
+
+	@Override
+	int scanChars() throws IOException, LDFormatException {
+		char[] cbuf = chars;
+		int n = 0;
+		for (;;) {
+			if (n == cbuf.length)
+				chars = cbuf = Arrays.copyOf(cbuf, n * 2);
+			char c = nextRaw();
+			if (c == LDParserJSON.QUOTE)
+				return n;
+			else if (c == LDParserJSON.ESC)
+				cbuf[n++] = readEscape();
+			else if (c < ' ' && LDParserJSON.CONTROL_CHARS.indexOf(c) >= 0)
+				throw error("Control char (" + c + ") in JSON string");
+			else
+				cbuf[n++] = c;
+		}
+	}
+
+	/** Reads the rest of an escape sequence whose backslash was consumed. */
+	private char readEscape() throws IOException, LDFormatException {
+		char c = nextRaw();
+		int x = simpleEscape(c);
+		if (x >= 0)
+			return (char) x;
+		if (c != 'u')
+			throw error("Illegal char \'" + c + "\' in escape sequence");
+		char c0 = nextRaw();
+		char c1 = nextRaw();
+		char c2 = nextRaw();
+		char c3 = nextRaw();
+		x = hexValue(c0, c1, c2, c3);
+		if (x < 0)
+			throw error("Expected 4 hex digits, got \"" + c0 + c1 + c2 + c3 + "\"");
+		return (char) x;
+	}
+
+	private char nextRaw() throws IOException, LDFormatException {
+		if (pos == limit && !fill())
+			throw error("Unterminated JSON string");
+		return buf[pos++];
+	}
+
+	/**
+	 * Reads another block from the reader. Drops the chars before the mark
+	 * (or before pos if there is no mark) to make room.
+	 *
+	 * @return false if the reader is exhausted.
+	 */
+	private boolean fill() throws IOException {
+		int keep = (mark >= 0) ? mark : pos;
+		if (keep > 0) {
+			countDroppedLines(keep);
+			System.arraycopy(buf, keep, buf, 0, limit - keep);
+			base += keep;
+			limit -= keep;
+			pos -= keep;
+			if (mark >= 0)
+				mark -= keep;
+		}
+		if (limit == buf.length)
+			buf = Arrays.copyOf(buf, buf.length * 2);
+		int n;
+		do {
+			n = reader.read(buf, limit, buf.length - limit);
+		} while (n == 0);
+		if (n < 0)
+			return false;
+		limit += n;
+		return true;
+	}
+
+	private void countDroppedLines(int end) {
+		for (int i = 0; i < end; i++) {
+			char c = buf[i];
+			if (c == '\n') {
+				if (!droppedCR)
+					droppedLines++;
+				droppedLineStart = base + i + 1;
+			}
+			else if (c == '\r') {
+				droppedLines++;
+				droppedLineStart = base + i + 1;
+			}
+			droppedCR = (c == '\r');
+		}
+	}
+}
@@ -0,0 +1,329 @@
+package org.jehanson.livedata.serialization;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jehanson.livedata.LDElement;
+import org.jehanson.livedata.elements.LDBoolean;
+import org.jehanson.livedata.elements.LDDouble;
+import org.jehanson.livedata.elements.LDLong;
+import org.jehanson.livedata.elements.LDMap;
+import org.jehanson.livedata.elements.LDReference;
+import org.jehanson.livedata.elements.LDString;
+import org.jehanson.livedata.elements.LDVoid;
+
+/**
+ * Turns the text of a JSON token into a value, and reports errors. This is
+ * what {@link JSONScanner}, which pulls its input, and
+ * {@link LDIncrementalParserJSON}, which has its input pushed to it, have in
+ * common.
+ *
+ * @author jehanson
+ */
+abstract class JSONDecoder {
+
+	private static final String clsName = JSONDecoder.class.getName();
+	private static final Logger logger = Logger.getLogger(clsName);
+
+	// =================================
+	// Variables
+	// =================================
+
+	/** Set by {@link #decodeScalar} when it returns BOOLEAN. */
+	protected boolean booleanValue;
+
+	/** Set by {@link #decodeScalar} when it returns LONG. */
+	protected long longValue;
+
+	/** Set by {@link #decodeScalar} when it returns DOUBLE. */
+	protected double doubleValue;
+
+	/** If not null, map keys are looked up here before a String is made. */
+	JSONStringTable keyTable;
+
+	/** If not null, string values are looked up here before a String is made. */
+	JSONStringTable valueTable;
+
+	/** If true, lists of numbers of one kind are read as numeric arrays. */
+	boolean numericArrays;
+
+	// =================================
+	// Operation
+	// =================================
+
+	/**
+	 * Describes the current input location, e.g. "line 3 position 14".
+	 * Called only when building error messages.
+	 */
+	abstract String location();
+
+	/**
+	 * @param map
+	 *            the map the key is for, or null for a plain LDMap not yet
+	 *            made.
+	 */
+	static boolean isValidKey(LDMap map, String key) {
+		if (map != null)
+			return map.isValidKey(key);
+		try {
+			LDMap.asMapKey(key);
+			return true;
+		}
+		catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Applies the reference convention: a string of the form
+	 * <code>"&lt;uri&gt;"</code> becomes an LDReference.
+	 */
+	LDElement stringElement(String s) {
+		URI refValue = referenceValue(s);
+		return (refValue == null) ? new LDString(s) : new LDReference(refValue);
+	}
+
+	/**
+	 * Returns the URI in a string that follows the reference convention, or
+	 * null if it does not.
+	 */
+	URI referenceValue(String s) {
+		URI refValue = null;
+		if (s.length() >= 2 && s.charAt(0) == LDParserJSON.REFERENCE_PREFIX
+				&& s.charAt(s.length() - 1) == LDParserJSON.REFERENCE_SUFFIX) {
+			String s2 = s.substring(1, s.length() - 1);
+			try {
+				refValue = new URI(s2);
+			}
+			catch (URISyntaxException e) {
+				logger.logp(Level.WARNING, clsName, "referenceValue", "Bad URI in reference: \""
+						+ s2 + "\"", e);
+			}
+		}
+		return refValue;
+	}
+
+	LDElement scalarElement(LDElement.EType type) {
+		switch (type) {
+		case BOOLEAN:
+			return new LDBoolean(booleanValue);
+		case LONG:
+			return new LDLong(longValue);
+		case DOUBLE:
+			return new LDDouble(doubleValue);
+		default:
+			return new LDVoid();
+		}
+	}
+
+	/**
+	 * Decodes the scalar in buf from start (inclusive) to end (exclusive)
+	 * without allocating. Plain JSON numbers and literals are handled here;
+	 * anything else goes to {@link #decodeScalar(String)}, so the result is
+	 * always the same as that method's. JSONByteScanner widens its scalars
+	 * into chars to come here, so this is the one copy of the grammar.
+	 */
+	LDElement.EType decodeScalar(char[] buf, int start, int end) throws LDFormatException {
+		int i = start;
+		char c = buf[i];
+		switch (c) {
+		case 't':
+		case 'T':
+			if (isLiteral(buf, start, end, LDParserJSON.TRUE)) {
+				booleanValue = true;
+				return LDElement.EType.BOOLEAN;
+			}
+			break;
+		case 'f':
+		case 'F':
+			if (isLiteral(buf, start, end, LDParserJSON.FALSE)) {
+				booleanValue = false;
+				return LDElement.EType.BOOLEAN;
+			}
+			break;
+		case 'n':
+		case 'N':
+			if (isLiteral(buf, start, end, LDParserJSON.NULL))
+				return LDElement.EType.VOID;
+			break;
+		default:
+			boolean negative = (c == '-');
+			if (negative || c == '+')
+				i++;
+
+			// Significand: up to MAX_DIGITS significant digits, leading
+			// zeros skipped.
+			long w = 0;
+			int digits = 0;
+			int sigDigits = 0;
+			int exp10 = 0;
+			for (; i < end && (c = buf[i]) >= '0' && c <= '9'; i++, digits++) {
+				if (w != 0 || c != '0') {
+					w = w * 10 + (c - '0');
+					sigDigits++;
+				}
+			}
+			boolean isFloat = false;
+			if (i < end && c == '.') {
+				isFloat = true;
+				for (i++; i < end && (c = buf[i]) >= '0' && c <= '9'; i++, digits++) {
+					if (w != 0 || c != '0') {
+						w = w * 10 + (c - '0');
+						sigDigits++;
+					}
+					exp10--;
+				}
+			}
+			if (i < end && (c == 'e' || c == 'E')) {
+				isFloat = true;
+				i++;
+				boolean expNegative = false;
+				if (i < end && ((c = buf[i]) == '-' || c == '+')) {
+					expNegative = (c == '-');
+					i++;
+				}
+				int exp = 0;
+				int expStart = i;
+				for (; i < end && (c = buf[i]) >= '0' && c <= '9'; i++) {
+					if (exp < 100000)
+						exp = exp * 10 + (c - '0');
+				}
+				if (i == expStart)
+					break;
+				exp10 += expNegative ? -exp : exp;
+			}
+			if (i != end || digits == 0 || sigDigits > JSONNumbers.MAX_DIGITS)
+				break;
+			if (!isFloat) {
+				if (sigDigits >= JSONNumbers.MAX_DIGITS)
+					break;
+				longValue = negative ? -w : w;
+				return LDElement.EType.LONG;
+			}
+			double d = JSONNumbers.toDouble(w, exp10, negative);
+			if (d != d)
+				break;
+			doubleValue = d;
+			return LDElement.EType.DOUBLE;
+		}
+		return decodeScalar(new String(buf, start, end - start));
+	}
+
+	/**
+	 * Applies the same heuristics as
+	 * {@link LDParserJSON.Tokenizer#readSimpleObj()} to the text of a scalar.
+	 * This is the slow path; it allocates.
+	 */
+	LDElement.EType decodeScalar(String s) throws LDFormatException {
+		if (s.equalsIgnoreCase(LDParserJSON.TRUE)) {
+			booleanValue = true;
+			return LDElement.EType.BOOLEAN;
+		}
+		else if (s.equalsIgnoreCase(LDParserJSON.FALSE)) {
+			booleanValue = false;
+			return LDElement.EType.BOOLEAN;
+		}
+		else if (s.equalsIgnoreCase(LDParserJSON.NULL)) {
+			return LDElement.EType.VOID;
+		}
+		else if (LDParserJSON.Tokenizer.containsAny(s, LDParserJSON.FLOAT_HINT_CHARS)) {
+			try {
+				doubleValue = Double.parseDouble(s);
+				return LDElement.EType.DOUBLE;
+			}
+			catch (NumberFormatException err) {
+				throw error("Error attempting to parse floating-point value from \"" + s + "\"",
+						err);
+			}
+		}
+		else {
+			try {
+				longValue = Long.parseLong(s);
+				return LDElement.EType.LONG;
+			}
+			catch (NumberFormatException err) {
+				throw error("Error attempting to parse integer value from \"" + s + "\"", err);
+			}
+		}
+	}
+
+	// =================================
+	// Helpers
+	// =================================
+
+	/**
+	 * Checks for lit, ignoring ASCII case. lit must be lower case.
+	 */
+	private static boolean isLiteral(char[] buf, int start, int end, String lit) {
+		int n = lit.length();
+		if (end - start != n)
+			return false;
+		for (int i = 0; i < n; i++) {
+			if ((buf[start + i] | 0x20) != lit.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Translates the char following a backslash in a JSON string.
+	 *
+	 * @return the translated char, or -1 if c is 'u' or is not a valid escape.
+	 */
+	static int simpleEscape(int c) {
+		switch (c) {
+		case 'b':
+			return '\b';
+		case 'f':
+			return '\f';
+		case 'n':
+			return '\n';
+		case 'r':
+			return '\r';
+		case 't':
+			return '\t';
+		case '"':
+		case '\\':
+		case '/':
+			return c;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * Decodes the 4 hex digits of a \\u escape, or returns -1 if they are not
+	 * all hex digits.
+	 */
+	static int hexValue(int c0, int c1, int c2, int c3) {
+		int d0 = Character.digit(c0, 16);
+		int d1 = Character.digit(c1, 16);
+		int d2 = Character.digit(c2, 16);
+		int d3 = Character.digit(c3, 16);
+		if ((d0 | d1 | d2 | d3) < 0)
+			return -1;
+		return (d0 << 12) | (d1 << 8) | (d2 << 4) | d3;
+	}
+
+	LDFormatException error(String msg) {
+		return new LDFormatException(msg + ": near " + location());
+	}
+
+	LDFormatException error(String msg, Throwable cause) {
+		return new LDFormatException(msg + ": near " + location(), cause);
+	}
+
+	static String expected(char c0, int got) {
+		return "Expected \'" + c0 + "\', got " + describe(got);
+	}
+
+	static String expected(char c0, char c1, int got) {
+		return "Expected \'" + c0 + "\' or \'" + c1 + "\', got " + describe(got);
+	}
+
+	static String describe(int c) {
+		return (c < 0) ? "end of file" : "\'" + (char) c + "\'";
+	}
+}
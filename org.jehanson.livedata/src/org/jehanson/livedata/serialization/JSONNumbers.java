@@ -0,0 +1,166 @@
+package org.jehanson.livedata.serialization;
+
+import java.math.BigInteger;
+
+/**
+ * Converts a decimal significand and exponent to the nearest double without
+ * going through a String.
+ * <p>
+ * Tries Clinger's fast path first (exact when both parts fit in a double),
+ * then the Eisel-Lemire algorithm, following the Go standard library's
+ * strconv/eisel_lemire.go. Eisel-Lemire gives up on the few inputs it can't
+ * round with certainty, and on subnormals; {@link #toDouble} then returns
+ * NaN, and the caller falls back to Double.parseDouble.
+ *
+ * @author jehanson
+ */
+final class JSONNumbers {
+
+	// =================================
+	// Variables
+	// =================================
+
+	/** Digits in the biggest significand {@link #toDouble} accepts. */
+	static final int MAX_DIGITS = 19;
+
+	private static final int MIN_EXP10 = -348;
+	private static final int MAX_EXP10 = 347;
+
+	/**
+	 * 10^i for the exponents in Clinger's fast path. All are exact doubles.
+	 */
+	private static final double[] SMALL_POWERS = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7,
+			1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21,
+			1e22 };
+
+	// For each exponent from MIN_EXP10 to MAX_EXP10, the top 128 bits of 10^e
+	// scaled to have its high bit set, rounded down.
+	private static final long[] POWERS_HI = new long[MAX_EXP10 - MIN_EXP10 + 1];
+	private static final long[] POWERS_LO = new long[MAX_EXP10 - MIN_EXP10 + 1];
+
+	static {
+		BigInteger ten = BigInteger.TEN;
+		for (int e = MIN_EXP10; e <= MAX_EXP10; e++) {
+			BigInteger m;
+			if (e >= 0) {
+				m = ten.pow(e);
+				int shift = 128 - m.bitLength();
+				m = (shift >= 0) ? m.shiftLeft(shift) : m.shiftRight(-shift);
+			}
+			else {
+				BigInteger d = ten.pow(-e);
+				m = BigInteger.ONE.shiftLeft(d.bitLength() + 128).divide(d);
+				m = m.shiftRight(m.bitLength() - 128);
+			}
+			POWERS_HI[e - MIN_EXP10] = m.shiftRight(64).longValue();
+			POWERS_LO[e - MIN_EXP10] = m.longValue();
+		}
+	}
+
+	// =================================
+	// Creation
+	// =================================
+
+	private JSONNumbers() {
+	}
+
+	// =================================
+	// Operation
+	// =================================
+
+	/**
+	 * Returns the double nearest to w * 10^exp10, negated if negative.
+	 *
+	 * @param w
+	 *            the significand, as an unsigned long of at most
+	 *            {@link #MAX_DIGITS} digits.
+	 * @return the double, or NaN if the caller needs to fall back to
+	 *         Double.parseDouble.
+	 */
+	static double toDouble(long w, int exp10, boolean negative) {
+		if (w == 0)
+			return negative ? -0.0 : 0.0;
+		if (w >= 0 && w <= (1L << 53) && exp10 >= -22 && exp10 <= 22) {
+			double d = (double) w;
+			d = (exp10 < 0) ? d / SMALL_POWERS[-exp10] : d * SMALL_POWERS[exp10];
+			return negative ? -d : d;
+		}
+		if (exp10 < MIN_EXP10)
+			return negative ? -0.0 : 0.0;
+		if (exp10 > MAX_EXP10)
+			return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+		return eiselLemire(w, exp10, negative);
+	}
+
+	// =================================
+	// Private
+	// =================================
+
+	private static double eiselLemire(long man, int exp10, boolean negative) {
+		// Normalization.
+		int clz = Long.numberOfLeadingZeros(man);
+		man <<= clz;
+		long retExp2 = (((217706L * exp10) >> 16) + 64 + 1023) - clz;
+
+		// Multiplication.
+		int idx = exp10 - MIN_EXP10;
+		long xHi = multiplyHigh(man, POWERS_HI[idx]);
+		long xLo = man * POWERS_HI[idx];
+
+		// Wider approximation.
+		if ((xHi & 0x1FF) == 0x1FF && Long.compareUnsigned(xLo + man, man) < 0) {
+			long yHi = multiplyHigh(man, POWERS_LO[idx]);
+			long yLo = man * POWERS_LO[idx];
+			long mergedHi = xHi;
+			long mergedLo = xLo + yHi;
+			if (Long.compareUnsigned(mergedLo, xLo) < 0)
+				mergedHi++;
+			if ((mergedHi & 0x1FF) == 0x1FF && mergedLo + 1 == 0
+					&& Long.compareUnsigned(yLo + man, man) < 0)
+				return Double.NaN;
+			xHi = mergedHi;
+			xLo = mergedLo;
+		}
+
+		// Shifting to 54 bits.
+		long msb = xHi >>> 63;
+		long retMantissa = xHi >>> (msb + 9);
+		retExp2 -= 1 ^ msb;
+
+		// Half-way ambiguity.
+		if (xLo == 0 && (xHi & 0x1FF) == 0 && (retMantissa & 3) == 1)
+			return Double.NaN;
+
+		// From 54 to 53 bits.
+		retMantissa += retMantissa & 1;
+		retMantissa >>>= 1;
+		if ((retMantissa >>> 53) > 0) {
+			retMantissa >>>= 1;
+			retExp2 += 1;
+		}
+
+		// Subnormal, infinite or NaN: let the fallback handle it.
+		if (retExp2 <= 0 || retExp2 >= 0x7FF)
+			return Double.NaN;
+		long retBits = (retExp2 << 52) | (retMantissa & 0x000FFFFFFFFFFFFFL);
+		if (negative)
+			retBits |= 0x8000000000000000L;
+		return Double.longBitsToDouble(retBits);
+	}
+
+	/**
+	 * The high 64 bits of the unsigned 128-bit product x * y.
+	 */
+	private static long multiplyHigh(long x, long y) {
+		long x0 = x & 0xFFFFFFFFL;
+		long x1 = x >>> 32;
+		long y0 = y & 0xFFFFFFFFL;
+		long y1 = y >>> 32;
+		long p00 = x0 * y0;
+		long p01 = x0 * y1;
+		long p10 = x1 * y0;
+		long p11 = x1 * y1;
+		long middle = p10 + (p00 >>> 32) + (p01 & 0xFFFFFFFFL);
+		return p11 + (middle >>> 32) + (p01 >>> 32);
+	}
+}
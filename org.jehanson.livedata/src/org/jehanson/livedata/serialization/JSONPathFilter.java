@@ -0,0 +1,277 @@
+package org.jehanson.livedata.serialization;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.jehanson.livedata.LDElement;
+import org.jehanson.livedata.LDPath;
+import org.jehanson.livedata.elements.LDList;
+import org.jehanson.livedata.elements.LDMap;
+
+/**
+ * Reads only the parts of a document that lie on or under a set of paths.
+ * <p>
+ * The paths are merged into a trie. A segment "*" matches any key or index;
+ * its subtree is merged into every sibling with an exact segment, so each
+ * key needs one lookup. Keys are matched against the scanner's scratch chars,
+ * and anything that doesn't match is skipped without building Strings or
+ * elements.
+ * <p>
+ * A container appears in the result only if something under it was
+ * selected. List elements keep their indices, with LDVoid filling the gaps.
+ *
+ * @author jehanson
+ */
+final class JSONPathFilter {
+
+	// =================================
+	// Inner classes
+	// =================================
+
+	private static final class Node {
+
+		/** Everything below this node is selected. */
+		boolean all;
+
+		// Children with exact segments, and their segments as list indices
+		// (-1 if not an index).
+		int count;
+		String[] keys = new String[2];
+		int[] indices = new int[2];
+		Node[] nodes = new Node[2];
+
+		Node wildcard;
+
+		Node child(String key) {
+			for (int i = 0; i < count; i++) {
+				if (keys[i].equals(key))
+					return nodes[i];
+			}
+			if (count == keys.length) {
+				keys = Arrays.copyOf(keys, count * 2);
+				indices = Arrays.copyOf(indices, count * 2);
+				nodes = Arrays.copyOf(nodes, count * 2);
+			}
+			keys[count] = key;
+			indices[count] = asIndex(key);
+			nodes[count] = new Node();
+			return nodes[count++];
+		}
+
+		Node wildcard() {
+			if (wildcard == null)
+				wildcard = new Node();
+			return wildcard;
+		}
+
+		Node find(char[] chars, int len) {
+			for (int i = 0; i < count; i++) {
+				String k = keys[i];
+				if (k.length() == len && matches(k, chars, len))
+					return nodes[i];
+			}
+			return wildcard;
+		}
+
+		Node find(int index) {
+			for (int i = 0; i < count; i++) {
+				if (indices[i] == index)
+					return nodes[i];
+			}
+			return wildcard;
+		}
+
+		/** Adds everything selected under from to this node. */
+		void merge(Node from) {
+			if (from.all)
+				all = true;
+			for (int i = 0; i < from.count; i++)
+				child(from.keys[i]).merge(from.nodes[i]);
+			if (from.wildcard != null)
+				wildcard().merge(from.wildcard);
+		}
+
+		/**
+		 * Folds the wildcard into the exact children, all the way down.
+		 */
+		void complete() {
+			if (all) {
+				count = 0;
+				wildcard = null;
+				return;
+			}
+			if (wildcard != null) {
+				for (int i = 0; i < count; i++)
+					nodes[i].merge(wildcard);
+				wildcard.complete();
+			}
+			for (int i = 0; i < count; i++)
+				nodes[i].complete();
+		}
+
+		private static boolean matches(String k, char[] chars, int len) {
+			for (int i = 0; i < len; i++) {
+				if (k.charAt(i) != chars[i])
+					return false;
+			}
+			return true;
+		}
+
+		private static int asIndex(String s) {
+			int n = s.length();
+			if (n == 0 || n > 9)
+				return -1;
+			int x = 0;
+			for (int i = 0; i < n; i++) {
+				char c = s.charAt(i);
+				if (c < '0' || c > '9')
+					return -1;
+				x = x * 10 + (c - '0');
+			}
+			return x;
+		}
+	}
+
+	// =================================
+	// Variables
+	// =================================
+
+	static final String WILDCARD = "*";
+
+	private final Node root;
+
+	// =================================
+	// Creation
+	// =================================
+
+	/**
+	 * @param paths
+	 *            Not null. Empty segments, such as the one before a leading
+	 *            "/" in {@link LDPath#create(String)}, are ignored.
+	 */
+	JSONPathFilter(Collection<LDPath> paths) {
+		if (paths == null)
+			throw new IllegalArgumentException("paths cannot be null");
+		this.root = new Node();
+		for (LDPath path : paths) {
+			if (path == null)
+				throw new IllegalArgumentException("paths cannot contain null");
+			Node node = root;
+			for (Object segment : path.getSegments()) {
+				String s = segment.toString();
+				if (s.isEmpty())
+					continue;
+				node = s.equals(WILDCARD) ? node.wildcard() : node.child(s);
+			}
+			node.all = true;
+		}
+		root.complete();
+	}
+
+	// =================================
+	// Operation
+	// =================================
+
+	/**
+	 * Reads the selected parts of the map that makes up the whole input into
+	 * the given one.
+	 */
+	void readMapContents(JSONScanner scanner, LDMap map) throws IOException, LDFormatException {
+		int c = scanner.nextClean();
+		if (c != LDParserJSON.MAP_PREFIX)
+			throw scanner.error(JSONScanner.expected(LDParserJSON.MAP_PREFIX, c));
+		if (root.all)
+			scanner.readMapBody(map);
+		else
+			readMapBody(scanner, root, map);
+	}
+
+	// =================================
+	// Private
+	// =================================
+
+	/**
+	 * Reads the selected parts of a value.
+	 *
+	 * @param c
+	 *            the first char of the value, already consumed.
+	 * @return the value, or null if nothing in it was selected.
+	 */
+	private LDElement readValue(JSONScanner scanner, Node node, int c) throws IOException,
+			LDFormatException {
+		if (node.all)
+			return scanner.readValue(c);
+		if (c == LDParserJSON.MAP_PREFIX) {
+			LDMap map = readMapBody(scanner, node, new LDMap());
+			return map.isEmpty() ? null : map;
+		}
+		else if (c == LDParserJSON.LIST_PREFIX) {
+			LDList list = readListBody(scanner, node, new LDList());
+			return list.isEmpty() ? null : list;
+		}
+		else {
+			// A scalar can't have anything under it.
+			scanner.skipValue(c);
+			return null;
+		}
+	}
+
+	private LDMap readMapBody(JSONScanner scanner, Node node, LDMap map) throws IOException,
+			LDFormatException {
+		int c = scanner.nextClean();
+		if (c == LDParserJSON.MAP_SUFFIX)
+			return map;
+		for (;;) {
+			if (c != LDParserJSON.QUOTE)
+				throw scanner.error(JSONScanner.expected(LDParserJSON.QUOTE, c));
+			int len = scanner.scanChars();
+			Node child = node.find(scanner.chars, len);
+			String key = (child == null) ? null : new String(scanner.chars, 0, len);
+			c = scanner.nextClean();
+			if (c != LDParserJSON.KEY_VALUE_SEP_CHAR)
+				throw scanner.error(JSONScanner.expected(LDParserJSON.KEY_VALUE_SEP_CHAR, c));
+			c = scanner.nextClean();
+			if (child == null)
+				scanner.skipValue(c);
+			else {
+				if (!map.isValidKey(key))
+					throw scanner.error("Invalid key: " + key);
+				LDElement value = readValue(scanner, child, c);
+				if (value != null)
+					map.putChild(key, value);
+			}
+			c = scanner.nextClean();
+			if (c == LDParserJSON.MAP_SUFFIX)
+				return map;
+			else if (c != LDParserJSON.ELEMENT_SEPARATOR)
+				throw scanner.error(JSONScanner.expected(LDParserJSON.ELEMENT_SEPARATOR,
+						LDParserJSON.MAP_SUFFIX, c));
+			c = scanner.nextClean();
+		}
+	}
+
+	private LDList readListBody(JSONScanner scanner, Node node, LDList list) throws IOException,
+			LDFormatException {
+		int c = scanner.nextClean();
+		if (c == LDParserJSON.LIST_SUFFIX)
+			return list;
+		for (int i = 0;; i++) {
+			Node child = node.find(i);
+			if (child == null)
+				scanner.skipValue(c);
+			else {
+				LDElement value = readValue(scanner, child, c);
+				if (value != null)
+					list.putChild(i, value);
+			}
+			c = scanner.nextClean();
+			if (c == LDParserJSON.LIST_SUFFIX)
+				return list;
+			else if (c != LDParserJSON.ELEMENT_SEPARATOR)
+				throw scanner.error(JSONScanner.expected(LDParserJSON.ELEMENT_SEPARATOR,
+						LDParserJSON.LIST_SUFFIX, c));
+			c = scanner.nextClean();
+		}
+	}
+}
@@ -0,0 +1,453 @@
+package org.jehanson.livedata.serialization;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.jehanson.livedata.LDElement;
+import org.jehanson.livedata.elements.LDDouble;
+import org.jehanson.livedata.elements.LDDoubleArray;
+import org.jehanson.livedata.elements.LDList;
+import org.jehanson.livedata.elements.LDLong;
+import org.jehanson.livedata.elements.LDLongArray;
+import org.jehanson.livedata.elements.LDMap;
+
+/**
+ * Block-buffered replacement for {@link LDParserJSON.Tokenizer}.
+ * <p>
+ * This class holds the grammar: it turns tokens into LDElements, using
+ * {@link JSONDecoder} for the tokens' values. Subclasses own the input window
+ * and implement the scanning primitives with plain index arithmetic over an
+ * array, so there is no per-char method call. Line and
+ * position are not tracked while scanning; subclasses work them out only
+ * when an error message needs them.
+ *
+ * @author jehanson
+ */
+abstract class JSONScanner extends JSONDecoder {
+
+	// =================================
+	// Variables
+	// =================================
+
+	/**
+	 * ASCII chars that end a scalar. Non-ASCII chars are checked with
+	 * isWhitespace, or never end a scalar in the byte scanner.
+	 */
+	static final boolean[] delimiters = new boolean[128];
+
+	static {
+		for (int i = 0; i <= ' '; i++)
+			delimiters[i] = true;
+		delimiters[LDParserJSON.ELEMENT_SEPARATOR] = true;
+		delimiters[LDParserJSON.KEY_VALUE_SEP_CHAR] = true;
+		delimiters[LDParserJSON.LIST_SUFFIX] = true;
+		delimiters[LDParserJSON.MAP_SUFFIX] = true;
+	}
+
+	/** Filled by {@link #scanChars()}. Subclasses may grow it. */
+	protected char[] chars = new char[64];
+
+	// Children of the containers being read, innermost last. A container's
+	// children are collected here and handed to its constructor when it ends,
+	// so it is built at its final size and without events. Keys are null for
+	// a list.
+	private String[] keyStack = new String[64];
+	private LDElement[] valueStack = new LDElement[64];
+	private int stackTop;
+
+	// Values of the numeric array being read. Reused, since arrays don't
+	// nest.
+	private long[] longs = new long[64];
+	private double[] doubles = new double[64];
+
+	// =================================
+	// Scanning primitives
+	// =================================
+
+	/**
+	 * Skips whitespace, then consumes and returns the next char.
+	 *
+	 * @return the first non-whitespace char, or -1 at end of input.
+	 * @throws IOException
+	 */
+	abstract int nextClean() throws IOException;
+
+	/**
+	 * Reads the rest of a JSON string whose opening quote has just been
+	 * consumed. Consumes the closing quote.
+	 *
+	 * @return the unescaped string value.
+	 * @throws IOException
+	 * @throws LDFormatException
+	 */
+	abstract String scanString() throws IOException, LDFormatException;
+
+	/**
+	 * Like {@link #scanString()}, but leaves the unescaped chars at the start
+	 * of {@link #chars} instead of making a String.
+	 *
+	 * @return the number of chars.
+	 * @throws IOException
+	 * @throws LDFormatException
+	 */
+	abstract int scanChars() throws IOException, LDFormatException;
+
+	/**
+	 * Reads the rest of a non-string scalar (number, true, false, null) whose
+	 * first char has just been consumed. Leaves the delimiter that ended it
+	 * unconsumed.
+	 *
+	 * @return the type of the scalar. Its value is left in
+	 *         {@link #booleanValue}, {@link #longValue} or
+	 *         {@link #doubleValue}.
+	 * @throws IOException
+	 * @throws LDFormatException
+	 */
+	abstract LDElement.EType scanScalar() throws IOException, LDFormatException;
+
+	/**
+	 * Skips the rest of a JSON string whose opening quote has just been
+	 * consumed, without decoding it.
+	 */
+	abstract void skipString() throws IOException, LDFormatException;
+
+	/**
+	 * Skips the rest of a non-string scalar whose first char has just been
+	 * consumed, without decoding it.
+	 */
+	abstract void skipScalar() throws IOException, LDFormatException;
+
+	/**
+	 * Skips the rest of a map or list whose opening brace or bracket has just
+	 * been consumed, up to and including the matching close. This only
+	 * balances brackets and quotes; it does not check the skipped text for
+	 * other errors.
+	 */
+	abstract void skipContainerBody() throws IOException, LDFormatException;
+
+	abstract void close() throws IOException;
+
+	// =================================
+	// Grammar
+	// =================================
+
+	LDElement readElement() throws IOException, LDFormatException {
+		return readValue(nextClean());
+	}
+
+	/**
+	 * @param c
+	 *            the first char of the value, already consumed.
+	 */
+	LDElement readValue(int c) throws IOException, LDFormatException {
+		switch (c) {
+		case LDParserJSON.MAP_PREFIX:
+			return readMap();
+		case LDParserJSON.LIST_PREFIX:
+			return readList();
+		case LDParserJSON.QUOTE:
+			if (valueTable == null)
+				return stringElement(scanString());
+			return stringElement(valueTable.intern(chars, scanChars()));
+		case LDParserJSON.ELEMENT_SEPARATOR:
+		case LDParserJSON.KEY_VALUE_SEP_CHAR:
+		case LDParserJSON.LIST_SUFFIX:
+		case LDParserJSON.MAP_SUFFIX:
+			throw error("Unexpected " + describe(c));
+		default:
+			if (c < 0)
+				throw error("Premature end of file");
+			return scalarElement(scanScalar());
+		}
+	}
+
+	/**
+	 * Skips a value without building anything.
+	 *
+	 * @param c
+	 *            the first char of the value, already consumed.
+	 */
+	void skipValue(int c) throws IOException, LDFormatException {
+		switch (c) {
+		case LDParserJSON.MAP_PREFIX:
+		case LDParserJSON.LIST_PREFIX:
+			skipContainerBody();
+			break;
+		case LDParserJSON.QUOTE:
+			skipString();
+			break;
+		case LDParserJSON.ELEMENT_SEPARATOR:
+		case LDParserJSON.KEY_VALUE_SEP_CHAR:
+		case LDParserJSON.LIST_SUFFIX:
+		case LDParserJSON.MAP_SUFFIX:
+			throw error("Unexpected " + describe(c));
+		default:
+			if (c < 0)
+				throw error("Premature end of file");
+			skipScalar();
+		}
+	}
+
+	void readMapContents(LDMap map) throws IOException, LDFormatException {
+		int c = nextClean();
+		if (c != LDParserJSON.MAP_PREFIX)
+			throw error(expected(LDParserJSON.MAP_PREFIX, c));
+		readMapBody(map);
+	}
+
+	/**
+	 * Reads key/value pairs into map. The opening brace has already been
+	 * consumed; this consumes the closing one.
+	 */
+	LDMap readMapBody(LDMap map) throws IOException, LDFormatException {
+		int c = nextClean();
+		if (c == LDParserJSON.MAP_SUFFIX)
+			return map;
+		for (;;) {
+			String key = readValidKey(c, map);
+			ElementAccess.putChildUnchecked(map, key, readValue(nextClean()));
+			c = nextClean();
+			if (c == LDParserJSON.MAP_SUFFIX)
+				return map;
+			else if (c != LDParserJSON.ELEMENT_SEPARATOR)
+				throw error(expected(LDParserJSON.ELEMENT_SEPARATOR, LDParserJSON.MAP_SUFFIX, c));
+			c = nextClean();
+		}
+	}
+
+	/**
+	 * Reads elements into list. The opening bracket has already been consumed;
+	 * this consumes the closing one.
+	 */
+	LDList readListBody(LDList list) throws IOException, LDFormatException {
+		int c = nextClean();
+		if (c == LDParserJSON.LIST_SUFFIX)
+			return list;
+		for (;;) {
+			list.addChild(readValue(c));
+			c = nextClean();
+			if (c == LDParserJSON.LIST_SUFFIX)
+				return list;
+			else if (c != LDParserJSON.ELEMENT_SEPARATOR)
+				throw error(expected(LDParserJSON.ELEMENT_SEPARATOR, LDParserJSON.LIST_SUFFIX, c));
+			c = nextClean();
+		}
+	}
+
+	/**
+	 * Reads a new map. The opening brace has already been consumed; this
+	 * consumes the closing one.
+	 */
+	private LDMap readMap() throws IOException, LDFormatException {
+		int base = stackTop;
+		try {
+			int c = nextClean();
+			if (c != LDParserJSON.MAP_SUFFIX) {
+				for (;;) {
+					String key = readValidKey(c, null);
+					push(key, readValue(nextClean()));
+					c = nextClean();
+					if (c == LDParserJSON.MAP_SUFFIX)
+						break;
+					else if (c != LDParserJSON.ELEMENT_SEPARATOR)
+						throw error(expected(LDParserJSON.ELEMENT_SEPARATOR,
+								LDParserJSON.MAP_SUFFIX, c));
+					c = nextClean();
+				}
+			}
+			return ElementAccess.createMap(keyStack, valueStack, base, stackTop - base);
+		}
+		finally {
+			pop(base);
+		}
+	}
+
+	/**
+	 * Reads a new list, or a numeric array if {@link #numericArrays} is set.
+	 * The opening bracket has already been consumed; this consumes the
+	 * closing one.
+	 */
+	private LDElement readList() throws IOException, LDFormatException {
+		return readList(nextClean());
+	}
+
+	/**
+	 * Like {@link #readList()}, when the first char after the opening
+	 * bracket has been consumed too.
+	 * 
+	 * @param c
+	 *            that char.
+	 */
+	LDElement readList(int c) throws IOException, LDFormatException {
+		int base = stackTop;
+		try {
+			if (c != LDParserJSON.LIST_SUFFIX) {
+				for (;;) {
+					if (numericArrays && stackTop == base && isScalarStart(c)) {
+						LDElement array = readNumbers();
+						if (array != null)
+							return array;
+					}
+					else
+						push(null, readValue(c));
+					c = nextClean();
+					if (c == LDParserJSON.LIST_SUFFIX)
+						break;
+					else if (c != LDParserJSON.ELEMENT_SEPARATOR)
+						throw error(expected(LDParserJSON.ELEMENT_SEPARATOR,
+								LDParserJSON.LIST_SUFFIX, c));
+					c = nextClean();
+				}
+			}
+			return ElementAccess.createList(valueStack, base, stackTop - base);
+		}
+		finally {
+			pop(base);
+		}
+	}
+
+	/**
+	 * Reads a list whose first element, a scalar, has had its first char
+	 * consumed, for as long as its elements are numbers of one kind.
+	 *
+	 * @return the numeric array, with the closing bracket consumed. Or null
+	 *         if the list turns out not to be one, in which case the elements
+	 *         read so far, up to and including the first that doesn't fit,
+	 *         have been pushed as ordinary elements.
+	 */
+	private LDElement readNumbers() throws IOException, LDFormatException {
+		LDElement.EType kind = scanScalar();
+		LDElement.EType type = kind;
+		int n = 0;
+		while (type == kind
+				&& (kind == LDElement.EType.LONG || kind == LDElement.EType.DOUBLE)) {
+			if (kind == LDElement.EType.LONG) {
+				if (n == longs.length)
+					longs = Arrays.copyOf(longs, n * 2);
+				longs[n++] = longValue;
+			}
+			else {
+				if (n == doubles.length)
+					doubles = Arrays.copyOf(doubles, n * 2);
+				doubles[n++] = doubleValue;
+			}
+			int c = nextClean();
+			if (c == LDParserJSON.LIST_SUFFIX) {
+				if (kind == LDElement.EType.LONG)
+					return new LDLongArray(longs, 0, n);
+				return new LDDoubleArray(doubles, 0, n);
+			}
+			else if (c != LDParserJSON.ELEMENT_SEPARATOR)
+				throw error(expected(LDParserJSON.ELEMENT_SEPARATOR, LDParserJSON.LIST_SUFFIX, c));
+			c = nextClean();
+			if (!isScalarStart(c)) {
+				// Pushed first: the value may be a list that reuses the
+				// buffers.
+				pushNumbers(kind, n);
+				push(null, readValue(c));
+				return null;
+			}
+			type = scanScalar();
+		}
+		pushNumbers(kind, n);
+		push(null, scalarElement(type));
+		return null;
+	}
+
+	private void pushNumbers(LDElement.EType kind, int n) {
+		for (int i = 0; i < n; i++) {
+			if (kind == LDElement.EType.LONG)
+				push(null, new LDLong(longs[i]));
+			else
+				push(null, new LDDouble(doubles[i]));
+		}
+	}
+
+	/**
+	 * Indicates whether c can start a non-string scalar.
+	 */
+	static boolean isScalarStart(int c) {
+		switch (c) {
+		case LDParserJSON.MAP_PREFIX:
+		case LDParserJSON.LIST_PREFIX:
+		case LDParserJSON.QUOTE:
+		case LDParserJSON.ELEMENT_SEPARATOR:
+		case LDParserJSON.KEY_VALUE_SEP_CHAR:
+		case LDParserJSON.LIST_SUFFIX:
+		case LDParserJSON.MAP_SUFFIX:
+			return false;
+		default:
+			return c >= 0;
+		}
+	}
+
+	private void push(String key, LDElement value) {
+		if (stackTop == valueStack.length) {
+			keyStack = Arrays.copyOf(keyStack, stackTop * 2);
+			valueStack = Arrays.copyOf(valueStack, stackTop * 2);
+		}
+		keyStack[stackTop] = key;
+		valueStack[stackTop++] = value;
+	}
+
+	/**
+	 * Drops everything above base, so that the scanner doesn't keep the
+	 * elements alive.
+	 */
+	private void pop(int base) {
+		Arrays.fill(keyStack, base, stackTop, null);
+		Arrays.fill(valueStack, base, stackTop, null);
+		stackTop = base;
+	}
+
+	/**
+	 * Reads a map key and the separator that follows it.
+	 *
+	 * @param c
+	 *            the first char of the key, already consumed.
+	 */
+	String readKey(int c) throws IOException, LDFormatException {
+		if (c != LDParserJSON.QUOTE)
+			throw error(expected(LDParserJSON.QUOTE, c));
+		String key = scanString();
+		c = nextClean();
+		if (c != LDParserJSON.KEY_VALUE_SEP_CHAR)
+			throw error(expected(LDParserJSON.KEY_VALUE_SEP_CHAR, c));
+		return key;
+	}
+
+	/**
+	 * Like {@link #readKey(int)}, but also checks that the key is valid in
+	 * map. A key found in {@link #keyTable} was checked when it was put
+	 * there, so it isn't checked again.
+	 *
+	 * @param c
+	 *            the first char of the key, already consumed.
+	 * @param map
+	 *            the map the key is for, or null for a plain LDMap not yet
+	 *            made.
+	 */
+	String readValidKey(int c, LDMap map) throws IOException, LDFormatException {
+		if (keyTable == null) {
+			String key = readKey(c);
+			if (!isValidKey(map, key))
+				throw error("Invalid key: " + key);
+			return key;
+		}
+		if (c != LDParserJSON.QUOTE)
+			throw error(expected(LDParserJSON.QUOTE, c));
+		int len = scanChars();
+		int hash = JSONStringTable.hash(chars, len);
+		String key = keyTable.find(chars, len, hash);
+		if (key == null) {
+			key = new String(chars, 0, len);
+			if (!isValidKey(map, key))
+				throw error("Invalid key: " + key);
+			keyTable.put(key, hash);
+		}
+		c = nextClean();
+		if (c != LDParserJSON.KEY_VALUE_SEP_CHAR)
+			throw error(expected(LDParserJSON.KEY_VALUE_SEP_CHAR, c));
+		return key;
+	}
+}
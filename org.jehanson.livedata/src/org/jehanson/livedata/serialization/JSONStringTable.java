@@ -0,0 +1,126 @@
+package org.jehanson.livedata.serialization;
+
+/**
+ * A bounded cache of Strings, looked up by the chars a scanner has just
+ * decoded so that a String is allocated only on a miss.
+ * <p>
+ * It is direct-mapped: each hash has one slot, and a miss replaces whatever
+ * was there. That keeps the table's size fixed however many distinct strings
+ * go through it, while the strings that keep coming back, such as the keys of
+ * record-oriented data, stay in it.
+ * <p>
+ * Not thread-safe. Each scanner has its own.
+ *
+ * @author jehanson
+ */
+final class JSONStringTable {
+
+	// =================================
+	// Variables
+	// =================================
+
+	/** Slots in a table made with the no-arg constructor. */
+	static final int DEFAULT_SIZE = 4096;
+
+	/** Longest string a table made with the no-arg constructor will hold. */
+	static final int DEFAULT_MAX_LENGTH = 64;
+
+	private final int mask;
+	private final int maxLength;
+	private final String[] strings;
+	private final int[] hashes;
+
+	// =================================
+	// Creation
+	// =================================
+
+	JSONStringTable() {
+		this(DEFAULT_SIZE, DEFAULT_MAX_LENGTH);
+	}
+
+	/**
+	 * @param size
+	 *            the number of slots. Must be a power of 2.
+	 * @param maxLength
+	 *            strings longer than this are never held.
+	 */
+	JSONStringTable(int size, int maxLength) {
+		if (size <= 0 || (size & (size - 1)) != 0)
+			throw new IllegalArgumentException("size must be a power of 2: " + size);
+		this.mask = size - 1;
+		this.maxLength = maxLength;
+		this.strings = new String[size];
+		this.hashes = new int[size];
+	}
+
+	// =================================
+	// Operation
+	// =================================
+
+	/**
+	 * Returns the same hash as String.hashCode() on the chars.
+	 */
+	static int hash(char[] chars, int len) {
+		int h = 0;
+		for (int i = 0; i < len; i++)
+			h = 31 * h + chars[i];
+		return h;
+	}
+
+	/**
+	 * Returns the held string equal to the first len chars, or null.
+	 *
+	 * @param hash
+	 *            {@link #hash(char[], int)} of the chars.
+	 */
+	String find(char[] chars, int len, int hash) {
+		int slot = slot(hash);
+		String s = strings[slot];
+		if (s == null || hashes[slot] != hash || s.length() != len)
+			return null;
+		for (int i = 0; i < len; i++) {
+			if (s.charAt(i) != chars[i])
+				return null;
+		}
+		return s;
+	}
+
+	/**
+	 * Holds s, replacing whatever has the same slot. Does nothing if s is
+	 * too long.
+	 *
+	 * @param hash
+	 *            s.hashCode().
+	 */
+	void put(String s, int hash) {
+		if (s.length() > maxLength)
+			return;
+		int slot = slot(hash);
+		strings[slot] = s;
+		hashes[slot] = hash;
+	}
+
+	/**
+	 * Returns a string equal to the first len chars, from the table if it's
+	 * there, otherwise a new one that is then held.
+	 */
+	String intern(char[] chars, int len) {
+		if (len > maxLength)
+			return new String(chars, 0, len);
+		int hash = hash(chars, len);
+		String s = find(chars, len, hash);
+		if (s == null) {
+			s = new String(chars, 0, len);
+			put(s, hash);
+		}
+		return s;
+	}
+
+	// =================================
+	// Private
+	// =================================
+
+	private int slot(int hash) {
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+}
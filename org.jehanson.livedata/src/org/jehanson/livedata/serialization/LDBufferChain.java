@@ -0,0 +1,218 @@
+package org.jehanson.livedata.serialization;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * An output stream that fills a chain of ByteBuffers taken from a pool. What
+ * is written is never gathered into one array; the buffers go to a channel as
+ * they are, with gathering writes.
+ * <p>
+ * Closing the chain gives its buffers back to the pool. Nothing written may
+ * be used after that, including buffers from {@link #getBuffers()}.
+ * <p>
+ * Not thread-safe. Pools are.
+ *
+ * @author jehanson
+ */
+public class LDBufferChain extends OutputStream {
+
+	// =================================
+	// Inner classes
+	// =================================
+
+	/**
+	 * Buffers of one size, kept for reuse. Holds at most a fixed number of
+	 * free buffers; more are allocated when it's empty, and dropped when it's
+	 * full.
+	 */
+	public static final class Pool {
+
+		private final int bufferSize;
+		private final boolean direct;
+		private final ArrayBlockingQueue<ByteBuffer> free;
+
+		/**
+		 * @param bufferSize
+		 *            size of each buffer. Must be positive.
+		 * @param direct
+		 *            whether buffers are direct.
+		 * @param maxFree
+		 *            the most free buffers held. Must be positive.
+		 */
+		public Pool(int bufferSize, boolean direct, int maxFree) {
+			if (bufferSize <= 0)
+				throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+			if (maxFree <= 0)
+				throw new IllegalArgumentException("maxFree must be positive: " + maxFree);
+			this.bufferSize = bufferSize;
+			this.direct = direct;
+			this.free = new ArrayBlockingQueue<ByteBuffer>(maxFree);
+		}
+
+		public int getBufferSize() {
+			return bufferSize;
+		}
+
+		public boolean isDirect() {
+			return direct;
+		}
+
+		/**
+		 * Returns a cleared buffer.
+		 */
+		ByteBuffer take() {
+			ByteBuffer b = free.poll();
+			if (b == null)
+				return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer
+						.allocate(bufferSize);
+			b.clear();
+			return b;
+		}
+
+		void give(ByteBuffer b) {
+			free.offer(b);
+		}
+	}
+
+	// =================================
+	// Variables
+	// =================================
+
+	private static final Pool defaultPool = new Pool(1 << 16, true, 256);
+
+	private final Pool pool;
+	private final List<ByteBuffer> buffers;
+	private ByteBuffer current;
+	private long size;
+
+	// =================================
+	// Creation
+	// =================================
+
+	/**
+	 * Creates a chain whose buffers come from the default pool: direct, 64K
+	 * each.
+	 */
+	public LDBufferChain() {
+		this(defaultPool);
+	}
+
+	/**
+	 * @param pool
+	 *            Not null.
+	 */
+	public LDBufferChain(Pool pool) {
+		if (pool == null)
+			throw new IllegalArgumentException("pool cannot be null");
+		this.pool = pool;
+		this.buffers = new ArrayList<ByteBuffer>();
+		this.current = null;
+		this.size = 0;
+	}
+
+	public static Pool getDefaultPool() {
+		return defaultPool;
+	}
+
+	// =================================
+	// Operation
+	// =================================
+
+	@Override
+	public void write(int b) throws IOException {
+		if (current == null || !current.hasRemaining())
+			nextBuffer();
+		current.put((byte) b);
+		size++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || len > b.length - off)
+			throw new IndexOutOfBoundsException();
+		size += len;
+		while (len > 0) {
+			if (current == null || !current.hasRemaining())
+				nextBuffer();
+			int n = Math.min(len, current.remaining());
+			current.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Returns the number of bytes written so far.
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Returns what has been written so far, as views of the chain's buffers
+	 * ready to be read or passed to a gathering write. The views share
+	 * content with the chain but not position or limit.
+	 *
+	 * @return the views. Not null.
+	 */
+	public ByteBuffer[] getBuffers() {
+		ByteBuffer[] result = new ByteBuffer[buffers.size()];
+		for (int i = 0; i < result.length; i++) {
+			ByteBuffer b = buffers.get(i).duplicate();
+			b.flip();
+			result[i] = b;
+		}
+		return result;
+	}
+
+	/**
+	 * Writes everything written so far to channel, in as few gathering
+	 * writes as the channel allows. The channel should be in blocking mode.
+	 *
+	 * @param channel
+	 *            Not null.
+	 * @return the number of bytes written.
+	 * @throws IOException
+	 */
+	public long writeTo(GatheringByteChannel channel) throws IOException {
+		if (channel == null)
+			throw new IllegalArgumentException("channel cannot be null");
+		ByteBuffer[] views = getBuffers();
+		long total = 0;
+		int first = 0;
+		while (first < views.length) {
+			total += channel.write(views, first, views.length - first);
+			while (first < views.length && !views[first].hasRemaining())
+				first++;
+		}
+		return total;
+	}
+
+	/**
+	 * Gives the buffers back to the pool, and empties the chain. It may be
+	 * written to again.
+	 */
+	@Override
+	public void close() {
+		for (ByteBuffer b : buffers)
+			pool.give(b);
+		buffers.clear();
+		current = null;
+		size = 0;
+	}
+
+	// =================================
+	// Private
+	// =================================
+
+	private void nextBuffer() {
+		current = pool.take();
+		buffers.add(current);
+	}
+}
@@ -0,0 +1,278 @@
+package org.jehanson.livedata.serialization;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Arrays;
+
+import org.jehanson.livedata.LDElement;
+import org.jehanson.livedata.elements.LDMap;
+
+/**
+ * Push-style writer for JSON text, the counterpart of
+ * {@link LDPullParserJSON}. Each call writes one token, so a document of any
+ * size can be written without building LDElements for it. An existing
+ * LDElement can be written in the middle with {@link #writeElement(LDElement)}.
+ * <p>
+ * Output is the same as {@link LDSerializerJSON}'s, with the same escaping,
+ * <code>"&lt;uri&gt;"</code> references and line breaks. Several top-level
+ * values may be written, each on a line of its own.
+ * <p>
+ * Get one from {@link LDSerializerJSON#createGenerator(OutputStream)}. Not
+ * thread-safe.
+ *
+ * @author jehanson
+ */
+public class LDGeneratorJSON implements Closeable, Flushable {
+
+	// =================================
+	// Variables
+	// =================================
+
+	// What each open container expects next.
+	private static final byte MAP_START = 0;
+	private static final byte MAP_VALUE = 1;
+	private static final byte MAP_NEXT = 2;
+	private static final byte LIST_START = 3;
+	private static final byte LIST_NEXT = 4;
+
+	private final OutputStream stream;
+	private final JSONByteWriter writer;
+	private byte[] stack;
+	private int depth;
+	private long count;
+
+	// =================================
+	// Creation
+	// =================================
+
+	LDGeneratorJSON(LDSerializerJSON serializer, OutputStream stream) {
+		this.stream = stream;
+		this.writer = serializer.createByteWriter(stream,
+				new byte[JSONByteWriter.DEFAULT_BUFFER_SIZE]);
+		this.stack = new byte[32];
+		this.depth = 0;
+		this.count = 0;
+	}
+
+	// =================================
+	// Operation
+	// =================================
+
+	/**
+	 * Returns the number of containers started and not yet ended.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Starts a map. End it with {@link #writeEnd()}.
+	 *
+	 * @throws IOException
+	 * @throws IllegalStateException
+	 *             if a key is expected.
+	 */
+	public void writeStartMap() throws IOException {
+		beforeValue();
+		writer.writeByte(LDParserJSON.MAP_PREFIX);
+		push(MAP_START);
+	}
+
+	/**
+	 * Starts a list. End it with {@link #writeEnd()}.
+	 *
+	 * @throws IOException
+	 * @throws IllegalStateException
+	 *             if a key is expected.
+	 */
+	public void writeStartList() throws IOException {
+		beforeValue();
+		writer.writeByte(LDParserJSON.LIST_PREFIX);
+		push(LIST_START);
+	}
+
+	/**
+	 * Ends the innermost map or list.
+	 *
+	 * @throws IOException
+	 * @throws IllegalStateException
+	 *             if nothing is open, or a map's last key has no value.
+	 */
+	public void writeEnd() throws IOException {
+		if (depth == 0)
+			throw new IllegalStateException("No open map or list");
+		byte state = stack[depth - 1];
+		if (state == MAP_VALUE)
+			throw new IllegalStateException("Value expected");
+		depth--;
+		if (state == MAP_NEXT || state == LIST_NEXT)
+			writer.writeBreak(false, depth);
+		writer.writeByte((state == MAP_START || state == MAP_NEXT) ? LDParserJSON.MAP_SUFFIX
+				: LDParserJSON.LIST_SUFFIX);
+		if (depth == 0)
+			count++;
+	}
+
+	/**
+	 * Writes the key of the next entry in the current map.
+	 *
+	 * @param key
+	 *            Not null. Must be a valid map key.
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 *             if key isn't a valid map key.
+	 * @throws IllegalStateException
+	 *             if the current container isn't a map, or a value is
+	 *             expected.
+	 */
+	public void writeKey(String key) throws IOException {
+		String k = LDMap.asMapKey(key);
+		byte state = (depth == 0) ? LIST_START : stack[depth - 1];
+		if (state == MAP_START)
+			writer.writeBreak(false, depth);
+		else if (state == MAP_NEXT) {
+			writer.writeByte(LDParserJSON.ELEMENT_SEPARATOR);
+			writer.writeBreak(true, depth);
+		}
+		else
+			throw new IllegalStateException("Not in a map, or value expected");
+		stack[depth - 1] = MAP_VALUE;
+		writer.writeString(k);
+		writer.writeByte(LDParserJSON.KEY_VALUE_SEP_CHAR);
+		writer.writeByte(LDParserJSON.SPACE);
+	}
+
+	public void writeBoolean(boolean x) throws IOException {
+		beforeValue();
+		writer.writeBoolean(x);
+		afterValue();
+	}
+
+	public void writeLong(long x) throws IOException {
+		beforeValue();
+		writer.writeLong(x);
+		afterValue();
+	}
+
+	public void writeDouble(double x) throws IOException {
+		beforeValue();
+		writer.writeDouble(x);
+		afterValue();
+	}
+
+	/**
+	 * @param x
+	 *            Not null. Use {@link #writeNull()} for null.
+	 */
+	public void writeString(String x) throws IOException {
+		if (x == null)
+			throw new IllegalArgumentException("x cannot be null");
+		beforeValue();
+		writer.writeString(x);
+		afterValue();
+	}
+
+	/**
+	 * @param x
+	 *            Not null. Use {@link #writeNull()} for null.
+	 */
+	public void writeReference(URI x) throws IOException {
+		if (x == null)
+			throw new IllegalArgumentException("x cannot be null");
+		beforeValue();
+		writer.writeReference(x);
+		afterValue();
+	}
+
+	public void writeNull() throws IOException {
+		beforeValue();
+		writer.writeNull();
+		afterValue();
+	}
+
+	/**
+	 * Writes elem and everything under it as one value.
+	 *
+	 * @param elem
+	 *            Not null.
+	 * @throws IOException
+	 */
+	public void writeElement(LDElement elem) throws IOException {
+		if (elem == null)
+			throw new IllegalArgumentException("elem cannot be null");
+		beforeValue();
+		writer.write(elem, depth);
+		afterValue();
+	}
+
+	/**
+	 * Returns the number of top-level values written so far.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		writer.flushBuffer();
+		stream.flush();
+	}
+
+	/**
+	 * Writes what's buffered and closes the stream. Doesn't end open
+	 * containers.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			writer.flushBuffer();
+		}
+		finally {
+			stream.close();
+		}
+	}
+
+	// =================================
+	// Private
+	// =================================
+
+	/**
+	 * Writes what goes before a value and updates the state of its container.
+	 */
+	private void beforeValue() throws IOException {
+		if (depth == 0) {
+			if (count > 0)
+				writer.writeByte('\n');
+			return;
+		}
+		switch (stack[depth - 1]) {
+		case MAP_VALUE:
+			stack[depth - 1] = MAP_NEXT;
+			break;
+		case LIST_START:
+			writer.writeBreak(false, depth);
+			stack[depth - 1] = LIST_NEXT;
+			break;
+		case LIST_NEXT:
+			writer.writeByte(LDParserJSON.ELEMENT_SEPARATOR);
+			writer.writeBreak(true, depth);
+			break;
+		default:
+			throw new IllegalStateException("Key expected");
+		}
+	}
+
+	private void afterValue() {
+		if (depth == 0)
+			count++;
+	}
+
+	private void push(byte state) {
+		if (depth == stack.length)
+			stack = Arrays.copyOf(stack, depth * 2);
+		stack[depth++] = state;
+	}
+}
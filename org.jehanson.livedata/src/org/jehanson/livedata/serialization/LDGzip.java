@@ -0,0 +1,94 @@
+package org.jehanson.livedata.serialization;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import org.jehanson.livedata.LDElement;
+import org.jehanson.livedata.LDObject;
+
+/**
+ * Gzipped save and load with any {@link LDSerializer} and {@link LDParser}.
+ * Saving compresses blocks in parallel, with {@link LDGzipOutputStream};
+ * loading decompresses on a background thread while the parser runs, with
+ * {@link LDGzipInputStream}.
+ *
+ * @author jehanson
+ */
+public final class LDGzip {
+
+	// =================================
+	// Creation
+	// =================================
+
+	private LDGzip() {
+	}
+
+	// =================================
+	// Operation
+	// =================================
+
+	/**
+	 * Like {@link #serialize(LDSerializer, LDElement, OutputStream, Executor)},
+	 * compressing on the common ForkJoinPool.
+	 */
+	public static void serialize(LDSerializer serializer, LDElement obj, OutputStream stream)
+			throws IOException {
+		serialize(serializer, obj, stream, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Writes obj to the stream with the given serializer, gzipped. Like
+	 * serializers, leaves the stream open.
+	 *
+	 * @param executor
+	 *            runs the compression tasks. Not null.
+	 */
+	public static void serialize(LDSerializer serializer, LDElement obj, OutputStream stream,
+			Executor executor) throws IOException {
+		if (serializer == null)
+			throw new IllegalArgumentException("serializer cannot be null");
+		if (stream == null)
+			throw new IllegalArgumentException("stream cannot be null");
+		LDGzipOutputStream gz = new LDGzipOutputStream(stream, executor);
+		serializer.serialize(obj, gz);
+		gz.finish();
+		stream.flush();
+	}
+
+	/**
+	 * Reads an element from gzipped input with the given parser. Like
+	 * parsers, closes the stream.
+	 */
+	public static LDElement parse(LDParser parser, InputStream stream) throws IOException,
+			LDFormatException {
+		if (parser == null)
+			throw new IllegalArgumentException("parser cannot be null");
+		LDGzipInputStream gz = new LDGzipInputStream(stream);
+		try {
+			return parser.parse(gz);
+		}
+		finally {
+			gz.close();
+		}
+	}
+
+	/**
+	 * Reads a map from gzipped input into obj with the given parser, and
+	 * closes the stream.
+	 */
+	public static void parse(LDParser parser, LDObject obj, InputStream stream)
+			throws IOException, LDFormatException {
+		if (parser == null)
+			throw new IllegalArgumentException("parser cannot be null");
+		LDGzipInputStream gz = new LDGzipInputStream(stream);
+		try {
+			parser.parse(obj, gz);
+		}
+		finally {
+			gz.close();
+		}
+	}
+}
@@ -0,0 +1,340 @@
+package org.jehanson.livedata.serialization;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * An input stream that gunzips another on a background thread, so that
+ * whoever reads from it (usually a parser) runs while the next chunks are
+ * being decompressed.
+ * <p>
+ * Reads any gzip stream, including the multi-member ones
+ * {@link LDGzipOutputStream} writes, checking each member's CRC and length.
+ * At most a few chunks are decompressed ahead of the reader. Errors on the
+ * background thread are thrown to the reader once it has read everything
+ * before them.
+ * <p>
+ * Use one of these from one thread. Close it, even after an error, to stop
+ * the background thread.
+ *
+ * @author jehanson
+ */
+public class LDGzipInputStream extends InputStream {
+
+	// =================================
+	// Inner classes
+	// =================================
+
+	/**
+	 * A chunk of decompressed bytes, or the end of them.
+	 */
+	private static final class Chunk {
+
+		final byte[] bytes;
+		final int length;
+		/** Set only at the end: what stopped decompression, if anything did. */
+		final IOException error;
+
+		Chunk(byte[] bytes, int length, IOException error) {
+			this.bytes = bytes;
+			this.length = length;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * Runs on the background thread.
+	 */
+	private final class Decompressor implements Runnable {
+
+		private final byte[] inBuf = new byte[CHUNK_SIZE];
+		private int inPos = 0;
+		private int inLimit = 0;
+		private final Inflater inflater = new Inflater(true);
+		private final CRC32 crc = new CRC32();
+
+		@Override
+		public void run() {
+			// Unless the reader closed us, the end chunk goes out however this
+			// stops, even on an Error, so the reader never waits for it in vain.
+			IOException error = null;
+			boolean stopped = false;
+			try {
+				readMember();
+				while (nextByte() >= 0) {
+					inPos--;
+					readMember();
+				}
+			}
+			catch (IOException e) {
+				error = e;
+			}
+			catch (InterruptedException e) {
+				// Closed by the reader.
+				stopped = true;
+			}
+			catch (RuntimeException e) {
+				error = new IOException(e);
+			}
+			catch (Error e) {
+				error = new IOException(e);
+				throw e;
+			}
+			finally {
+				inflater.end();
+				if (!stopped)
+					end(error);
+			}
+		}
+
+		private void end(IOException error) {
+			try {
+				chunks.put(new Chunk(null, 0, error));
+			}
+			catch (InterruptedException e) {
+				// Closed by the reader.
+			}
+		}
+
+		private void readMember() throws IOException, InterruptedException {
+			readHeader();
+			inflater.reset();
+			crc.reset();
+			long size = 0;
+			byte[] out = new byte[CHUNK_SIZE];
+			int outLength = 0;
+			while (!inflater.finished()) {
+				if (inflater.needsInput()) {
+					if (inPos == inLimit && !fill())
+						throw new EOFException("Unexpected end of gzip input");
+					inflater.setInput(inBuf, inPos, inLimit - inPos);
+					inPos = inLimit;
+				}
+				else if (inflater.needsDictionary())
+					throw new ZipException("Bad gzip data: needs a dictionary");
+				int n;
+				try {
+					n = inflater.inflate(out, outLength, out.length - outLength);
+				}
+				catch (DataFormatException e) {
+					throw new ZipException("Bad gzip data: " + e.getMessage());
+				}
+				crc.update(out, outLength, n);
+				outLength += n;
+				size += n;
+				if (outLength == out.length) {
+					chunks.put(new Chunk(out, outLength, null));
+					out = new byte[CHUNK_SIZE];
+					outLength = 0;
+				}
+			}
+			if (outLength > 0)
+				chunks.put(new Chunk(out, outLength, null));
+			// Give back what the inflater didn't use; the trailer starts there.
+			inPos -= inflater.getRemaining();
+			if (readIntLE() != (int) crc.getValue())
+				throw new ZipException("Bad gzip data: CRC mismatch");
+			if (readIntLE() != (int) size)
+				throw new ZipException("Bad gzip data: length mismatch");
+		}
+
+		private void readHeader() throws IOException {
+			if (readByte() != 0x1f || readByte() != 0x8b)
+				throw new ZipException("Not in gzip format");
+			if (readByte() != 8)
+				throw new ZipException("Unsupported gzip compression method");
+			int flags = readByte();
+			for (int i = 0; i < 6; i++)
+				readByte();
+			if ((flags & FEXTRA) != 0) {
+				int n = readByte() | (readByte() << 8);
+				for (int i = 0; i < n; i++)
+					readByte();
+			}
+			if ((flags & FNAME) != 0) {
+				while (readByte() != 0) {
+				}
+			}
+			if ((flags & FCOMMENT) != 0) {
+				while (readByte() != 0) {
+				}
+			}
+			if ((flags & FHCRC) != 0) {
+				readByte();
+				readByte();
+			}
+		}
+
+		private int readIntLE() throws IOException {
+			return readByte() | (readByte() << 8) | (readByte() << 16) | (readByte() << 24);
+		}
+
+		private int readByte() throws IOException {
+			int b = nextByte();
+			if (b < 0)
+				throw new EOFException("Unexpected end of gzip input");
+			return b;
+		}
+
+		/**
+		 * Returns the next input byte, or -1 at the end.
+		 */
+		private int nextByte() throws IOException {
+			if (inPos == inLimit && !fill())
+				return -1;
+			return inBuf[inPos++] & 0xFF;
+		}
+
+		private boolean fill() throws IOException {
+			int n = in.read(inBuf, 0, inBuf.length);
+			if (n <= 0)
+				return false;
+			inPos = 0;
+			inLimit = n;
+			return true;
+		}
+	}
+
+	// =================================
+	// Variables
+	// =================================
+
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	/** Chunks decompressed ahead of the reader. */
+	private static final int CHUNKS_AHEAD = 8;
+
+	/** How long close waits for the background thread to stop. */
+	private static final long CLOSE_WAIT_MILLIS = 1000;
+
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+
+	private final InputStream in;
+	private final BlockingQueue<Chunk> chunks;
+	private final Thread thread;
+
+	private Chunk current;
+	private int pos;
+	private boolean closed;
+
+	// =================================
+	// Creation
+	// =================================
+
+	/**
+	 * Starts decompressing the given stream.
+	 *
+	 * @param in
+	 *            gzip input. Not null. Closed when this is.
+	 */
+	public LDGzipInputStream(InputStream in) {
+		if (in == null)
+			throw new IllegalArgumentException("in cannot be null");
+		this.in = in;
+		this.chunks = new ArrayBlockingQueue<Chunk>(CHUNKS_AHEAD);
+		this.current = null;
+		this.pos = 0;
+		this.closed = false;
+		this.thread = new Thread(new Decompressor(), "LDGzipInputStream");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	// =================================
+	// Operation
+	// =================================
+
+	@Override
+	public int read() throws IOException {
+		if (!next())
+			return -1;
+		return current.bytes[pos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || len > b.length - off)
+			throw new IndexOutOfBoundsException();
+		if (len == 0)
+			return 0;
+		if (!next())
+			return -1;
+		int n = Math.min(len, current.length - pos);
+		System.arraycopy(current.bytes, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		return (current == null || current.bytes == null) ? 0 : current.length - pos;
+	}
+
+	/**
+	 * Stops the background thread and closes the underlying stream. Waits
+	 * briefly for the thread to stop; a thread stuck in a read that closing
+	 * the stream doesn't end is left to finish on its own. It's a daemon.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		current = null;
+		// The interrupt stops a wait for room; closing the input stops a read.
+		thread.interrupt();
+		try {
+			in.close();
+		}
+		finally {
+			try {
+				thread.join(CLOSE_WAIT_MILLIS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	// =================================
+	// Private
+	// =================================
+
+	/**
+	 * Makes current a chunk with bytes left in it, waiting if need be.
+	 *
+	 * @return false at the end of the input.
+	 */
+	private boolean next() throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		while (current == null || (current.bytes != null && pos == current.length)) {
+			try {
+				current = chunks.take();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while decompressing");
+			}
+			pos = 0;
+		}
+		if (current.bytes != null)
+			return true;
+		if (current.error != null)
+			throw new IOException(current.error.getMessage(), current.error);
+		return false;
+	}
+}
@@ -0,0 +1,273 @@
+package org.jehanson.livedata.serialization;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * An output stream that gzips what is written to it, compressing blocks in
+ * parallel.
+ * <p>
+ * What is written is cut into blocks of a fixed size. Each block is
+ * compressed by a task on the given executor into a complete gzip member, and
+ * the members are written out in order as they finish. Concatenated members
+ * are standard gzip (RFC 1952): gunzip, GZIPInputStream and
+ * {@link LDGzipInputStream} read them as one stream. Blocks don't share a
+ * dictionary, so output is a little bigger than a single-member gzip's, the
+ * more so the more the input repeats itself.
+ * <p>
+ * A bounded number of blocks are in flight at once, so memory use is fixed
+ * however much is written. Use one of these from one thread.
+ *
+ * @author jehanson
+ */
+public class LDGzipOutputStream extends OutputStream {
+
+	// =================================
+	// Variables
+	// =================================
+
+	public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+	/** Blocks in flight per processor. */
+	private static final int BLOCKS_PER_THREAD = 2;
+
+	private static final int GZIP_MAGIC = 0x8b1f;
+
+	private final OutputStream out;
+	private final Executor executor;
+	private final int blockSize;
+	private final int level;
+	private final int maxPending;
+	private final ArrayDeque<Future<byte[]>> pending;
+
+	private byte[] block;
+	private int count;
+	private boolean wroteMember;
+	private boolean finished;
+	private boolean closed;
+
+	// =================================
+	// Creation
+	// =================================
+
+	/**
+	 * Compresses blocks of the default size at the default level.
+	 */
+	public LDGzipOutputStream(OutputStream out, Executor executor) {
+		this(out, executor, DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * @param out
+	 *            where the gzip stream goes. Not null.
+	 * @param executor
+	 *            runs the compression tasks. Not null. A direct executor
+	 *            makes this a plain, sequential gzip stream.
+	 * @param blockSize
+	 *            bytes per block. Must be positive.
+	 * @param level
+	 *            compression level, as for {@link Deflater}.
+	 */
+	public LDGzipOutputStream(OutputStream out, Executor executor, int blockSize, int level) {
+		if (out == null)
+			throw new IllegalArgumentException("out cannot be null");
+		if (executor == null)
+			throw new IllegalArgumentException("executor cannot be null");
+		if (blockSize <= 0)
+			throw new IllegalArgumentException("blockSize must be positive: " + blockSize);
+		if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION)
+			throw new IllegalArgumentException("bad level: " + level);
+		this.out = out;
+		this.executor = executor;
+		this.blockSize = blockSize;
+		this.level = level;
+		this.maxPending = BLOCKS_PER_THREAD * Runtime.getRuntime().availableProcessors();
+		this.pending = new ArrayDeque<Future<byte[]>>();
+		this.block = new byte[blockSize];
+		this.count = 0;
+		this.wroteMember = false;
+		this.finished = false;
+		this.closed = false;
+	}
+
+	// =================================
+	// Operation
+	// =================================
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+		if (count == blockSize)
+			submit();
+		block[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || len > b.length - off)
+			throw new IndexOutOfBoundsException();
+		ensureOpen();
+		while (len > 0) {
+			if (count == blockSize)
+				submit();
+			int n = Math.min(len, blockSize - count);
+			System.arraycopy(b, off, block, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Ends the current block early, waits for every block to be written,
+	 * and flushes the underlying stream.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		if (count > 0)
+			submit();
+		drain(0);
+		out.flush();
+	}
+
+	/**
+	 * Writes what remains without closing the underlying stream. Nothing
+	 * more can be written after this.
+	 */
+	public void finish() throws IOException {
+		if (finished)
+			return;
+		finished = true;
+		try {
+			// An empty stream is still one (empty) member.
+			if (count > 0 || !wroteMember)
+				submit();
+			drain(0);
+		}
+		finally {
+			pending.clear();
+			block = null;
+		}
+	}
+
+	/**
+	 * Writes what remains and closes the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			finish();
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	// =================================
+	// Private
+	// =================================
+
+	private void ensureOpen() throws IOException {
+		if (finished)
+			throw new IOException(closed ? "Stream closed" : "Stream finished");
+	}
+
+	/**
+	 * Hands the current block to the executor, after making room for it.
+	 */
+	private void submit() throws IOException {
+		drain(maxPending - 1);
+		final byte[] data = block;
+		final int length = count;
+		FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return compress(data, length, level);
+			}
+		});
+		// Queued only once accepted: a rejected task would never finish, and
+		// drain would wait on it forever.
+		executor.execute(task);
+		pending.add(task);
+		wroteMember = true;
+		block = new byte[blockSize];
+		count = 0;
+	}
+
+	/**
+	 * Writes finished members, oldest first, until at most max are pending.
+	 */
+	private void drain(int max) throws IOException {
+		while (pending.size() > max) {
+			byte[] member;
+			try {
+				member = pending.peek().get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while compressing");
+			}
+			catch (ExecutionException e) {
+				throw new IOException("Compression failed", e.getCause());
+			}
+			pending.remove();
+			out.write(member);
+		}
+	}
+
+	/**
+	 * Returns the first length bytes of data as a complete gzip member.
+	 */
+	private static byte[] compress(byte[] data, int length, int level) {
+		ByteArrayOutputStream member = new ByteArrayOutputStream(length / 2 + 64);
+		// Header: magic, deflate, no flags, no mtime, no extra flags, unknown OS.
+		member.write(GZIP_MAGIC & 0xFF);
+		member.write(GZIP_MAGIC >> 8);
+		member.write(Deflater.DEFLATED);
+		for (int i = 0; i < 6; i++)
+			member.write(0);
+		member.write(0xFF);
+
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			byte[] buf = new byte[64 * 1024];
+			while (!deflater.finished()) {
+				int n = deflater.deflate(buf);
+				member.write(buf, 0, n);
+			}
+		}
+		finally {
+			deflater.end();
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		writeIntLE(member, (int) crc.getValue());
+		writeIntLE(member, length);
+		return member.toByteArray();
+	}
+
+	private static void writeIntLE(ByteArrayOutputStream out, int x) {
+		out.write(x);
+		out.write(x >> 8);
+		out.write(x >> 16);
+		out.write(x >> 24);
+	}
+}
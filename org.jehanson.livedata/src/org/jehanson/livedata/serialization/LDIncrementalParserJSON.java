@@ -0,0 +1,574 @@
+package org.jehanson.livedata.serialization;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import org.jehanson.livedata.LDElement;
+import org.jehanson.livedata.elements.LDDouble;
+import org.jehanson.livedata.elements.LDDoubleArray;
+import org.jehanson.livedata.elements.LDLong;
+import org.jehanson.livedata.elements.LDLongArray;
+
+/**
+ * Push-style parser for JSON text that arrives in pieces, e.g. from a
+ * non-blocking channel. Each call to {@link #feed(ByteBuffer)} consumes
+ * whatever bytes are at hand and returns without waiting for more; the
+ * parser keeps its place, even in the middle of a string or a multi-byte
+ * char. A top-level value is available from {@link #poll()} as soon as its
+ * last char has been fed, so a stream of several values, such as
+ * newline-delimited JSON, can be consumed as it arrives.
+ * <p>
+ * Follows the same grammar as {@link LDParserJSON}, with the same error
+ * messages. The first error leaves the parser failed; it can't be fed after
+ * that.
+ * <p>
+ * Not thread-safe, but it never blocks, so one thread can drive many. Get
+ * one from {@link LDParserJSON#createIncrementalParser()}.
+ *
+ * @author jehanson
+ */
+public class LDIncrementalParserJSON {
+
+	// =================================
+	// Inner classes
+	// =================================
+
+	private final class Decoder extends JSONDecoder {
+
+		@Override
+		String location() {
+			return "line " + line + " position " + (count - lineStart);
+		}
+	}
+
+	// =================================
+	// Variables
+	// =================================
+
+	// What the parser expects next.
+	private static final byte VALUE = 0;
+	private static final byte LIST_START = 1;
+	private static final byte MAP_START = 2;
+	private static final byte KEY = 3;
+	private static final byte COLON = 4;
+	private static final byte NEXT = 5;
+	private static final byte STRING = 6;
+	private static final byte ESCAPE = 7;
+	private static final byte UNICODE = 8;
+	private static final byte SCALAR = 9;
+	private static final byte FAILED = 10;
+
+	final JSONDecoder decoder;
+	private final CharsetDecoder charsetDecoder;
+	private final CharBuffer window;
+	private final ArrayDeque<LDElement> ready;
+
+	/** Bytes of a char split across chunks, or null. */
+	private ByteBuffer carried;
+
+	private byte state;
+	private boolean finished;
+
+	// Text of the string or scalar being read. For a string, whether it's a
+	// key, and the hex digits of a unicode escape.
+	private char[] text;
+	private int textLength;
+	private boolean isKey;
+	private boolean keyChecked;
+	private char[] hex;
+	private int hexCount;
+
+	// Open containers, innermost last: whether each is a map, where its
+	// children start on the element stack, and a map's current key.
+	private int depth;
+	private boolean[] isMap;
+	private int[] bases;
+	private String[] keys;
+
+	// Children of the open containers, as in JSONScanner.
+	private String[] keyStack;
+	private LDElement[] valueStack;
+	private int stackTop;
+
+	// For error messages: chars consumed, and the line they're on.
+	private long count;
+	private int line;
+	private long lineStart;
+	private boolean cr;
+
+	// =================================
+	// Creation
+	// =================================
+
+	/**
+	 * @param charset
+	 *            Not null. Malformed input decodes to U+FFFD.
+	 */
+	LDIncrementalParserJSON(Charset charset) {
+		if (charset == null)
+			throw new IllegalArgumentException("charset cannot be null");
+		this.decoder = new Decoder();
+		this.charsetDecoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.window = CharBuffer.allocate(8192);
+		this.ready = new ArrayDeque<LDElement>();
+		this.state = VALUE;
+		this.finished = false;
+		this.text = new char[64];
+		this.hex = new char[4];
+		this.isMap = new boolean[32];
+		this.bases = new int[32];
+		this.keys = new String[32];
+		this.keyStack = new String[64];
+		this.valueStack = new LDElement[64];
+		this.line = 1;
+	}
+
+	// =================================
+	// Operation
+	// =================================
+
+	/**
+	 * Parses the remaining bytes of the given buffer, as far as they go. The
+	 * buffer is left with no bytes remaining; a char split across the end of
+	 * this buffer and the start of the next is put back together.
+	 *
+	 * @param chunk
+	 *            Not null.
+	 * @throws LDFormatException
+	 *             if the text so far is not valid JSON.
+	 * @throws IllegalStateException
+	 *             if {@link #finish()} has been called, or an earlier call
+	 *             failed.
+	 */
+	public void feed(ByteBuffer chunk) throws LDFormatException {
+		if (chunk == null)
+			throw new IllegalArgumentException("chunk cannot be null");
+		checkFeedable();
+		// Complete the char left over from last time, a byte at a time so
+		// that nothing after it is decoded out of order.
+		while (carried != null && chunk.hasRemaining()) {
+			carried.compact();
+			carried.put(chunk.get());
+			carried.flip();
+			decode(carried, false);
+			if (!carried.hasRemaining())
+				carried = null;
+		}
+		decode(chunk, false);
+		// Anything left is the start of a char, which the decoder doesn't
+		// keep for us.
+		if (chunk.hasRemaining()) {
+			carried = ByteBuffer.allocate(16);
+			carried.put(chunk);
+			carried.flip();
+		}
+	}
+
+	/**
+	 * Tells the parser there is no more input. A value still open at this
+	 * point is an error, except a number or literal at top level, which the
+	 * end of input completes.
+	 *
+	 * @throws LDFormatException
+	 *             if the input ended in the middle of a value.
+	 * @throws IllegalStateException
+	 *             if already called, or an earlier call failed.
+	 */
+	public void finish() throws LDFormatException {
+		checkFeedable();
+		decode((carried == null) ? ByteBuffer.allocate(0) : carried, true);
+		carried = null;
+		charsetDecoder.flush(window);
+		process();
+		finished = true;
+		try {
+			if (state == SCALAR)
+				endScalar();
+			switch (state) {
+			case VALUE:
+				if (depth > 0)
+					throw decoder.error("Premature end of file");
+				break;
+			case STRING:
+			case ESCAPE:
+			case UNICODE:
+				throw decoder.error("Unterminated JSON string");
+			case LIST_START:
+				throw decoder.error("Premature end of file");
+			case MAP_START:
+			case KEY:
+				throw decoder.error(JSONDecoder.expected(LDParserJSON.QUOTE, -1));
+			case COLON:
+				throw decoder.error(JSONDecoder.expected(LDParserJSON.KEY_VALUE_SEP_CHAR, -1));
+			default:
+				throw decoder.error(JSONDecoder.expected(LDParserJSON.ELEMENT_SEPARATOR,
+						isMap[depth - 1] ? LDParserJSON.MAP_SUFFIX : LDParserJSON.LIST_SUFFIX, -1));
+			}
+		}
+		catch (LDFormatException e) {
+			state = FAILED;
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the next complete top-level value, in input order.
+	 *
+	 * @return the value, or null if none is ready yet.
+	 */
+	public LDElement poll() {
+		return ready.poll();
+	}
+
+	/**
+	 * Indicates whether {@link #finish()} has been called.
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	// =================================
+	// Private
+	// =================================
+
+	private void checkFeedable() {
+		if (state == FAILED)
+			throw new IllegalStateException("Parser has failed");
+		if (finished)
+			throw new IllegalStateException("Parser has been finished");
+	}
+
+	/**
+	 * Decodes and processes as much of in as the decoder can.
+	 */
+	private void decode(ByteBuffer in, boolean endOfInput) throws LDFormatException {
+		for (;;) {
+			CoderResult result = charsetDecoder.decode(in, window, endOfInput);
+			process();
+			if (result.isUnderflow())
+				return;
+		}
+	}
+
+	/**
+	 * Runs the chars in the window through the state machine, and empties
+	 * it.
+	 */
+	private void process() throws LDFormatException {
+		window.flip();
+		try {
+			process(window.array(), window.arrayOffset() + window.position(),
+					window.arrayOffset() + window.limit());
+		}
+		catch (LDFormatException e) {
+			state = FAILED;
+			throw e;
+		}
+		finally {
+			window.clear();
+		}
+	}
+
+	private void process(char[] buf, int start, int end) throws LDFormatException {
+		for (int i = start; i < end; i++) {
+			char c = buf[i];
+			count++;
+			switch (state) {
+			case STRING:
+				// Take a run of plain chars in one go.
+				int j = i;
+				while (c != LDParserJSON.QUOTE && c != LDParserJSON.ESC && c >= ' ') {
+					if (++j == end)
+						break;
+					c = buf[j];
+				}
+				append(buf, i, j);
+				count += j - i;
+				if (j == end) {
+					// The count for buf[i] was already added.
+					count--;
+					i = j;
+					break;
+				}
+				i = j;
+				if (c == LDParserJSON.QUOTE)
+					endString();
+				else if (c == LDParserJSON.ESC)
+					state = ESCAPE;
+				else if (LDParserJSON.CONTROL_CHARS.indexOf(c) >= 0)
+					throw decoder.error("Control char (" + c + ") in JSON string");
+				else
+					// Only the chars that have escapes are rejected, as in the
+					// scanners.
+					append(c);
+				break;
+			case ESCAPE:
+				int x = JSONDecoder.simpleEscape(c);
+				if (x >= 0) {
+					append((char) x);
+					state = STRING;
+				}
+				else if (c == 'u') {
+					hexCount = 0;
+					state = UNICODE;
+				}
+				else
+					throw decoder.error("Illegal char \'" + c + "\' in escape sequence");
+				break;
+			case UNICODE:
+				hex[hexCount++] = c;
+				if (hexCount == 4) {
+					x = JSONDecoder.hexValue(hex[0], hex[1], hex[2], hex[3]);
+					if (x < 0)
+						throw decoder.error("Expected 4 hex digits, got \"" + new String(hex)
+								+ "\"");
+					append((char) x);
+					state = STRING;
+				}
+				break;
+			case SCALAR:
+				if ((c < 0x80) ? JSONScanner.delimiters[c] : Character.isWhitespace(c)) {
+					// The delimiter belongs to what follows.
+					i--;
+					count--;
+					endScalar();
+				}
+				else
+					append(c);
+				break;
+			default:
+				if ((c > ' ' && c < 0x80) || !Character.isWhitespace(c)) {
+					cr = false;
+					structural(c);
+				}
+				else if (c == '\n') {
+					if (!cr)
+						line++;
+					lineStart = count;
+					cr = false;
+				}
+				else if (c == '\r') {
+					line++;
+					lineStart = count;
+					cr = true;
+				}
+				else
+					cr = false;
+			}
+		}
+	}
+
+	/**
+	 * Handles a non-whitespace char between tokens.
+	 */
+	private void structural(char c) throws LDFormatException {
+		switch (state) {
+		case MAP_START:
+			if (c == LDParserJSON.MAP_SUFFIX)
+				closeContainer();
+			else
+				startKey(c);
+			return;
+		case KEY:
+			startKey(c);
+			return;
+		case COLON:
+			if (c != LDParserJSON.KEY_VALUE_SEP_CHAR)
+				throw decoder.error(JSONDecoder.expected(LDParserJSON.KEY_VALUE_SEP_CHAR, c));
+			if (!keyChecked)
+				checkKey(keys[depth - 1]);
+			state = VALUE;
+			return;
+		case NEXT:
+			if (isMap[depth - 1]) {
+				if (c == LDParserJSON.MAP_SUFFIX)
+					closeContainer();
+				else if (c == LDParserJSON.ELEMENT_SEPARATOR)
+					state = KEY;
+				else
+					throw decoder.error(JSONDecoder.expected(LDParserJSON.ELEMENT_SEPARATOR,
+							LDParserJSON.MAP_SUFFIX, c));
+			}
+			else {
+				if (c == LDParserJSON.LIST_SUFFIX)
+					closeContainer();
+				else if (c == LDParserJSON.ELEMENT_SEPARATOR)
+					state = VALUE;
+				else
+					throw decoder.error(JSONDecoder.expected(LDParserJSON.ELEMENT_SEPARATOR,
+							LDParserJSON.LIST_SUFFIX, c));
+			}
+			return;
+		case LIST_START:
+			if (c == LDParserJSON.LIST_SUFFIX)
+				closeContainer();
+			else
+				startValue(c);
+			return;
+		default:
+			startValue(c);
+		}
+	}
+
+	private void startKey(char c) throws LDFormatException {
+		if (c != LDParserJSON.QUOTE)
+			throw decoder.error(JSONDecoder.expected(LDParserJSON.QUOTE, c));
+		startString(true);
+	}
+
+	private void startValue(char c) throws LDFormatException {
+		switch (c) {
+		case LDParserJSON.MAP_PREFIX:
+			openContainer(true);
+			state = MAP_START;
+			break;
+		case LDParserJSON.LIST_PREFIX:
+			openContainer(false);
+			state = LIST_START;
+			break;
+		case LDParserJSON.QUOTE:
+			startString(false);
+			break;
+		case LDParserJSON.ELEMENT_SEPARATOR:
+		case LDParserJSON.KEY_VALUE_SEP_CHAR:
+		case LDParserJSON.LIST_SUFFIX:
+		case LDParserJSON.MAP_SUFFIX:
+			throw decoder.error("Unexpected " + JSONDecoder.describe(c));
+		default:
+			textLength = 0;
+			append(c);
+			state = SCALAR;
+		}
+	}
+
+	private void startString(boolean key) {
+		textLength = 0;
+		isKey = key;
+		state = STRING;
+	}
+
+	private void endString() throws LDFormatException {
+		if (isKey) {
+			// The key is checked after the colon, as JSONScanner does.
+			String key = null;
+			JSONStringTable table = decoder.keyTable;
+			if (table != null)
+				key = table.find(text, textLength, JSONStringTable.hash(text, textLength));
+			keyChecked = (key != null);
+			keys[depth - 1] = keyChecked ? key : new String(text, 0, textLength);
+			state = COLON;
+		}
+		else {
+			JSONStringTable table = decoder.valueTable;
+			String s = (table == null) ? new String(text, 0, textLength) : table.intern(text,
+					textLength);
+			endValue(decoder.stringElement(s));
+		}
+	}
+
+	/**
+	 * Checks a key that wasn't found in the key table, and adds it there.
+	 */
+	private void checkKey(String key) throws LDFormatException {
+		if (!JSONDecoder.isValidKey(null, key))
+			throw decoder.error("Invalid key: " + key);
+		if (decoder.keyTable != null)
+			decoder.keyTable.put(key, key.hashCode());
+	}
+
+	private void endScalar() throws LDFormatException {
+		endValue(decoder.scalarElement(decoder.decodeScalar(text, 0, textLength)));
+	}
+
+	private void endValue(LDElement value) {
+		if (depth == 0) {
+			ready.add(value);
+			state = VALUE;
+			return;
+		}
+		if (stackTop == valueStack.length) {
+			keyStack = Arrays.copyOf(keyStack, stackTop * 2);
+			valueStack = Arrays.copyOf(valueStack, stackTop * 2);
+		}
+		keyStack[stackTop] = keys[depth - 1];
+		valueStack[stackTop++] = value;
+		state = NEXT;
+	}
+
+	private void openContainer(boolean map) {
+		if (depth == isMap.length) {
+			isMap = Arrays.copyOf(isMap, depth * 2);
+			bases = Arrays.copyOf(bases, depth * 2);
+			keys = Arrays.copyOf(keys, depth * 2);
+		}
+		isMap[depth] = map;
+		bases[depth] = stackTop;
+		keys[depth] = null;
+		depth++;
+	}
+
+	private void closeContainer() {
+		depth--;
+		int base = bases[depth];
+		LDElement container;
+		if (isMap[depth])
+			container = ElementAccess.createMap(keyStack, valueStack, base, stackTop - base);
+		else {
+			container = decoder.numericArrays ? numericArray(base, stackTop - base) : null;
+			if (container == null)
+				container = ElementAccess.createList(valueStack, base, stackTop - base);
+		}
+		Arrays.fill(keyStack, base, stackTop, null);
+		Arrays.fill(valueStack, base, stackTop, null);
+		stackTop = base;
+		endValue(container);
+	}
+
+	/**
+	 * Returns n values as a numeric array if they are all LDLongs or all
+	 * LDDoubles, else null. The same test JSONScanner makes as it reads, made
+	 * here once the list is complete, since it may arrive in pieces.
+	 */
+	private LDElement numericArray(int base, int n) {
+		if (n == 0)
+			return null;
+		LDElement.EType kind = valueStack[base].getEType();
+		if (kind != LDElement.EType.LONG && kind != LDElement.EType.DOUBLE)
+			return null;
+		for (int i = base + 1; i < base + n; i++) {
+			if (valueStack[i].getEType() != kind)
+				return null;
+		}
+		if (kind == LDElement.EType.LONG) {
+			long[] values = new long[n];
+			for (int i = 0; i < n; i++)
+				values[i] = ((LDLong) valueStack[base + i]).getValue();
+			return new LDLongArray(values);
+		}
+		double[] values = new double[n];
+		for (int i = 0; i < n; i++)
+			values[i] = ((LDDouble) valueStack[base + i]).getValue();
+		return new LDDoubleArray(values);
+	}
+
+	private void append(char c) {
+		if (textLength == text.length)
+			text = Arrays.copyOf(text, textLength * 2);
+		text[textLength++] = c;
+	}
+
+	private void append(char[] buf, int start, int end) {
+		int n = end - start;
+		if (textLength + n > text.length)
+			text = Arrays.copyOf(text, Math.max(textLength * 2, textLength + n));
+		System.arraycopy(buf, start, text, textLength, n);
+		textLength += n;
+	}
+}
@@ -0,0 +1,65 @@
+package org.jehanson.livedata.serialization;
+
+import org.jehanson.livedata.LDElement;
+import org.jehanson.livedata.elements.LDList;
+
+/**
+ * LDList whose children are parsed from a {@link LazyJSONSource} the first
+ * time any of them is needed. Until then it holds only the location of its
+ * text. Loading fires no events, since nothing has changed.
+ * <p>
+ * Loading is thread-safe: threads that touch the children at once wait for
+ * one of them to load, and then all see them. Once loaded the list is no
+ * safer than any other; changes still need outside locking.
+ *
+ * @author jehanson
+ */
+final class LDLazyList extends LDList {
+
+	// =================================
+	// Variables
+	// =================================
+
+	/**
+	 * Null once the children are loaded. Volatile so the check in
+	 * {@link #loadChildren()} can skip the lock after that.
+	 */
+	private volatile LazyJSONSource source;
+	private final long start;
+	private final long end;
+
+	// =================================
+	// Creation
+	// =================================
+
+	LDLazyList(LazyJSONSource source, long start, long end) {
+		this.source = source;
+		this.start = start;
+		this.end = end;
+	}
+
+	// =================================
+	// Operation
+	// =================================
+
+	boolean isLoaded() {
+		return source == null;
+	}
+
+	@Override
+	protected void loadChildren() {
+		if (source == null)
+			return;
+		synchronized (this) {
+			LazyJSONSource s = source;
+			if (s != null) {
+				s.load(this, start, end);
+				source = null;
+			}
+		}
+	}
+
+	void attach(LDElement elem) {
+		attachChild(elem);
+	}
+}
@@ -0,0 +1,470 @@
+package org.jehanson.livedata.serialization;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.jehanson.livedata.LDElement;
+import org.jehanson.livedata.LDObject;
+import org.jehanson.livedata.elements.LDBoolean;
+import org.jehanson.livedata.elements.LDDouble;
+import org.jehanson.livedata.elements.LDDoubleArray;
+import org.jehanson.livedata.elements.LDList;
+import org.jehanson.livedata.elements.LDLong;
+import org.jehanson.livedata.elements.LDLongArray;
+import org.jehanson.livedata.elements.LDMap;
+import org.jehanson.livedata.elements.LDReference;
+import org.jehanson.livedata.elements.LDString;
+import org.jehanson.livedata.elements.LDVoid;
+
+/**
+ * Reads LDElements in the binary format written by
+ * {@link LDSerializerBinary}, which describes it.
+ * <p>
+ * Containers are counted up front, so each one is built at its final size
+ * and without events. Map keys are checked as the JSON parser checks them.
+ * <p>
+ * Instances are immutable and thread-safe.
+ *
+ * @author jehanson
+ */
+public class LDParserBinary implements LDParser {
+
+	// =================================
+	// Inner classes
+	// =================================
+
+	/**
+	 * The input of one call: a byte array, refilled from a stream if there
+	 * is one.
+	 */
+	private static final class Input {
+
+		private final InputStream in;
+		private final byte[] buf;
+		private int pos;
+		private int limit;
+		/** Offset in the input of buf[0]. */
+		private long base;
+
+		private char[] chars = new char[64];
+		private final JSONStringTable keyTable = new JSONStringTable();
+
+		// Children of the containers being read, innermost last.
+		private String[] keyStack = new String[64];
+		private LDElement[] valueStack = new LDElement[64];
+		private int stackTop;
+
+		// Values of the long[] or double[] being read.
+		private long[] longs = new long[64];
+		private double[] doubles = new double[64];
+
+		Input(InputStream in) {
+			this.in = in;
+			this.buf = new byte[BUFFER_SIZE];
+			this.pos = 0;
+			this.limit = 0;
+			this.base = 0;
+		}
+
+		Input(byte[] data, int offset, int length) {
+			this.in = null;
+			this.buf = data;
+			this.pos = offset;
+			this.limit = offset + length;
+			this.base = -offset;
+		}
+
+		void readHeader() throws IOException {
+			for (byte b : MAGIC) {
+				if (readByte() != b)
+					throw error("Not LD binary data");
+			}
+			int version = readByte();
+			if (version != VERSION)
+				throw error("Unsupported version " + version);
+		}
+
+		LDElement readElement() throws IOException {
+			int tag = readByte();
+			LDElement.EType type = (tag < TYPES.length) ? TYPES[tag] : null;
+			if (type == null)
+				throw error("Bad tag " + tag);
+			switch (type) {
+			case BOOLEAN:
+				int b = readByte();
+				if (b > 1)
+					throw error("Bad boolean " + b);
+				return new LDBoolean(b == 1);
+			case DOUBLE:
+				return new LDDouble(Double.longBitsToDouble(readLong8()));
+			case LONG:
+				return new LDLong(readZigzag());
+			case STRING:
+				return new LDString(readString());
+			case REFERENCE:
+				String s = readString();
+				try {
+					return new LDReference(new URI(s));
+				}
+				catch (URISyntaxException e) {
+					throw error("Bad URI in reference: \"" + s + "\"", e);
+				}
+			case VOID:
+				return new LDVoid();
+			case LIST:
+				return readList();
+			case MAP:
+				return readMap();
+			case LONG_ARRAY:
+				return readLongArray();
+			case DOUBLE_ARRAY:
+				return readDoubleArray();
+			default:
+				throw new UnsupportedOperationException("No case found for type " + type);
+			}
+		}
+
+		/**
+		 * Reads a map's children into map.
+		 */
+		void readMapContents(LDMap map) throws IOException {
+			int tag = readByte();
+			if (tag != MAP_TAG)
+				throw error("Expected a map");
+			int n = readCount();
+			for (int i = 0; i < n; i++) {
+				String key = readKey();
+				ElementAccess.putChildUnchecked(map, key, readElement());
+			}
+		}
+
+		private LDList readList() throws IOException {
+			int n = readCount();
+			int base = stackTop;
+			try {
+				for (int i = 0; i < n; i++)
+					push(null, readElement());
+				return ElementAccess.createList(valueStack, base, n);
+			}
+			finally {
+				pop(base);
+			}
+		}
+
+		private LDLongArray readLongArray() throws IOException {
+			int n = readCount();
+			// Grown as the values arrive, so a bad count can't make a huge
+			// array.
+			for (int i = 0; i < n; i++) {
+				if (i == longs.length)
+					longs = Arrays.copyOf(longs, i * 2);
+				longs[i] = readZigzag();
+			}
+			return new LDLongArray(longs, 0, n);
+		}
+
+		private LDDoubleArray readDoubleArray() throws IOException {
+			int n = readCount();
+			for (int i = 0; i < n; i++) {
+				if (i == doubles.length)
+					doubles = Arrays.copyOf(doubles, i * 2);
+				doubles[i] = Double.longBitsToDouble(readLong8());
+			}
+			return new LDDoubleArray(doubles, 0, n);
+		}
+
+		private LDMap readMap() throws IOException {
+			int n = readCount();
+			int base = stackTop;
+			try {
+				for (int i = 0; i < n; i++) {
+					String key = readKey();
+					push(key, readElement());
+				}
+				return ElementAccess.createMap(keyStack, valueStack, base, n);
+			}
+			finally {
+				pop(base);
+			}
+		}
+
+		private void push(String key, LDElement value) {
+			if (stackTop == valueStack.length) {
+				keyStack = Arrays.copyOf(keyStack, stackTop * 2);
+				valueStack = Arrays.copyOf(valueStack, stackTop * 2);
+			}
+			keyStack[stackTop] = key;
+			valueStack[stackTop++] = value;
+		}
+
+		private void pop(int base) {
+			Arrays.fill(keyStack, base, stackTop, null);
+			Arrays.fill(valueStack, base, stackTop, null);
+			stackTop = base;
+		}
+
+		/**
+		 * Reads a key, checking it unless it's one seen before.
+		 */
+		private String readKey() throws IOException {
+			int len = readLength();
+			if (len <= chars.length && fill(len) && isAscii(len)) {
+				for (int i = 0; i < len; i++)
+					chars[i] = (char) buf[pos + i];
+				int hash = JSONStringTable.hash(chars, len);
+				String key = keyTable.find(chars, len, hash);
+				if (key == null) {
+					key = new String(chars, 0, len);
+					if (!JSONDecoder.isValidKey(null, key))
+						throw error("Invalid key: " + key);
+					keyTable.put(key, hash);
+				}
+				pos += len;
+				return key;
+			}
+			String key = readString(len);
+			if (!JSONDecoder.isValidKey(null, key))
+				throw error("Invalid key: " + key);
+			return key;
+		}
+
+		private String readString() throws IOException {
+			return readString(readLength());
+		}
+
+		private String readString(int len) throws IOException {
+			if (fill(len)) {
+				String s;
+				if (isAscii(len)) {
+					if (chars.length < len)
+						chars = new char[Math.max(len, chars.length * 2)];
+					for (int i = 0; i < len; i++)
+						chars[i] = (char) buf[pos + i];
+					s = new String(chars, 0, len);
+				}
+				else
+					s = new String(buf, pos, len, StandardCharsets.UTF_8);
+				pos += len;
+				return s;
+			}
+			// Longer than the buffer. len comes from the input, so the array
+			// grows as bytes arrive rather than being sized by it up front.
+			byte[] bytes = new byte[Math.min(len, 2 * buf.length)];
+			int n = limit - pos;
+			System.arraycopy(buf, pos, bytes, 0, n);
+			pos = limit;
+			while (n < len) {
+				if (n == bytes.length)
+					bytes = Arrays.copyOf(bytes, (int) Math.min(len, 2L * n));
+				int k = in.read(bytes, n, bytes.length - n);
+				if (k < 0)
+					throw error("Premature end of input");
+				n += k;
+				base += k;
+			}
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		private boolean isAscii(int len) {
+			for (int i = pos, end = pos + len; i < end; i++) {
+				if (buf[i] < 0)
+					return false;
+			}
+			return true;
+		}
+
+		private int readByte() throws IOException {
+			if (pos == limit && !fill(1))
+				throw error("Premature end of input");
+			return buf[pos++] & 0xFF;
+		}
+
+		private long readLong8() throws IOException {
+			if (!fill(8))
+				throw error("Premature end of input");
+			long x = 0;
+			for (int i = 0; i < 8; i++)
+				x = (x << 8) | (buf[pos++] & 0xFF);
+			return x;
+		}
+
+		private long readZigzag() throws IOException {
+			long x = readVarLong();
+			return (x >>> 1) ^ -(x & 1);
+		}
+
+		private long readVarLong() throws IOException {
+			long x = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				x |= (long) (b & 0x7F) << shift;
+				if (b < 0x80)
+					return x;
+			}
+			throw error("Bad varint");
+		}
+
+		/**
+		 * Reads a child count. Each child takes at least one byte, so a count
+		 * bigger than what's left of in-memory input is an error.
+		 */
+		private int readCount() throws IOException {
+			long n = readVarLong();
+			if (n > Integer.MAX_VALUE || (in == null && n > limit - pos))
+				throw error("Bad count " + n);
+			return (int) n;
+		}
+
+		private int readLength() throws IOException {
+			long n = readVarLong();
+			if (n > Integer.MAX_VALUE || (in == null && n > limit - pos))
+				throw error("Bad length " + n);
+			return (int) n;
+		}
+
+		/**
+		 * Makes the next n bytes available in buf, if they fit and the input
+		 * has them.
+		 *
+		 * @return true if they're available.
+		 */
+		private boolean fill(int n) throws IOException {
+			if (limit - pos >= n)
+				return true;
+			if (in == null || n > buf.length)
+				return false;
+			int left = limit - pos;
+			System.arraycopy(buf, pos, buf, 0, left);
+			base += pos;
+			pos = 0;
+			limit = left;
+			while (limit < n) {
+				int k = in.read(buf, limit, buf.length - limit);
+				if (k < 0)
+					return false;
+				limit += k;
+			}
+			return true;
+		}
+
+		private LDFormatException error(String msg) {
+			return new LDFormatException(msg + " at byte " + (base + pos));
+		}
+
+		private LDFormatException error(String msg, Throwable cause) {
+			return new LDFormatException(msg + " at byte " + (base + pos), cause);
+		}
+	}
+
+	// =================================
+	// Variables
+	// =================================
+
+	/** First bytes of every input. */
+	static final byte[] MAGIC = { 'L', 'D', 'B' };
+
+	/** Format version, the byte after {@link #MAGIC}. */
+	static final byte VERSION = 1;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/** Indexed by tag. */
+	private static final LDElement.EType[] TYPES = new LDElement.EType[128];
+
+	private static final int MAP_TAG = LDElement.EType.MAP.getSymbol();
+
+	static {
+		for (LDElement.EType type : LDElement.EType.values())
+			TYPES[type.getSymbol()] = type;
+	}
+
+	// =================================
+	// Creation
+	// =================================
+
+	public LDParserBinary() {
+	}
+
+	// =================================
+	// Operation
+	// =================================
+
+	/**
+	 * Reads an element from the stream, and closes it.
+	 */
+	@Override
+	public LDElement parse(InputStream inputStream) throws IOException, LDFormatException {
+		if (inputStream == null)
+			throw new IllegalArgumentException("inputStream cannot be null");
+		try {
+			Input input = new Input(inputStream);
+			input.readHeader();
+			return input.readElement();
+		}
+		finally {
+			inputStream.close();
+		}
+	}
+
+	/**
+	 * Reads a map from the stream into obj, and closes the stream.
+	 */
+	@Override
+	public void parse(LDObject obj, InputStream inputStream) throws IOException,
+			LDFormatException {
+		if (obj == null)
+			throw new IllegalArgumentException("obj cannot be null");
+		if (inputStream == null)
+			throw new IllegalArgumentException("inputStream cannot be null");
+		try {
+			Input input = new Input(inputStream);
+			input.readHeader();
+			input.readMapContents(obj);
+		}
+		finally {
+			inputStream.close();
+		}
+	}
+
+	/**
+	 * Parses the given bytes in place, without copying them.
+	 *
+	 * @param data
+	 *            Not null.
+	 * @return the element. Not null.
+	 * @throws LDFormatException
+	 */
+	public LDElement parse(byte[] data) throws LDFormatException {
+		if (data == null)
+			throw new IllegalArgumentException("data cannot be null");
+		return parse(data, 0, data.length);
+	}
+
+	/**
+	 * Parses length bytes of data starting at offset, without copying them.
+	 *
+	 * @param data
+	 *            Not null.
+	 * @return the element. Not null.
+	 * @throws LDFormatException
+	 */
+	public LDElement parse(byte[] data, int offset, int length) throws LDFormatException {
+		if (data == null)
+			throw new IllegalArgumentException("data cannot be null");
+		if (offset < 0 || length < 0 || length > data.length - offset)
+			throw new IndexOutOfBoundsException();
+		Input input = new Input(data, offset, length);
+		try {
+			input.readHeader();
+			return input.readElement();
+		}
+		catch (IOException e) {
+			// In-memory input doesn't do I/O.
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -1,5 +1,9 @@
 package org.jehanson.livedata.serialization;
 
+import java.io.ByteArrayInputStream;
+import java.io.CharArrayReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FilterReader;
 import java.io.IOException;
 import java.io.InputStream;
@@ -7,11 +11,20 @@ import java.io.InputStreamReader;
 import java.io.Reader;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.jehanson.livedata.LDElement;
+import org.jehanson.livedata.LDHelpers;
 import org.jehanson.livedata.LDObject;
+import org.jehanson.livedata.LDPath;
 import org.jehanson.livedata.elements.LDBoolean;
 import org.jehanson.livedata.elements.LDDouble;
 import org.jehanson.livedata.elements.LDList;
@@ -22,6 +35,14 @@ import org.jehanson.livedata.elements.LDString;
 import org.jehanson.livedata.elements.LDVoid;
 
 /**
+ * Parses JSON text into LDElements.
+ * <p>
+ * Input is scanned in large blocks by a {@link JSONScanner}, which only
+ * works out line numbers when it has an error to report. Input is UTF-8
+ * unless another charset is given to the constructor.
+ * <p>
+ * Instances are immutable and thread-safe. Each parse gets its own scanner,
+ * so one instance can be shared by any number of threads.
  * 
  * @author jehanson
  */
@@ -34,6 +55,49 @@ public class LDParserJSON implements LDParser {
 	// Inner classes
 	// =======================================
 
+	/**
+	 * Optional behavior, given to the constructor.
+	 */
+	public enum Feature {
+
+		/**
+		 * Map keys are looked up in a bounded table, by the chars just
+		 * scanned, so that a key that keeps recurring is made into a String
+		 * and checked for validity once rather than every time. Worthwhile
+		 * for record-oriented data, where many maps share a few hundred keys.
+		 * The table lives as long as a single parse, record reader or pull
+		 * parser. A lazy parse keeps it for loading, which makes loads take
+		 * turns; a parallel parse has one for each chunk.
+		 */
+		INTERN_KEYS,
+
+		/**
+		 * Like {@link #INTERN_KEYS}, for string values of up to 64 chars.
+		 * Worthwhile when values come from a small set, e.g. enumerations.
+		 */
+		INTERN_VALUES,
+
+		/**
+		 * A list whose elements are all integers becomes an
+		 * {@link org.jehanson.livedata.elements.LDLongArray LDLongArray}, and
+		 * one whose elements are all floating-point numbers an
+		 * {@link org.jehanson.livedata.elements.LDDoubleArray LDDoubleArray}.
+		 * Saves memory on numeric data, e.g. series and matrices. Empty
+		 * lists, and lists with anything else in them, stay LDLists, as does
+		 * a list read into an existing one, e.g. by the pull parser.
+		 * <p>
+		 * A lazy parse reads a list that starts with a number, true, false or
+		 * null along with the list's parent, rather than leaving it for
+		 * later. A parallel parse reads a top-level list of nothing but such
+		 * scalars on the calling thread.
+		 */
+		NUMERIC_ARRAYS
+	}
+
+	/**
+	 * Char-at-a-time tokenizer. LDParserJSON no longer uses this (see
+	 * {@link JSONScanner}); it is kept for callers that use it directly.
+	 */
 	public static class Tokenizer extends FilterReader {
 
 		private int prevCharRead;
@@ -428,50 +492,514 @@ public class LDParserJSON implements LDParser {
 	// must match order of CONTROL_CHARS
 	static final String[] CONTROL_ESCAPES = { "\\b", "\\f", "\\n", "\\r", "\\t" };
 
+	private final Charset charset;
+	private final EnumSet<Feature> features;
+
 	// =================================
 	// Creation
 	// =================================
 
+	/**
+	 * Creates a parser for UTF-8 input.
+	 */
 	public LDParserJSON() {
+		this(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Creates a parser for input in the given charset. UTF-8 and US-ASCII
+	 * input is scanned as bytes, with no separate decoding pass; anything
+	 * else is decoded to chars first.
+	 * 
+	 * @param charset
+	 *            Not null.
+	 */
+	public LDParserJSON(Charset charset) {
+		this(charset, new Feature[0]);
+	}
+
+	/**
+	 * Creates a parser for input in the given charset, with the given
+	 * features turned on.
+	 * 
+	 * @param charset
+	 *            Not null.
+	 * @param features
+	 *            Not null.
+	 */
+	public LDParserJSON(Charset charset, Feature... features) {
 		super();
+		if (charset == null)
+			throw new IllegalArgumentException("charset cannot be null");
+		if (features == null)
+			throw new IllegalArgumentException("features cannot be null");
+		this.charset = charset;
+		this.features = EnumSet.noneOf(Feature.class);
+		for (Feature f : features) {
+			if (f == null)
+				throw new IllegalArgumentException("features cannot contain null");
+			this.features.add(f);
+		}
 	}
 
 	// =================================
 	// Operation
 	// =================================
 
+	public Charset getCharset() {
+		return charset;
+	}
+
+	public boolean isEnabled(Feature feature) {
+		return features.contains(feature);
+	}
+
 	@Override
 	public LDElement parse(InputStream inputStream) throws IOException, LDFormatException {
 		if (inputStream == null)
 			throw new IllegalArgumentException("stream cannot be null");
-		Reader r = new InputStreamReader(inputStream);
-		Tokenizer r2 = new Tokenizer(r);
+		JSONScanner scanner = createScanner(inputStream);
+		try {
+			return scanner.readElement();
+		}
+		finally {
+			// Closes inputStream.
+			scanner.close();
+		}
+	}
+
+	/**
+	 * Parses the given bytes in place, without copying them.
+	 * 
+	 * @param data
+	 *            Not null.
+	 * @return the element. Not null.
+	 * @throws LDFormatException
+	 */
+	public LDElement parse(byte[] data) throws LDFormatException {
+		if (data == null)
+			throw new IllegalArgumentException("data cannot be null");
+		return parse(data, 0, data.length);
+	}
+
+	/**
+	 * Parses length bytes of data starting at offset, without copying them.
+	 * 
+	 * @param data
+	 *            Not null.
+	 * @return the element. Not null.
+	 * @throws LDFormatException
+	 */
+	public LDElement parse(byte[] data, int offset, int length) throws LDFormatException {
+		if (data == null)
+			throw new IllegalArgumentException("data cannot be null");
+		JSONScanner scanner;
+		if (isByteScannable())
+			scanner = new JSONByteScanner(data, offset, length);
+		else
+			scanner = new JSONCharScanner(new InputStreamReader(new ByteArrayInputStream(data,
+					offset, length), charset));
+		return readAll(configure(scanner));
+	}
+
+	/**
+	 * Parses the remaining bytes of the given buffer. The buffer's position is
+	 * not changed. A heap buffer is parsed in place; a direct buffer is copied
+	 * in large blocks.
+	 * 
+	 * @param buffer
+	 *            Not null.
+	 * @return the element. Not null.
+	 * @throws LDFormatException
+	 */
+	public LDElement parse(ByteBuffer buffer) throws LDFormatException {
+		if (buffer == null)
+			throw new IllegalArgumentException("buffer cannot be null");
+		JSONScanner scanner;
+		if (isByteScannable())
+			scanner = JSONByteScanner.create(buffer);
+		else {
+			CharBuffer chars = charset.decode(buffer.duplicate());
+			scanner = new JSONCharScanner(new CharArrayReader(chars.array(), chars.arrayOffset()
+					+ chars.position(), chars.remaining()));
+		}
+		return readAll(configure(scanner));
+	}
+
+	/**
+	 * Parses the given file. UTF-8 and US-ASCII files are memory-mapped and
+	 * scanned straight from the mapping, so the file's contents are never
+	 * copied onto the heap in bulk.
+	 * 
+	 * @param file
+	 *            Not null.
+	 * @return the element. Not null.
+	 * @throws IOException
+	 * @throws LDFormatException
+	 */
+	public LDElement parse(File file) throws IOException, LDFormatException {
+		JSONScanner scanner = createScanner(file);
+		try {
+			return scanner.readElement();
+		}
+		finally {
+			scanner.close();
+		}
+	}
+
+	/**
+	 * Like {@link #parse(LDObject, InputStream)}, but reads the given file as
+	 * {@link #parse(File)} does.
+	 * 
+	 * @param obj
+	 *            Not null.
+	 * @param file
+	 *            Not null.
+	 * @throws IOException
+	 * @throws LDFormatException
+	 */
+	public void parse(LDObject obj, File file) throws IOException, LDFormatException {
+		if (obj == null)
+			throw new IllegalArgumentException("obj cannot be null");
+		JSONScanner scanner = createScanner(file);
+		try {
+			scanner.readMapContents(obj);
+		}
+		finally {
+			scanner.close();
+		}
+	}
+
+	/**
+	 * Parses the given bytes lazily. Nested maps and lists are skipped over
+	 * and come back as LDMaps and LDLists that parse their own children from
+	 * data the first time anything asks for one, so subtrees nobody touches
+	 * are never built. Loading a container fires no events.
+	 * <p>
+	 * data is not copied, and must not change while any element from the
+	 * result is in use. Because skipped text is checked only for balanced
+	 * brackets and quotes, a format error in a nested container is thrown,
+	 * as an LDFormatException, by whichever method first touches it.
+	 * <p>
+	 * Loading is thread-safe, so the result may be read from several threads
+	 * at once as though it had been parsed eagerly.
+	 * <p>
+	 * For charsets other than UTF-8 and US-ASCII this parses eagerly.
+	 * 
+	 * @param data
+	 *            Not null.
+	 * @return the element. Not null.
+	 * @throws LDFormatException
+	 */
+	public LDElement parseLazy(byte[] data) throws LDFormatException {
+		if (data == null)
+			throw new IllegalArgumentException("data cannot be null");
+		if (!isByteScannable())
+			return parse(data);
+		return configure(LazyJSONSource.create(data, 0, data.length)).readElement();
+	}
+
+	/**
+	 * Like {@link #parseLazy(byte[])}, reading the remaining bytes of the
+	 * given buffer. The buffer's position is not changed.
+	 * 
+	 * @param buffer
+	 *            Not null.
+	 * @return the element. Not null.
+	 * @throws LDFormatException
+	 */
+	public LDElement parseLazy(ByteBuffer buffer) throws LDFormatException {
+		if (buffer == null)
+			throw new IllegalArgumentException("buffer cannot be null");
+		if (!isByteScannable())
+			return parse(buffer);
+		return configure(LazyJSONSource.create(buffer)).readElement();
+	}
+
+	/**
+	 * Like {@link #parseLazy(byte[])}, reading the given file through a
+	 * memory mapping that is held until the last lazy container is loaded or
+	 * collected. The file must not change in the meantime.
+	 * 
+	 * @param obj
+	 *            Not null.
+	 * @param file
+	 *            Not null.
+	 * @throws IOException
+	 * @throws LDFormatException
+	 */
+	public void parseLazy(LDObject obj, File file) throws IOException, LDFormatException {
+		if (obj == null)
+			throw new IllegalArgumentException("obj cannot be null");
+		if (file == null)
+			throw new IllegalArgumentException("file cannot be null");
+		if (!isByteScannable())
+			parse(obj, file);
+		else
+			configure(LazyJSONSource.create(MappedFile.map(file))).readMapContents(obj);
+	}
+
+	/**
+	 * Parses the given bytes using the threads of the given pool. If the
+	 * input is a list or map, a quick sequential pass finds the boundaries of
+	 * its elements, which are then parsed in chunks in parallel and put into
+	 * the result in their original order. Other input is parsed on the
+	 * calling thread, as is input in charsets other than UTF-8 and US-ASCII.
+	 * 
+	 * @param data
+	 *            Not null.
+	 * @param pool
+	 *            Not null.
+	 * @return the element. Not null.
+	 * @throws LDFormatException
+	 */
+	public LDElement parseParallel(byte[] data, ForkJoinPool pool) throws LDFormatException {
+		if (data == null)
+			throw new IllegalArgumentException("data cannot be null");
+		if (pool == null)
+			throw new IllegalArgumentException("pool cannot be null");
+		if (!isByteScannable())
+			return parse(data);
+		LazyJSONSource source = configure(LazyJSONSource.create(data, 0, data.length));
+		return ParallelJSONReader.read(source, pool);
+	}
+
+	/**
+	 * Like {@link #parseParallel(byte[], ForkJoinPool)}, reading the
+	 * remaining bytes of the given buffer. The buffer's position is not
+	 * changed.
+	 * 
+	 * @param buffer
+	 *            Not null.
+	 * @param pool
+	 *            Not null.
+	 * @return the element. Not null.
+	 * @throws LDFormatException
+	 */
+	public LDElement parseParallel(ByteBuffer buffer, ForkJoinPool pool)
+			throws LDFormatException {
+		if (buffer == null)
+			throw new IllegalArgumentException("buffer cannot be null");
+		if (pool == null)
+			throw new IllegalArgumentException("pool cannot be null");
+		if (!isByteScannable())
+			return parse(buffer);
+		LazyJSONSource source = configure(LazyJSONSource.create(buffer));
+		return ParallelJSONReader.read(source, pool);
+	}
+
+	/**
+	 * Like {@link #parseParallel(byte[], ForkJoinPool)}, reading the given
+	 * file through a memory mapping.
+	 * 
+	 * @param file
+	 *            Not null.
+	 * @param pool
+	 *            Not null.
+	 * @return the element. Not null.
+	 * @throws IOException
+	 * @throws LDFormatException
+	 */
+	public LDElement parseParallel(File file, ForkJoinPool pool) throws IOException,
+			LDFormatException {
+		if (file == null)
+			throw new IllegalArgumentException("file cannot be null");
+		if (pool == null)
+			throw new IllegalArgumentException("pool cannot be null");
+		if (!isByteScannable())
+			return parse(file);
+		LazyJSONSource source = configure(LazyJSONSource.create(MappedFile.map(file)));
+		return ParallelJSONReader.read(source, pool);
+	}
+
+	/**
+	 * Reads only the parts of the given stream that lie on or under one of
+	 * the given paths, into a new LDObject. Everything else is skipped at
+	 * scan speed, without building elements or Strings.
+	 * <p>
+	 * A path segment "*" matches any key or list index. A container appears
+	 * in the result only if something under it was selected; list elements
+	 * keep their indices, with LDVoids filling the gaps. For example, the
+	 * paths "meta/*" and "items/*&#47;id" select the whole of every child of
+	 * "meta" and the "id" of every element of "items".
+	 * 
+	 * @param inputStream
+	 *            Not null. Must hold a map. Closed when done.
+	 * @param paths
+	 *            Not null.
+	 * @return the selected parts. Not null.
+	 * @throws IOException
+	 * @throws LDFormatException
+	 */
+	public LDObject parseSelected(InputStream inputStream, Collection<LDPath> paths)
+			throws IOException, LDFormatException {
+		if (inputStream == null)
+			throw new IllegalArgumentException("inputStream cannot be null");
+		JSONPathFilter filter = new JSONPathFilter(paths);
+		LDObject obj = new LDObject();
+		JSONScanner scanner = createScanner(inputStream);
+		try {
+			filter.readMapContents(scanner, obj);
+		}
+		finally {
+			scanner.close();
+		}
+		return obj;
+	}
+
+	/**
+	 * Returns a pull parser over the given stream. Closing the pull parser
+	 * closes the stream.
+	 * 
+	 * @param inputStream
+	 *            Not null.
+	 * @return the pull parser. Not null.
+	 */
+	public LDPullParserJSON createPullParser(InputStream inputStream) {
+		if (inputStream == null)
+			throw new IllegalArgumentException("inputStream cannot be null");
+		return new LDPullParserJSON(createScanner(inputStream));
+	}
+
+	/**
+	 * Returns a reader that yields one element per top-level value in the
+	 * given stream, e.g. one per line of newline-delimited JSON. Closing the
+	 * record reader closes the stream.
+	 * 
+	 * @param inputStream
+	 *            Not null.
+	 * @return the record reader. Not null.
+	 */
+	public LDRecordReaderJSON createRecordReader(InputStream inputStream) {
+		if (inputStream == null)
+			throw new IllegalArgumentException("inputStream cannot be null");
+		return new LDRecordReaderJSON(createScanner(inputStream));
+	}
+
+	/**
+	 * Reloads obj from the given stream, changing only what differs. Where
+	 * {@link #parse(LDObject, InputStream)} puts a new element under every
+	 * key, this keeps each element whose content hasn't changed, with its
+	 * identity, and fires nothing for it. A changed value is set in place,
+	 * and keys are added or removed only where the input adds or drops them.
+	 * Afterwards obj equals the input, so listeners hear about exactly the
+	 * differences. See {@link LDHelpers#update(LDElement, LDElement)}.
+	 * 
+	 * @param obj
+	 *            Not null.
+	 * @param inputStream
+	 *            Not null. Must hold a map. Closed when done.
+	 * @throws IOException
+	 * @throws LDFormatException
+	 *             if the input is bad, in which case obj is unchanged.
+	 */
+	public void merge(LDObject obj, InputStream inputStream) throws IOException,
+			LDFormatException {
+		if (obj == null)
+			throw new IllegalArgumentException("obj cannot be null");
+		if (inputStream == null)
+			throw new IllegalArgumentException("inputStream cannot be null");
+		LDMap incoming = new LDMap();
+		JSONScanner scanner = createScanner(inputStream);
 		try {
-			return r2.readElement();
+			scanner.readMapContents(incoming);
 		}
 		finally {
-			// Does closing r2 close r as well? Yes it does.
-			// Does closing r close inputStream? I don't know!
-			r2.close();
+			scanner.close();
 		}
+		LDHelpers.update(obj, incoming);
 	}
-	
+
+	/**
+	 * Returns a parser that is given its input a chunk at a time, instead of
+	 * reading it from a stream. It decodes the input in this parser's
+	 * charset.
+	 * 
+	 * @return the incremental parser. Not null.
+	 */
+	public LDIncrementalParserJSON createIncrementalParser() {
+		LDIncrementalParserJSON parser = new LDIncrementalParserJSON(charset);
+		configure(parser.decoder);
+		return parser;
+	}
+
 	@Override
 	public void parse(LDObject obj, InputStream inputStream) throws IOException,
 			LDFormatException {
 		if (inputStream == null)
 			throw new IllegalArgumentException("inputStream cannot be null");
-		Reader r = new InputStreamReader(inputStream);
-		Tokenizer r2 = new Tokenizer(r);
+		JSONScanner scanner = createScanner(inputStream);
 		try {
-			r2.readMapContents(obj);
+			scanner.readMapContents(obj);
 		}
 		finally {
-			// Does closing r2 close r as well? Yes it does.
-			// Does closing r close inputStream? I don't know!
-			r2.close();
+			// Closes inputStream.
+			scanner.close();
+		}
+	}
+
+	// =================================
+	// Private
+	// =================================
+
+	private boolean isByteScannable() {
+		return charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII);
+	}
+
+	private JSONScanner createScanner(InputStream inputStream) {
+		if (isByteScannable())
+			return configure(new JSONByteScanner(inputStream));
+		else
+			return configure(new JSONCharScanner(new InputStreamReader(inputStream, charset)));
+	}
+
+	private JSONScanner createScanner(File file) throws IOException {
+		if (file == null)
+			throw new IllegalArgumentException("file cannot be null");
+		if (isByteScannable()) {
+			MappedFile mapped = MappedFile.map(file);
+			return configure(new JSONByteScanner(mapped.buffers(0, mapped.size()),
+					JSONByteScanner.DEFAULT_WINDOW_SIZE));
+		}
+		else
+			return createScanner(new FileInputStream(file));
+	}
+
+	/**
+	 * Gives the scanner or decoder what the features call for.
+	 */
+	private <T extends JSONDecoder> T configure(T decoder) {
+		if (features.contains(Feature.INTERN_KEYS))
+			decoder.keyTable = new JSONStringTable();
+		if (features.contains(Feature.INTERN_VALUES))
+			decoder.valueTable = new JSONStringTable();
+		decoder.numericArrays = features.contains(Feature.NUMERIC_ARRAYS);
+		return decoder;
+	}
+
+	/**
+	 * Gives the lazy source what the features call for.
+	 */
+	private LazyJSONSource configure(LazyJSONSource source) {
+		if (features.contains(Feature.INTERN_KEYS))
+			source.keyTable = new JSONStringTable();
+		if (features.contains(Feature.INTERN_VALUES))
+			source.valueTable = new JSONStringTable();
+		source.numericArrays = features.contains(Feature.NUMERIC_ARRAYS);
+		return source;
+	}
+
+	/**
+	 * Reads one element from an in-memory scanner.
+	 */
+	private LDElement readAll(JSONScanner scanner) throws LDFormatException {
+		try {
+			return scanner.readElement();
+		}
+		catch (IOException e) {
+			// In-memory input doesn't do I/O.
+			throw new IllegalStateException(e);
 		}
 	}
 
-	
 }
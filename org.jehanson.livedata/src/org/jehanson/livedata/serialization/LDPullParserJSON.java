@@ -0,0 +1,298 @@
+package org.jehanson.livedata.serialization;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+
+import org.jehanson.livedata.LDElement;
+import org.jehanson.livedata.elements.LDList;
+import org.jehanson.livedata.elements.LDMap;
+import org.jehanson.livedata.elements.LDReference;
+import org.jehanson.livedata.elements.LDString;
+
+/**
+ * Pull-style reader for JSON text. Each call to {@link #next()} returns one
+ * token; nothing is built unless the caller asks for it with
+ * {@link #readElement()}. That keeps memory use flat no matter how big the
+ * document is.
+ * <p>
+ * Follows the same grammar as {@link LDParserJSON}, including the
+ * <code>"&lt;uri&gt;"</code> reference convention. Several top-level values
+ * may follow one another in the input; {@link Token#END_DOCUMENT} is returned
+ * only at end of input.
+ * <p>
+ * Get one from {@link LDParserJSON#createPullParser(java.io.InputStream)}.
+ *
+ * @author jehanson
+ */
+public class LDPullParserJSON implements Closeable {
+
+	// =================================
+	// Inner classes
+	// =================================
+
+	public static enum Token {
+		START_MAP, END_MAP, START_LIST, END_LIST, KEY, BOOLEAN, LONG, DOUBLE, STRING,
+		REFERENCE, VOID, END_DOCUMENT
+	}
+
+	// =================================
+	// Variables
+	// =================================
+
+	// What each open container expects next.
+	private static final byte MAP_START = 0;
+	private static final byte MAP_VALUE = 1;
+	private static final byte MAP_NEXT = 2;
+	private static final byte LIST_START = 3;
+	private static final byte LIST_NEXT = 4;
+
+	private final JSONScanner scanner;
+	private byte[] stack;
+	private int depth;
+	private Token token;
+	private String key;
+	private String stringValue;
+	private URI referenceValue;
+
+	// =================================
+	// Creation
+	// =================================
+
+	LDPullParserJSON(JSONScanner scanner) {
+		this.scanner = scanner;
+		this.stack = new byte[32];
+		this.depth = 0;
+		this.token = null;
+	}
+
+	// =================================
+	// Operation
+	// =================================
+
+	/**
+	 * Advances to the next token.
+	 *
+	 * @return the new current token. Not null.
+	 * @throws IOException
+	 * @throws LDFormatException
+	 */
+	public Token next() throws IOException, LDFormatException {
+		if (token == Token.END_DOCUMENT)
+			return token;
+		int c = scanner.nextClean();
+		if (depth == 0) {
+			if (c < 0)
+				return token = Token.END_DOCUMENT;
+			return value(c);
+		}
+		switch (stack[depth - 1]) {
+		case MAP_START:
+			if (c == LDParserJSON.MAP_SUFFIX)
+				return endContainer(Token.END_MAP);
+			return key(c);
+		case MAP_VALUE:
+			stack[depth - 1] = MAP_NEXT;
+			return value(c);
+		case MAP_NEXT:
+			if (c == LDParserJSON.MAP_SUFFIX)
+				return endContainer(Token.END_MAP);
+			else if (c != LDParserJSON.ELEMENT_SEPARATOR)
+				throw scanner.error(JSONScanner.expected(LDParserJSON.ELEMENT_SEPARATOR,
+						LDParserJSON.MAP_SUFFIX, c));
+			return key(scanner.nextClean());
+		case LIST_START:
+			if (c == LDParserJSON.LIST_SUFFIX)
+				return endContainer(Token.END_LIST);
+			stack[depth - 1] = LIST_NEXT;
+			return value(c);
+		default:
+			if (c == LDParserJSON.LIST_SUFFIX)
+				return endContainer(Token.END_LIST);
+			else if (c != LDParserJSON.ELEMENT_SEPARATOR)
+				throw scanner.error(JSONScanner.expected(LDParserJSON.ELEMENT_SEPARATOR,
+						LDParserJSON.LIST_SUFFIX, c));
+			return value(scanner.nextClean());
+		}
+	}
+
+	/**
+	 * @return the current token, or null if {@link #next()} has not been
+	 *         called yet.
+	 */
+	public Token getToken() {
+		return token;
+	}
+
+	/**
+	 * Returns the number of containers that are currently open. A START token
+	 * increases it and the matching END token decreases it.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Returns the most recent map key read. It stays valid while the parser
+	 * is positioned on that key's value.
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	public boolean getBooleanValue() {
+		checkToken(Token.BOOLEAN);
+		return scanner.booleanValue;
+	}
+
+	public long getLongValue() {
+		checkToken(Token.LONG);
+		return scanner.longValue;
+	}
+
+	/**
+	 * Returns the current DOUBLE, or the current LONG converted to double.
+	 */
+	public double getDoubleValue() {
+		if (token == Token.LONG)
+			return scanner.longValue;
+		checkToken(Token.DOUBLE);
+		return scanner.doubleValue;
+	}
+
+	public String getStringValue() {
+		checkToken(Token.STRING);
+		return stringValue;
+	}
+
+	public URI getReferenceValue() {
+		checkToken(Token.REFERENCE);
+		return referenceValue;
+	}
+
+	/**
+	 * Builds the value at the current token. For a START token this reads
+	 * the whole subtree, and leaves the parser on the matching END token.
+	 *
+	 * @return the element. Not null.
+	 * @throws IllegalStateException
+	 *             if the current token does not start a value.
+	 * @throws IOException
+	 * @throws LDFormatException
+	 */
+	public LDElement readElement() throws IOException, LDFormatException {
+		if (token == null)
+			throw new IllegalStateException("No current token");
+		switch (token) {
+		case START_MAP:
+			LDMap map = scanner.readMapBody(new LDMap());
+			endContainer(Token.END_MAP);
+			return map;
+		case START_LIST:
+			LDList list = scanner.readListBody(new LDList());
+			endContainer(Token.END_LIST);
+			return list;
+		case STRING:
+			return new LDString(stringValue);
+		case REFERENCE:
+			return new LDReference(referenceValue);
+		case BOOLEAN:
+			return scanner.scalarElement(LDElement.EType.BOOLEAN);
+		case LONG:
+			return scanner.scalarElement(LDElement.EType.LONG);
+		case DOUBLE:
+			return scanner.scalarElement(LDElement.EType.DOUBLE);
+		case VOID:
+			return scanner.scalarElement(LDElement.EType.VOID);
+		default:
+			throw new IllegalStateException("No value at token " + token);
+		}
+	}
+
+	/**
+	 * If the current token is START_MAP or START_LIST, skips the rest of that
+	 * container without building anything and leaves the parser on the
+	 * matching END token. Otherwise does nothing.
+	 *
+	 * @throws IOException
+	 * @throws LDFormatException
+	 */
+	public void skipElement() throws IOException, LDFormatException {
+		if (token == Token.START_MAP) {
+			scanner.skipContainerBody();
+			endContainer(Token.END_MAP);
+		}
+		else if (token == Token.START_LIST) {
+			scanner.skipContainerBody();
+			endContainer(Token.END_LIST);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		scanner.close();
+	}
+
+	// =================================
+	// Private
+	// =================================
+
+	private Token key(int c) throws IOException, LDFormatException {
+		key = scanner.readValidKey(c, null);
+		stack[depth - 1] = MAP_VALUE;
+		return token = Token.KEY;
+	}
+
+	private Token value(int c) throws IOException, LDFormatException {
+		switch (c) {
+		case LDParserJSON.MAP_PREFIX:
+			push(MAP_START);
+			return token = Token.START_MAP;
+		case LDParserJSON.LIST_PREFIX:
+			push(LIST_START);
+			return token = Token.START_LIST;
+		case LDParserJSON.QUOTE:
+			String s = scanner.scanString();
+			referenceValue = scanner.referenceValue(s);
+			if (referenceValue != null)
+				return token = Token.REFERENCE;
+			stringValue = s;
+			return token = Token.STRING;
+		case LDParserJSON.ELEMENT_SEPARATOR:
+		case LDParserJSON.KEY_VALUE_SEP_CHAR:
+		case LDParserJSON.LIST_SUFFIX:
+		case LDParserJSON.MAP_SUFFIX:
+			throw scanner.error("Unexpected " + JSONScanner.describe(c));
+		default:
+			if (c < 0)
+				throw scanner.error("Premature end of file");
+			switch (scanner.scanScalar()) {
+			case BOOLEAN:
+				return token = Token.BOOLEAN;
+			case LONG:
+				return token = Token.LONG;
+			case DOUBLE:
+				return token = Token.DOUBLE;
+			default:
+				return token = Token.VOID;
+			}
+		}
+	}
+
+	private void push(byte state) {
+		if (depth == stack.length)
+			stack = Arrays.copyOf(stack, depth * 2);
+		stack[depth++] = state;
+	}
+
+	private Token endContainer(Token t) {
+		depth--;
+		return token = t;
+	}
+
+	private void checkToken(Token expected) {
+		if (token != expected)
+			throw new IllegalStateException("Current token is " + token + ", not " + expected);
+	}
+}
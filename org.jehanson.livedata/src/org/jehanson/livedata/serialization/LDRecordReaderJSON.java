@@ -0,0 +1,131 @@
+package org.jehanson.livedata.serialization;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.jehanson.livedata.LDElement;
+
+/**
+ * Reads a sequence of top-level JSON values, such as newline-delimited JSON
+ * (JSON Lines, NDJSON), one element at a time. Values may be separated by
+ * any whitespace, so blank lines are skipped, and plain concatenated JSON
+ * reads too.
+ * <p>
+ * One scanner and its window are reused for the whole input, so heap use
+ * does not grow with the length of the stream: only the current record is
+ * built. Line numbers in error messages count from the start of the stream.
+ * <p>
+ * Since Iterator methods can't throw IOException, read errors surface as
+ * UncheckedIOException; format errors as LDFormatException.
+ * <p>
+ * Get one from {@link LDParserJSON#createRecordReader(java.io.InputStream)}.
+ *
+ * @author jehanson
+ */
+public class LDRecordReaderJSON implements Iterator<LDElement>, Closeable {
+
+	// =================================
+	// Variables
+	// =================================
+
+	/** Value of {@link #pending} when no char has been read ahead. */
+	private static final int NONE = -2;
+
+	private final JSONScanner scanner;
+
+	/** First char of the next value, already consumed; -1 at end of input. */
+	private int pending;
+
+	private long count;
+
+	// =================================
+	// Creation
+	// =================================
+
+	LDRecordReaderJSON(JSONScanner scanner) {
+		this.scanner = scanner;
+		this.pending = NONE;
+		this.count = 0;
+	}
+
+	// =================================
+	// Operation
+	// =================================
+
+	@Override
+	public boolean hasNext() {
+		if (pending == NONE) {
+			try {
+				pending = scanner.nextClean();
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return pending >= 0;
+	}
+
+	/**
+	 * Reads the next record.
+	 * 
+	 * @return the record. Not null.
+	 * @throws NoSuchElementException
+	 *             at end of input.
+	 * @throws LDFormatException
+	 *             if the record is malformed.
+	 */
+	@Override
+	public LDElement next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		int c = pending;
+		pending = NONE;
+		try {
+			LDElement elem = scanner.readValue(c);
+			count++;
+			return elem;
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Returns the number of records read so far.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the remaining records as a sequential stream. Closing the stream
+	 * closes this reader.
+	 */
+	public Stream<LDElement> stream() {
+		Stream<LDElement> s = StreamSupport.stream(Spliterators.spliteratorUnknownSize(this,
+				Spliterator.ORDERED | Spliterator.NONNULL), false);
+		return s.onClose(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					close();
+				}
+				catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void close() throws IOException {
+		scanner.close();
+	}
+}
@@ -0,0 +1,82 @@
+package org.jehanson.livedata.serialization;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.jehanson.livedata.LDElement;
+
+/**
+ * Writes a sequence of elements as newline-delimited JSON (JSON Lines,
+ * NDJSON): each element compact, on a line of its own, in UTF-8. Output is
+ * buffered; nothing but the buffer is held between records.
+ * <p>
+ * Get one from {@link LDSerializerJSON#createRecordWriter(OutputStream)}.
+ * Read the output back with {@link LDRecordReaderJSON}.
+ *
+ * @author jehanson
+ */
+public class LDRecordWriterJSON implements Closeable, Flushable {
+
+	// =================================
+	// Variables
+	// =================================
+
+	private final OutputStream stream;
+	private final JSONByteWriter writer;
+	private long count;
+
+	// =================================
+	// Creation
+	// =================================
+
+	LDRecordWriterJSON(LDSerializerJSON serializer, OutputStream stream) {
+		this.stream = stream;
+		this.writer = serializer.createByteWriter(stream,
+				new byte[JSONByteWriter.DEFAULT_BUFFER_SIZE]);
+		this.count = 0;
+	}
+
+	// =================================
+	// Operation
+	// =================================
+
+	/**
+	 * Writes elem and a newline.
+	 * 
+	 * @param elem
+	 *            Not null.
+	 * @throws IOException
+	 */
+	public void write(LDElement elem) throws IOException {
+		if (elem == null)
+			throw new IllegalArgumentException("elem cannot be null");
+		writer.write(elem, 0);
+		writer.writeByte('\n');
+		count++;
+	}
+
+	/**
+	 * Returns the number of records written so far.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		writer.flushBuffer();
+		stream.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			writer.flushBuffer();
+		}
+		finally {
+			stream.close();
+		}
+	}
+}
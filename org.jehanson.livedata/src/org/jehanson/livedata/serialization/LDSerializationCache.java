@@ -0,0 +1,195 @@
+package org.jehanson.livedata.serialization;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jehanson.livedata.LDElement;
+
+/**
+ * Holds the JSON text of maps and lists, so that serializing a tree again
+ * re-encodes only the subtrees that have changed and copies the rest.
+ * <p>
+ * A change anywhere in a tree changes {@link LDElement#getModCount()} of
+ * every container on the path from it to the root, and only there. Entries
+ * are checked against that count when used, so a change makes stale exactly
+ * the entries along its path. Entries don't keep their containers alive.
+ * <p>
+ * Total size is bounded; the least recently used entries go first. Get one
+ * from {@link LDSerializerJSON#createCache(long)}, and use it only with that
+ * serializer. Thread-safe, with one lock per cache.
+ *
+ * @author jehanson
+ */
+public final class LDSerializationCache {
+
+	// =================================
+	// Inner classes
+	// =================================
+
+	/** Identity of a container, without keeping it alive. */
+	private static final class Key extends WeakReference<LDElement> {
+
+		private final int hash;
+
+		Key(LDElement elem, ReferenceQueue<LDElement> queue) {
+			super(elem, queue);
+			this.hash = System.identityHashCode(elem);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj == this)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			LDElement elem = get();
+			return elem != null && elem == ((Key) obj).get();
+		}
+	}
+
+	private static final class Entry {
+
+		final int modCount;
+		final int level;
+		final byte[] bytes;
+
+		Entry(int modCount, int level, byte[] bytes) {
+			this.modCount = modCount;
+			this.level = level;
+			this.bytes = bytes;
+		}
+	}
+
+	// =================================
+	// Variables
+	// =================================
+
+	/**
+	 * Text shorter than this isn't held: copying it from the cache would
+	 * save less than the entry costs.
+	 */
+	static final int MIN_LENGTH = 64;
+
+	private final LDSerializerJSON serializer;
+	private final long maxBytes;
+	private final LinkedHashMap<Key, Entry> entries;
+	private final ReferenceQueue<LDElement> cleared;
+	private long bytes;
+	private long hits;
+	private long misses;
+
+	// =================================
+	// Creation
+	// =================================
+
+	LDSerializationCache(LDSerializerJSON serializer, long maxBytes) {
+		this.serializer = serializer;
+		this.maxBytes = maxBytes;
+		this.entries = new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+		this.cleared = new ReferenceQueue<LDElement>();
+		this.bytes = 0;
+		this.hits = 0;
+		this.misses = 0;
+	}
+
+	// =================================
+	// Operation
+	// =================================
+
+	public LDSerializerJSON getSerializer() {
+		return serializer;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Returns the total length of the text held.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the number of times held text has been used.
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of times a container had to be encoded.
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+		while (cleared.poll() != null) {
+		}
+	}
+
+	/**
+	 * Returns the text of container written at the given indent level, or
+	 * null if it's not held or has changed since.
+	 */
+	synchronized byte[] get(LDElement container, int level) {
+		Entry e = entries.get(new Key(container, null));
+		if (e == null || e.modCount != container.getModCount() || e.level != level) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return e.bytes;
+	}
+
+	/**
+	 * Holds the text of container, as of the given modCount, replacing what
+	 * was held for it before.
+	 */
+	synchronized void put(LDElement container, int modCount, int level, byte[] text) {
+		purge();
+		if (text.length < MIN_LENGTH || text.length > maxBytes)
+			return;
+		Entry prev = entries.put(new Key(container, cleared), new Entry(modCount, level, text));
+		if (prev != null)
+			bytes -= prev.bytes.length;
+		bytes += text.length;
+		Iterator<Entry> iter = entries.values().iterator();
+		while (bytes > maxBytes && iter.hasNext()) {
+			bytes -= iter.next().bytes.length;
+			iter.remove();
+		}
+	}
+
+	// =================================
+	// Private
+	// =================================
+
+	/**
+	 * Drops the entries of containers that have been collected.
+	 */
+	private void purge() {
+		Object ref;
+		while ((ref = cleared.poll()) != null) {
+			Entry e = entries.remove(ref);
+			if (e != null)
+				bytes -= e.bytes.length;
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package org.jehanson.livedata.serialization;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.jehanson.livedata.LDElement;
+import org.jehanson.livedata.elements.LDBoolean;
+import org.jehanson.livedata.elements.LDDouble;
+import org.jehanson.livedata.elements.LDDoubleArray;
+import org.jehanson.livedata.elements.LDList;
+import org.jehanson.livedata.elements.LDLong;
+import org.jehanson.livedata.elements.LDLongArray;
+import org.jehanson.livedata.elements.LDMap;
+import org.jehanson.livedata.elements.LDReference;
+import org.jehanson.livedata.elements.LDString;
+
+/**
+ * Writes LDElements in a compact binary format, for hops between services
+ * where nobody reads the text. Read it back with {@link LDParserBinary}.
+ * <p>
+ * The format is a header, {@link LDParserBinary#MAGIC} followed by
+ * {@link LDParserBinary#VERSION}, then one element. An element is a tag byte,
+ * the element type's {@link LDElement.EType#getSymbol() symbol}, followed by:
+ * <ul>
+ * <li>boolean: one byte, 0 or 1.</li>
+ * <li>long: the value zigzag-encoded as a varint.</li>
+ * <li>double: the 8 bytes of its IEEE bits, big-endian.</li>
+ * <li>string, reference: the length of its UTF-8 bytes as a varint, then the
+ * bytes. A reference holds its URI.</li>
+ * <li>void: nothing.</li>
+ * <li>list: the child count as a varint, then the children.</li>
+ * <li>map: the child count as a varint, then each key, written as a string is,
+ * followed by its child.</li>
+ * <li>long[]: the count as a varint, then the values, each written as a long
+ * is.</li>
+ * <li>double[]: the count as a varint, then the values, each written as a
+ * double is.</li>
+ * </ul>
+ * Varints are unsigned, 7 bits per byte, low bits first, with the high bit
+ * set on every byte but the last.
+ * <p>
+ * Instances are immutable and thread-safe.
+ *
+ * @author jehanson
+ */
+public class LDSerializerBinary implements LDSerializer {
+
+	// ================================
+	// Inner classes
+	// ================================
+
+	/**
+	 * Buffers the output of one call.
+	 */
+	private static final class Output {
+
+		private final OutputStream out;
+		private final byte[] buf;
+		private int pos;
+
+		Output(OutputStream out, byte[] buf) {
+			this.out = out;
+			this.buf = buf;
+			this.pos = 0;
+		}
+
+		void write(LDElement elem) throws IOException {
+			LDElement.EType type = elem.getEType();
+			ensure(1);
+			buf[pos++] = TAGS[type.ordinal()];
+			switch (type) {
+			case BOOLEAN:
+				ensure(1);
+				buf[pos++] = (byte) (((LDBoolean) elem).getValue() ? 1 : 0);
+				break;
+			case DOUBLE:
+				writeDouble(((LDDouble) elem).getValue());
+				break;
+			case LONG:
+				writeZigzag(((LDLong) elem).getValue());
+				break;
+			case STRING:
+				writeString(((LDString) elem).getValue());
+				break;
+			case REFERENCE:
+				writeString(((LDReference) elem).getValue().toString());
+				break;
+			case VOID:
+				break;
+			case LIST:
+				LDList list = (LDList) elem;
+				int n = list.getChildCount();
+				writeVarLong(n);
+				for (int i = 0; i < n; i++)
+					write(list.getChild(i));
+				break;
+			case MAP:
+				LDMap map = (LDMap) elem;
+				writeVarLong(map.getChildCount());
+				for (Map.Entry<String, LDElement> e : map.getChildEntries()) {
+					writeString(e.getKey());
+					write(e.getValue());
+				}
+				break;
+			case LONG_ARRAY:
+				LDLongArray longs = (LDLongArray) elem;
+				int nl = longs.getChildCount();
+				writeVarLong(nl);
+				for (int i = 0; i < nl; i++)
+					writeZigzag(longs.getValue(i));
+				break;
+			case DOUBLE_ARRAY:
+				LDDoubleArray doubles = (LDDoubleArray) elem;
+				int nd = doubles.getChildCount();
+				writeVarLong(nd);
+				for (int i = 0; i < nd; i++)
+					writeDouble(doubles.getValue(i));
+				break;
+			default:
+				throw new UnsupportedOperationException("No case found for type " + type);
+			}
+		}
+
+		void writeHeader() throws IOException {
+			ensure(LDParserBinary.MAGIC.length + 1);
+			for (byte b : LDParserBinary.MAGIC)
+				buf[pos++] = b;
+			buf[pos++] = LDParserBinary.VERSION;
+		}
+
+		void flush() throws IOException {
+			if (pos > 0) {
+				out.write(buf, 0, pos);
+				pos = 0;
+			}
+			out.flush();
+		}
+
+		private void writeVarLong(long x) throws IOException {
+			ensure(10);
+			while ((x & ~0x7FL) != 0) {
+				buf[pos++] = (byte) ((x & 0x7F) | 0x80);
+				x >>>= 7;
+			}
+			buf[pos++] = (byte) x;
+		}
+
+		private void writeZigzag(long x) throws IOException {
+			writeVarLong((x << 1) ^ (x >> 63));
+		}
+
+		private void writeDouble(double d) throws IOException {
+			ensure(8);
+			long bits = Double.doubleToRawLongBits(d);
+			for (int shift = 56; shift >= 0; shift -= 8)
+				buf[pos++] = (byte) (bits >>> shift);
+		}
+
+		private void writeString(String s) throws IOException {
+			int n = s.length();
+			int i = 0;
+			while (i < n && s.charAt(i) < 0x80)
+				i++;
+			if (i < n) {
+				byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				writeVarLong(bytes.length);
+				writeBytes(bytes);
+				return;
+			}
+			// All ASCII: the chars are the bytes.
+			writeVarLong(n);
+			for (i = 0; i < n;) {
+				ensure(1);
+				int end = Math.min(n, i + buf.length - pos);
+				for (; i < end; i++)
+					buf[pos++] = (byte) s.charAt(i);
+			}
+		}
+
+		private void writeBytes(byte[] b) throws IOException {
+			if (b.length > buf.length - pos) {
+				out.write(buf, 0, pos);
+				pos = 0;
+				if (b.length > buf.length) {
+					out.write(b);
+					return;
+				}
+			}
+			System.arraycopy(b, 0, buf, pos, b.length);
+			pos += b.length;
+		}
+
+		/**
+		 * Makes room for n bytes, n being no more than the buffer size.
+		 */
+		private void ensure(int n) throws IOException {
+			if (pos + n > buf.length) {
+				out.write(buf, 0, pos);
+				pos = 0;
+			}
+		}
+	}
+
+	// ================================
+	// Variables
+	// ================================
+
+	/** Indexed by EType ordinal. */
+	private static final byte[] TAGS = new byte[LDElement.EType.values().length];
+
+	static {
+		for (LDElement.EType type : LDElement.EType.values())
+			TAGS[type.ordinal()] = (byte) type.getSymbol();
+	}
+
+	/** Each thread's buffer for {@link #serialize(LDElement, OutputStream)}. */
+	private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>();
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	// ================================
+	// Creation
+	// ================================
+
+	public LDSerializerBinary() {
+	}
+
+	// ================================
+	// Operation
+	// ================================
+
+	@Override
+	public void serialize(LDElement obj, OutputStream stream) throws IOException {
+		if (obj == null)
+			throw new IllegalArgumentException("obj cannot be null");
+		if (stream == null)
+			throw new IllegalArgumentException("stream cannot be null");
+		// Borrow this thread's buffer. It's put back only when done, so a
+		// reentrant call makes its own.
+		byte[] buf = buffers.get();
+		buffers.set(null);
+		if (buf == null)
+			buf = new byte[BUFFER_SIZE];
+		try {
+			Output output = new Output(stream, buf);
+			output.writeHeader();
+			output.write(obj);
+			output.flush();
+		}
+		finally {
+			buffers.set(buf);
+		}
+	}
+}
@@ -2,25 +2,33 @@ package org.jehanson.livedata.serialization;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Writer;
-import java.util.HashMap;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.util.Iterator;
-import java.util.Map;
 
 import org.jehanson.livedata.LDCursor;
 import org.jehanson.livedata.LDElement;
 import org.jehanson.livedata.LDPath;
 import org.jehanson.livedata.elements.LDBoolean;
 import org.jehanson.livedata.elements.LDDouble;
+import org.jehanson.livedata.elements.LDDoubleArray;
 import org.jehanson.livedata.elements.LDList;
 import org.jehanson.livedata.elements.LDLong;
+import org.jehanson.livedata.elements.LDLongArray;
 import org.jehanson.livedata.elements.LDMap;
 import org.jehanson.livedata.elements.LDReference;
 import org.jehanson.livedata.elements.LDString;
 
 /**
+ * Writes LDElements as JSON text. A long[] or double[] array is written as a
+ * list of numbers.
+ * <p>
+ * Instances are immutable and thread-safe: everything is decided in the
+ * constructor, and each call keeps its state on the stack, so one instance
+ * can be shared by any number of threads without locking.
  * 
  * @author jehanson
  */
@@ -38,9 +46,18 @@ public class LDSerializerJSON implements LDSerializer {
 	// Variables
 	// ================================
 
+	/** Each thread's buffer for {@link #serialize(LDElement, OutputStream)}. */
+	private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>();
+
+	/** Levels whose line breaks are made in the constructor. */
+	private static final int PRECOMPUTED_LEVELS = 16;
+
 	private final boolean insertLineBreaks;
 	private final String indentStr;
-	private Map<LDElement.EType, ContentPrinter> contentPrinters;
+	private final byte[][] lineBreaks;
+
+	/** Indexed by EType ordinal. */
+	private final ContentPrinter[] contentPrinters;
 
 	// ================================
 	// Creation
@@ -55,7 +72,6 @@ public class LDSerializerJSON implements LDSerializer {
 	}
 
 	public LDSerializerJSON(boolean insertLineBreaks, int indentWidth) {
-		this.contentPrinters = null;
 		this.insertLineBreaks = insertLineBreaks;
 		if (this.insertLineBreaks) {
 			StringBuilder sbuf = new StringBuilder();
@@ -65,6 +81,8 @@ public class LDSerializerJSON implements LDSerializer {
 		}
 		else
 			this.indentStr = ""; // bug evasion
+		this.lineBreaks = JSONByteWriter.lineBreaks(indentStr, PRECOMPUTED_LEVELS);
+		this.contentPrinters = createContentPrinters();
 	}
 
 	// ================================
@@ -83,21 +101,196 @@ public class LDSerializerJSON implements LDSerializer {
 			throw new IllegalArgumentException("obj cannot be null");
 		if (stream == null)
 			throw new IllegalArgumentException("stream cannot be null");
-		Writer w1 = new OutputStreamWriter(stream);
-		PrintWriter w2 = new PrintWriter(w1);
+		write(obj, stream, null);
+	}
+
+	/**
+	 * Like {@link #serialize(LDElement, OutputStream)}, but copies the text of
+	 * maps and lists that haven't changed since they were last written with
+	 * cache, and adds the rest to it.
+	 * 
+	 * @param obj
+	 *            Not null.
+	 * @param stream
+	 *            Not null.
+	 * @param cache
+	 *            Not null. From this serializer's {@link #createCache(long)}.
+	 * @throws IOException
+	 */
+	public void serialize(LDElement obj, OutputStream stream, LDSerializationCache cache)
+			throws IOException {
+		if (obj == null)
+			throw new IllegalArgumentException("obj cannot be null");
+		if (stream == null)
+			throw new IllegalArgumentException("stream cannot be null");
+		if (cache == null)
+			throw new IllegalArgumentException("cache cannot be null");
+		if (cache.getSerializer() != this)
+			throw new IllegalArgumentException("cache was made by another serializer");
+		write(obj, stream, cache);
+	}
+
+	/**
+	 * Returns an empty cache for use with
+	 * {@link #serialize(LDElement, OutputStream, LDSerializationCache)}.
+	 * 
+	 * @param maxBytes
+	 *            the most text it may hold. Must be positive.
+	 * @return the cache. Not null.
+	 */
+	public LDSerializationCache createCache(long maxBytes) {
+		if (maxBytes <= 0)
+			throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+		return new LDSerializationCache(this, maxBytes);
+	}
+
+	/**
+	 * Writes obj into buffer, starting at its position and advancing it.
+	 *
+	 * @param obj
+	 *            Not null.
+	 * @param buffer
+	 *            Not null. Direct or not.
+	 * @throws BufferOverflowException
+	 *             if obj doesn't fit. The buffer's position, and its
+	 *             contents from the starting position on, are then
+	 *             unspecified.
+	 */
+	public void serialize(LDElement obj, final ByteBuffer buffer) throws IOException {
+		if (buffer == null)
+			throw new IllegalArgumentException("buffer cannot be null");
+		serialize(obj, new OutputStream() {
+			@Override
+			public void write(int b) {
+				buffer.put((byte) b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				buffer.put(b, off, len);
+			}
+		});
+	}
+
+	/**
+	 * Writes obj to channel, which may be a FileChannel or a SocketChannel in
+	 * blocking mode. The text goes into an {@link LDBufferChain} from the
+	 * default pool and then to the channel in gathering writes.
+	 *
+	 * @param obj
+	 *            Not null.
+	 * @param channel
+	 *            Not null. Not closed.
+	 * @return the number of bytes written.
+	 * @throws IOException
+	 */
+	public long serialize(LDElement obj, GatheringByteChannel channel) throws IOException {
+		if (channel == null)
+			throw new IllegalArgumentException("channel cannot be null");
+		LDBufferChain chain = new LDBufferChain();
 		try {
-			loadContentPrinters();
-			contentPrinters.get(obj.getEType()).print(obj, w2, 0);
+			serialize(obj, chain);
+			return chain.writeTo(channel);
 		}
 		finally {
-			w2.flush();
+			chain.close();
 		}
 	}
 
+	/**
+	 * Writes obj as chars, for when the output isn't a byte stream. Same text
+	 * as {@link #serialize(LDElement, OutputStream)}, which is faster.
+	 * 
+	 * @param obj
+	 *            Not null.
+	 * @param writer
+	 *            Not null. Flushed, not closed, when done.
+	 * @throws IOException
+	 */
+	public void serialize(LDElement obj, Writer writer) throws IOException {
+		if (obj == null)
+			throw new IllegalArgumentException("obj cannot be null");
+		if (writer == null)
+			throw new IllegalArgumentException("writer cannot be null");
+		PrintWriter w2 = new PrintWriter(writer);
+		print(obj, w2);
+		w2.flush();
+		if (w2.checkError())
+			throw new IOException("Error writing JSON");
+	}
+
+	/**
+	 * Returns a writer that puts one element per line on the given stream, in
+	 * the format known as JSON Lines or NDJSON. Elements are always written
+	 * without line breaks, whatever this serializer's setting.
+	 * 
+	 * @param stream
+	 *            Not null.
+	 * @return the record writer. Not null.
+	 */
+	public LDRecordWriterJSON createRecordWriter(OutputStream stream) {
+		if (stream == null)
+			throw new IllegalArgumentException("stream cannot be null");
+		return new LDRecordWriterJSON(insertLineBreaks ? new LDSerializerJSON(false) : this,
+				stream);
+	}
+
+	/**
+	 * Returns a generator that writes JSON to the given stream a token at a
+	 * time, with this serializer's settings.
+	 * 
+	 * @param stream
+	 *            Not null.
+	 * @return the generator. Not null.
+	 */
+	public LDGeneratorJSON createGenerator(OutputStream stream) {
+		if (stream == null)
+			throw new IllegalArgumentException("stream cannot be null");
+		return new LDGeneratorJSON(this, stream);
+	}
+
+	/**
+	 * Prints obj, starting at indent level 0.
+	 */
+	void print(LDElement obj, PrintWriter writer) {
+		printElement(obj, writer, 0);
+	}
+
+	/**
+	 * Returns a writer with this serializer's settings that writes into buf.
+	 */
+	JSONByteWriter createByteWriter(OutputStream stream, byte[] buf) {
+		return new JSONByteWriter(stream, buf, insertLineBreaks, indentStr, lineBreaks);
+	}
+
 	// ================================
 	// Private
 	// ================================
 
+	/**
+	 * @param cache
+	 *            May be null.
+	 */
+	private void write(LDElement obj, OutputStream stream, LDSerializationCache cache)
+			throws IOException {
+		// Borrow this thread's buffer. It's put back only when done, so a
+		// reentrant call makes its own.
+		byte[] buf = buffers.get();
+		buffers.set(null);
+		if (buf == null)
+			buf = new byte[JSONByteWriter.DEFAULT_BUFFER_SIZE];
+		try {
+			JSONByteWriter writer = createByteWriter(stream, buf);
+			writer.setCache(cache);
+			writer.write(obj, 0);
+			writer.flushBuffer();
+			stream.flush();
+		}
+		finally {
+			buffers.set(buf);
+		}
+	}
+
 	/**
 	 * Adapted, with gratitude, from org.json.JSONWriter.
 	 * 
@@ -113,12 +306,25 @@ public class LDSerializerJSON implements LDSerializer {
 		String hhhh;
 		writer.print(LDParserJSON.QUOTE);
 		int ctrlCharIdx = 0;
-		for (int i = 0; i < s.length(); i++) {
+		final int n = s.length();
+		for (int i = 0; i < n; i++) {
+			// Write runs that need no escaping in one go.
+			int clean = JSONByteWriter.cleanRun(s, i, n);
+			if (clean > i) {
+				writer.write(s, i, clean - i);
+				i = clean;
+				if (i == n)
+					break;
+			}
 			char c = s.charAt(i);
 			ctrlCharIdx = LDParserJSON.CONTROL_CHARS.indexOf(c);
 			if (ctrlCharIdx >= 0) {
 				writer.print(LDParserJSON.CONTROL_ESCAPES[ctrlCharIdx]);
 			}
+			else if (c == LDParserJSON.QUOTE || c == LDParserJSON.ESC) {
+				writer.write(LDParserJSON.ESC);
+				writer.write(c);
+			}
 			else if (c < ' ' || (c >= '\u0080' && c < '\u00a0')
 					|| (c >= '\u2000' && c < '\u2100')) {
 				// i.e., c requires unicode sequence
@@ -145,10 +351,16 @@ public class LDSerializerJSON implements LDSerializer {
 			writer.print(LDParserJSON.SPACE);
 	}
 
-	private final void loadContentPrinters() {
-		// THREADSAFETY
-		if (contentPrinters == null) {
-			contentPrinters = new HashMap<LDElement.EType, ContentPrinter>();
+	private void printElement(LDElement item, PrintWriter writer, int level) {
+		ContentPrinter cp = contentPrinters[item.getEType().ordinal()];
+		if (cp == null)
+			throw new UnsupportedOperationException("No case found for type " + item.getEType());
+		cp.print(item, writer, level);
+	}
+
+	private ContentPrinter[] createContentPrinters() {
+		ContentPrinter[] printers = new ContentPrinter[LDElement.EType.values().length];
+		{
 
 			ContentPrinter booleanCP = new ContentPrinter() {
 				@Override
@@ -166,6 +378,27 @@ public class LDSerializerJSON implements LDSerializer {
 				}
 			};
 
+			ContentPrinter doubleArrayCP = new ContentPrinter() {
+				@Override
+				public void print(LDElement item, PrintWriter writer, int level) {
+					LDDoubleArray array = (LDDoubleArray) item;
+					writer.print(LDParserJSON.LIST_PREFIX);
+					int n = array.getChildCount();
+					if (n > 0) {
+						int childLevel = level + 1;
+						printLineBreak(false, writer, childLevel);
+						writer.print(array.getValue(0));
+						for (int i = 1; i < n; i++) {
+							writer.print(LDParserJSON.ELEMENT_SEPARATOR);
+							printLineBreak(true, writer, childLevel);
+							writer.print(array.getValue(i));
+						}
+						printLineBreak(false, writer, level);
+					}
+					writer.print(LDParserJSON.LIST_SUFFIX);
+				}
+			};
+
 			ContentPrinter listCP = new ContentPrinter() {
 				@Override
 				public void print(LDElement item, PrintWriter writer, int level) {
@@ -176,14 +409,12 @@ public class LDSerializerJSON implements LDSerializer {
 						Iterator<LDCursor> iter = list.childIterator(LDPath.root);
 						LDCursor child = iter.next();
 						printLineBreak(false, writer, childLevel);
-						contentPrinters.get(child.getElement().getEType()).print(
-								child.getElement(), writer, childLevel);
+						printElement(child.getElement(), writer, childLevel);
 						while (iter.hasNext()) {
 							child = iter.next();
 							writer.print(LDParserJSON.ELEMENT_SEPARATOR);
 							printLineBreak(true, writer, childLevel);
-							contentPrinters.get(child.getElement().getEType()).print(
-									child.getElement(), writer, childLevel);
+							printElement(child.getElement(), writer, childLevel);
 						}
 						printLineBreak(false, writer, level);
 					}
@@ -199,6 +430,27 @@ public class LDSerializerJSON implements LDSerializer {
 				}
 			};
 
+			ContentPrinter longArrayCP = new ContentPrinter() {
+				@Override
+				public void print(LDElement item, PrintWriter writer, int level) {
+					LDLongArray array = (LDLongArray) item;
+					writer.print(LDParserJSON.LIST_PREFIX);
+					int n = array.getChildCount();
+					if (n > 0) {
+						int childLevel = level + 1;
+						printLineBreak(false, writer, childLevel);
+						writer.print(array.getValue(0));
+						for (int i = 1; i < n; i++) {
+							writer.print(LDParserJSON.ELEMENT_SEPARATOR);
+							printLineBreak(true, writer, childLevel);
+							writer.print(array.getValue(i));
+						}
+						printLineBreak(false, writer, level);
+					}
+					writer.print(LDParserJSON.LIST_SUFFIX);
+				}
+			};
+
 			ContentPrinter mapCP = new ContentPrinter() {
 				@Override
 				public void print(LDElement item, PrintWriter writer, int level) {
@@ -212,8 +464,7 @@ public class LDSerializerJSON implements LDSerializer {
 						printJSONString(child.getPath().getLastSegment(), writer);
 						writer.print(LDParserJSON.KEY_VALUE_SEP_CHAR);
 						writer.print(LDParserJSON.SPACE);
-						contentPrinters.get(child.getElement().getEType()).print(
-								child.getElement(), writer, childLevel);
+						printElement(child.getElement(), writer, childLevel);
 						while (iter.hasNext()) {
 							child = iter.next();
 							writer.print(LDParserJSON.ELEMENT_SEPARATOR);
@@ -221,8 +472,7 @@ public class LDSerializerJSON implements LDSerializer {
 							printJSONString(child.getPath().getLastSegment(), writer);
 							writer.print(LDParserJSON.KEY_VALUE_SEP_CHAR);
 							writer.print(LDParserJSON.SPACE);
-							contentPrinters.get(child.getElement().getEType()).print(
-									child.getElement(), writer, childLevel);
+							printElement(child.getElement(), writer, childLevel);
 						}
 						printLineBreak(false, writer, level);
 					}
@@ -258,15 +508,18 @@ public class LDSerializerJSON implements LDSerializer {
 				}
 			};
 
-			contentPrinters.put(LDElement.EType.BOOLEAN, booleanCP);
-			contentPrinters.put(LDElement.EType.DOUBLE, doubleCP);
-			contentPrinters.put(LDElement.EType.LIST, listCP);
-			contentPrinters.put(LDElement.EType.LONG, longCP);
-			contentPrinters.put(LDElement.EType.MAP, mapCP);
-			contentPrinters.put(LDElement.EType.REFERENCE, referenceCP);
-			contentPrinters.put(LDElement.EType.STRING, stringCP);
-			contentPrinters.put(LDElement.EType.VOID, voidCP);
+			printers[LDElement.EType.BOOLEAN.ordinal()] = booleanCP;
+			printers[LDElement.EType.DOUBLE.ordinal()] = doubleCP;
+			printers[LDElement.EType.DOUBLE_ARRAY.ordinal()] = doubleArrayCP;
+			printers[LDElement.EType.LIST.ordinal()] = listCP;
+			printers[LDElement.EType.LONG.ordinal()] = longCP;
+			printers[LDElement.EType.LONG_ARRAY.ordinal()] = longArrayCP;
+			printers[LDElement.EType.MAP.ordinal()] = mapCP;
+			printers[LDElement.EType.REFERENCE.ordinal()] = referenceCP;
+			printers[LDElement.EType.STRING.ordinal()] = stringCP;
+			printers[LDElement.EType.VOID.ordinal()] = voidCP;
 		}
+		return printers;
 	}
 
 }
@@ -0,0 +1,367 @@
+package org.jehanson.livedata.serialization;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jehanson.livedata.LDElement;
+import org.jehanson.livedata.elements.LDMap;
+
+/**
+ * UTF-8 input that stays in memory while lazily parsed elements refer to it.
+ * <p>
+ * Reading a container here reads its immediate children only. A nested map
+ * or list is skipped over, and stands in the result as an {@link LDLazyMap}
+ * or {@link LDLazyList} that records where its text is; it comes back here
+ * for its own children the first time one of them is asked for.
+ * <p>
+ * Skipping only balances brackets and quotes, so a format error inside a
+ * nested container shows up when that container is loaded, as an
+ * LDFormatException from whatever method touched it. The line and position
+ * in its message count from the container's opening bracket.
+ * <p>
+ * {@link ParallelJSONReader} also reads from here, for random access to the
+ * input.
+ * <p>
+ * Each read opens its own scanner, so containers may be loaded from several
+ * threads at once. Keeping any one container from loading twice is up to
+ * the container. Interning is the exception: the string tables are shared by
+ * every load, so while there are any, loads take turns.
+ *
+ * @author jehanson
+ */
+abstract class LazyJSONSource {
+
+	// =================================
+	// Inner classes
+	// =================================
+
+	private static final class ArraySource extends LazyJSONSource {
+
+		private final byte[] data;
+		private final int offset;
+
+		ArraySource(byte[] data, int offset, int length) {
+			super(length);
+			this.data = data;
+			this.offset = offset;
+		}
+
+		@Override
+		JSONByteScanner open(long start, long end) {
+			return new JSONByteScanner(data, offset + (int) start, (int) (end - start));
+		}
+	}
+
+	private static final class BufferSource extends LazyJSONSource {
+
+		private final ByteBuffer buffer;
+
+		BufferSource(ByteBuffer buffer) {
+			super(buffer.remaining());
+			this.buffer = buffer.duplicate();
+		}
+
+		@Override
+		JSONByteScanner open(long start, long end) {
+			ByteBuffer view = buffer.duplicate();
+			view.limit(buffer.position() + (int) end);
+			view.position(buffer.position() + (int) start);
+			return new JSONByteScanner(new ByteBuffer[] { view }, windowSize(start, end));
+		}
+	}
+
+	private static final class MappedSource extends LazyJSONSource {
+
+		private final MappedFile file;
+
+		MappedSource(MappedFile file) {
+			super(file.size());
+			this.file = file;
+		}
+
+		@Override
+		JSONByteScanner open(long start, long end) {
+			return new JSONByteScanner(file.buffers(start, end), windowSize(start, end));
+		}
+	}
+
+	// =================================
+	// Variables
+	// =================================
+
+	private final long size;
+
+	/**
+	 * Tables shared by the scanners this opens, or null; set by LDParserJSON
+	 * before anything is read. See {@link JSONDecoder#keyTable}.
+	 */
+	JSONStringTable keyTable;
+	JSONStringTable valueTable;
+
+	/** See {@link JSONDecoder#numericArrays}. */
+	boolean numericArrays;
+
+	// =================================
+	// Creation
+	// =================================
+
+	private LazyJSONSource(long size) {
+		this.size = size;
+	}
+
+	/**
+	 * The bytes are not copied, so they must not change while any element
+	 * read from them is in use.
+	 */
+	static LazyJSONSource create(byte[] data, int offset, int length) {
+		if (data == null)
+			throw new IllegalArgumentException("data cannot be null");
+		if (offset < 0 || length < 0 || offset + length > data.length)
+			throw new IndexOutOfBoundsException("offset=" + offset + " length=" + length
+					+ " data.length=" + data.length);
+		return new ArraySource(data, offset, length);
+	}
+
+	/**
+	 * Uses the remaining bytes of the buffer. They are not copied, so they
+	 * must not change while any element read from them is in use.
+	 */
+	static LazyJSONSource create(ByteBuffer buffer) {
+		if (buffer == null)
+			throw new IllegalArgumentException("buffer cannot be null");
+		if (buffer.hasArray())
+			return new ArraySource(buffer.array(), buffer.arrayOffset() + buffer.position(),
+					buffer.remaining());
+		return new BufferSource(buffer);
+	}
+
+	static LazyJSONSource create(MappedFile file) {
+		if (file == null)
+			throw new IllegalArgumentException("file cannot be null");
+		return new MappedSource(file);
+	}
+
+	// =================================
+	// Operation
+	// =================================
+
+	long size() {
+		return size;
+	}
+
+	/**
+	 * Reads the single value that makes up the whole input.
+	 */
+	LDElement readElement() throws LDFormatException {
+		JSONByteScanner scanner = openShared(0, size);
+		try {
+			return readValue(scanner, scanner.nextClean(), 0);
+		}
+		catch (IOException e) {
+			// In-memory input doesn't do I/O.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Reads the map that makes up the whole input into the given one.
+	 */
+	void readMapContents(LDMap map) throws LDFormatException {
+		JSONByteScanner scanner = openShared(0, size);
+		try {
+			int c = scanner.nextClean();
+			if (c != LDParserJSON.MAP_PREFIX)
+				throw scanner.error(JSONScanner.expected(LDParserJSON.MAP_PREFIX, c));
+			List<String> keys = new ArrayList<String>();
+			List<LDElement> values = new ArrayList<LDElement>();
+			readMapBody(scanner, 0, map, keys, values);
+			for (int i = 0, n = keys.size(); i < n; i++)
+				ElementAccess.putChildUnchecked(map, keys.get(i), values.get(i));
+		}
+		catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Fills in the children of a lazy map.
+	 *
+	 * @param start
+	 *            offset of the first byte after the map's opening brace.
+	 * @param end
+	 *            offset of the first byte after its closing brace.
+	 */
+	void load(LDLazyMap map, long start, long end) throws LDFormatException {
+		if (keyTable == null && valueTable == null)
+			loadMap(map, start, end);
+		else {
+			synchronized (this) {
+				loadMap(map, start, end);
+			}
+		}
+	}
+
+	/**
+	 * Fills in the children of a lazy list.
+	 *
+	 * @param start
+	 *            offset of the first byte after the list's opening bracket.
+	 * @param end
+	 *            offset of the first byte after its closing bracket.
+	 */
+	void load(LDLazyList list, long start, long end) throws LDFormatException {
+		if (keyTable == null && valueTable == null)
+			loadList(list, start, end);
+		else {
+			synchronized (this) {
+				loadList(list, start, end);
+			}
+		}
+	}
+
+	/**
+	 * Like {@link #open(long, long)}, with new string tables in place of the
+	 * shared ones, for a scanner that one thread reads while others read
+	 * elsewhere.
+	 */
+	JSONByteScanner openUnshared(long start, long end) {
+		JSONByteScanner scanner = open(start, end);
+		if (keyTable != null)
+			scanner.keyTable = new JSONStringTable();
+		if (valueTable != null)
+			scanner.valueTable = new JSONStringTable();
+		scanner.numericArrays = numericArrays;
+		return scanner;
+	}
+
+	// =================================
+	// Private
+	// =================================
+
+	/**
+	 * Returns a scanner over the bytes from start (inclusive) to end
+	 * (exclusive). Positions reported by the scanner are relative to start.
+	 */
+	abstract JSONByteScanner open(long start, long end);
+
+	/**
+	 * Like {@link #open(long, long)}, with the shared string tables.
+	 */
+	private JSONByteScanner openShared(long start, long end) {
+		JSONByteScanner scanner = open(start, end);
+		scanner.keyTable = keyTable;
+		scanner.valueTable = valueTable;
+		scanner.numericArrays = numericArrays;
+		return scanner;
+	}
+
+	private void loadMap(LDLazyMap map, long start, long end) throws LDFormatException {
+		JSONByteScanner scanner = openShared(start, end);
+		try {
+			List<String> keys = new ArrayList<String>();
+			List<LDElement> values = new ArrayList<LDElement>();
+			readMapBody(scanner, start, map, keys, values);
+			for (int i = 0, n = keys.size(); i < n; i++)
+				map.attach(keys.get(i), values.get(i));
+		}
+		catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void loadList(LDLazyList list, long start, long end) throws LDFormatException {
+		JSONByteScanner scanner = openShared(start, end);
+		try {
+			List<LDElement> values = new ArrayList<LDElement>();
+			readListBody(scanner, start, values);
+			for (int i = 0, n = values.size(); i < n; i++)
+				list.attach(values.get(i));
+		}
+		catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A window no bigger than the span, so loading a small container doesn't
+	 * allocate a full-size window.
+	 */
+	static int windowSize(long start, long end) {
+		return (int) Math.max(16, Math.min(JSONByteScanner.DEFAULT_WINDOW_SIZE, end - start));
+	}
+
+	/**
+	 * Like {@link JSONScanner#readMapBody(LDMap)}, but collects the entries
+	 * instead of putting them, so that nothing is attached if the text turns
+	 * out to be bad.
+	 */
+	private void readMapBody(JSONByteScanner scanner, long base, LDMap map, List<String> keys,
+			List<LDElement> values) throws IOException, LDFormatException {
+		int c = scanner.nextClean();
+		if (c == LDParserJSON.MAP_SUFFIX)
+			return;
+		for (;;) {
+			keys.add(scanner.readValidKey(c, map));
+			values.add(readValue(scanner, scanner.nextClean(), base));
+			c = scanner.nextClean();
+			if (c == LDParserJSON.MAP_SUFFIX)
+				return;
+			else if (c != LDParserJSON.ELEMENT_SEPARATOR)
+				throw scanner.error(JSONScanner.expected(LDParserJSON.ELEMENT_SEPARATOR,
+						LDParserJSON.MAP_SUFFIX, c));
+			c = scanner.nextClean();
+		}
+	}
+
+	private void readListBody(JSONByteScanner scanner, long base, List<LDElement> values)
+			throws IOException, LDFormatException {
+		int c = scanner.nextClean();
+		if (c == LDParserJSON.LIST_SUFFIX)
+			return;
+		for (;;) {
+			values.add(readValue(scanner, c, base));
+			c = scanner.nextClean();
+			if (c == LDParserJSON.LIST_SUFFIX)
+				return;
+			else if (c != LDParserJSON.ELEMENT_SEPARATOR)
+				throw scanner.error(JSONScanner.expected(LDParserJSON.ELEMENT_SEPARATOR,
+						LDParserJSON.LIST_SUFFIX, c));
+			c = scanner.nextClean();
+		}
+	}
+
+	/**
+	 * Reads a scalar, or skips a container and returns a lazy one in its
+	 * place. With {@link #numericArrays} set, a list that starts with a
+	 * non-string scalar is read in full instead.
+	 *
+	 * @param base
+	 *            offset in this source of the scanner's first byte.
+	 */
+	private LDElement readValue(JSONByteScanner scanner, int c, long base) throws IOException,
+			LDFormatException {
+		long start;
+		switch (c) {
+		case LDParserJSON.MAP_PREFIX:
+			start = base + scanner.position();
+			scanner.skipContainerBody();
+			return new LDLazyMap(this, start, base + scanner.position());
+		case LDParserJSON.LIST_PREFIX:
+			start = base + scanner.position();
+			scanner.skipContainerBody();
+			if (numericArrays) {
+				// A list that starts with a non-string scalar is read now, so
+				// that it can become a numeric array.
+				JSONByteScanner list = openShared(start, base + scanner.position());
+				int first = list.nextClean();
+				if (JSONScanner.isScalarStart(first))
+					return list.readList(first);
+			}
+			return new LDLazyList(this, start, base + scanner.position());
+		default:
+			return scanner.readValue(c);
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package org.jehanson.livedata.serialization;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only file mapped into memory. A single mapping can't exceed 2 GB, so
+ * bigger files are mapped as several consecutive chunks.
+ * <p>
+ * The mappings stay valid after the file is closed, and are released when
+ * this object is garbage collected.
+ *
+ * @author jehanson
+ */
+final class MappedFile {
+
+	// =================================
+	// Variables
+	// =================================
+
+	/** Size of every chunk but the last. */
+	static final long CHUNK_SIZE = 1L << 30;
+
+	private final long size;
+	private final MappedByteBuffer[] chunks;
+
+	// =================================
+	// Creation
+	// =================================
+
+	private MappedFile(long size, MappedByteBuffer[] chunks) {
+		this.size = size;
+		this.chunks = chunks;
+	}
+
+	/**
+	 * @param file
+	 *            Not null.
+	 * @throws IOException
+	 *             if the file can't be opened or mapped.
+	 */
+	static MappedFile map(File file) throws IOException {
+		if (file == null)
+			throw new IllegalArgumentException("file cannot be null");
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			int n = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+			MappedByteBuffer[] chunks = new MappedByteBuffer[n];
+			for (int i = 0; i < n; i++) {
+				long offset = i * CHUNK_SIZE;
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+						Math.min(CHUNK_SIZE, size - offset));
+			}
+			return new MappedFile(size, chunks);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	// =================================
+	// Operation
+	// =================================
+
+	long size() {
+		return size;
+	}
+
+	/**
+	 * Returns views of the bytes from start (inclusive) to end (exclusive),
+	 * one per chunk that the range touches. Each view is positioned on its
+	 * part of the range; the views are independent of each other and of the
+	 * mappings.
+	 */
+	ByteBuffer[] buffers(long start, long end) {
+		if (start < 0 || end < start || end > size)
+			throw new IndexOutOfBoundsException("start=" + start + " end=" + end + " size="
+					+ size);
+		if (start == end)
+			return new ByteBuffer[0];
+		int first = (int) (start / CHUNK_SIZE);
+		int last = (int) ((end - 1) / CHUNK_SIZE);
+		ByteBuffer[] views = new ByteBuffer[last - first + 1];
+		for (int i = first; i <= last; i++) {
+			long chunkStart = i * CHUNK_SIZE;
+			ByteBuffer view = chunks[i].duplicate();
+			view.limit((int) (Math.min(end, chunkStart + view.capacity()) - chunkStart));
+			view.position((int) (Math.max(start, chunkStart) - chunkStart));
+			views[i - first] = view;
+		}
+		return views;
+	}
+}
@@ -0,0 +1,216 @@
+package org.jehanson.livedata.serialization;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.jehanson.livedata.LDElement;
+
+/**
+ * Parses the top-level list or map of an in-memory input on a ForkJoinPool.
+ * <p>
+ * A sequential pre-scan finds where each top-level element starts and ends;
+ * it only skips, so it runs several times faster than building. The elements
+ * are then parsed in contiguous chunks, one scanner per chunk, and put into
+ * the result in their original order. Full syntax checking happens in the
+ * chunks, so the errors are the same as for a sequential parse.
+ *
+ * @author jehanson
+ */
+final class ParallelJSONReader {
+
+	// =================================
+	// Inner classes
+	// =================================
+
+	private final class ChunkTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int lo;
+		private final int hi;
+
+		ChunkTask(int lo, int hi) {
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo <= chunkSize) {
+				readChunk(lo, hi);
+				return;
+			}
+			int mid = (lo + hi) >>> 1;
+			invokeAll(new ChunkTask(lo, mid), new ChunkTask(mid, hi));
+		}
+	}
+
+	// =================================
+	// Variables
+	// =================================
+
+	/** Chunks per worker thread, to even out chunks that parse slowly. */
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private final LazyJSONSource source;
+
+	// Top-level elements found by the pre-scan. Keys are null for a list.
+	private int count;
+	private long[] starts;
+	private long[] ends;
+	private String[] keys;
+	/** True if every top-level element of a list is a non-string scalar. */
+	private boolean scalars;
+
+	private LDElement[] results;
+	private int chunkSize;
+
+	// =================================
+	// Creation
+	// =================================
+
+	private ParallelJSONReader(LazyJSONSource source) {
+		this.source = source;
+		this.count = 0;
+		this.starts = new long[256];
+		this.ends = new long[256];
+		this.scalars = true;
+	}
+
+	// =================================
+	// Operation
+	// =================================
+
+	/**
+	 * Reads the single value that makes up the whole input. If it is a list
+	 * or map its elements are parsed in parallel on the given pool; anything
+	 * else is parsed on the calling thread.
+	 */
+	static LDElement read(LazyJSONSource source, ForkJoinPool pool) throws LDFormatException {
+		try {
+			return new ParallelJSONReader(source).read(pool);
+		}
+		catch (IOException e) {
+			// In-memory input doesn't do I/O.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// =================================
+	// Private
+	// =================================
+
+	private LDElement read(ForkJoinPool pool) throws IOException, LDFormatException {
+		JSONByteScanner scanner = source.openUnshared(0, source.size());
+		int c = scanner.nextClean();
+		if (c == LDParserJSON.LIST_PREFIX) {
+			scanList(scanner);
+			if (scanner.numericArrays && scalars && count > 0) {
+				// Read whole, so that it can become a numeric array.
+				scanner = source.openUnshared(0, source.size());
+				return scanner.readValue(scanner.nextClean());
+			}
+			parseAll(pool);
+			return ElementAccess.createList(results, 0, count);
+		}
+		else if (c == LDParserJSON.MAP_PREFIX) {
+			scanMap(scanner);
+			parseAll(pool);
+			return ElementAccess.createMap(keys, results, 0, count);
+		}
+		else
+			return scanner.readValue(c);
+	}
+
+	private void scanList(JSONByteScanner scanner) throws IOException, LDFormatException {
+		int c = scanner.nextClean();
+		if (c == LDParserJSON.LIST_SUFFIX)
+			return;
+		for (;;) {
+			if (!JSONScanner.isScalarStart(c))
+				scalars = false;
+			scanValue(scanner, c, null);
+			c = scanner.nextClean();
+			if (c == LDParserJSON.LIST_SUFFIX)
+				return;
+			else if (c != LDParserJSON.ELEMENT_SEPARATOR)
+				throw scanner.error(JSONScanner.expected(LDParserJSON.ELEMENT_SEPARATOR,
+						LDParserJSON.LIST_SUFFIX, c));
+			c = scanner.nextClean();
+		}
+	}
+
+	private void scanMap(JSONByteScanner scanner) throws IOException, LDFormatException {
+		keys = new String[starts.length];
+		int c = scanner.nextClean();
+		if (c == LDParserJSON.MAP_SUFFIX)
+			return;
+		for (;;) {
+			String key = scanner.readValidKey(c, null);
+			scanValue(scanner, scanner.nextClean(), key);
+			c = scanner.nextClean();
+			if (c == LDParserJSON.MAP_SUFFIX)
+				return;
+			else if (c != LDParserJSON.ELEMENT_SEPARATOR)
+				throw scanner.error(JSONScanner.expected(LDParserJSON.ELEMENT_SEPARATOR,
+						LDParserJSON.MAP_SUFFIX, c));
+			c = scanner.nextClean();
+		}
+	}
+
+	/**
+	 * Skips a value and records its span.
+	 *
+	 * @param c
+	 *            the first char of the value, already consumed.
+	 * @param key
+	 *            the value's key, or null in a list.
+	 */
+	private void scanValue(JSONByteScanner scanner, int c, String key) throws IOException,
+			LDFormatException {
+		long start = scanner.position() - 1;
+		scanner.skipValue(c);
+		if (count == starts.length) {
+			starts = Arrays.copyOf(starts, count * 2);
+			ends = Arrays.copyOf(ends, count * 2);
+			if (keys != null)
+				keys = Arrays.copyOf(keys, count * 2);
+		}
+		if (keys != null)
+			keys[count] = key;
+		starts[count] = start;
+		ends[count] = scanner.position();
+		count++;
+	}
+
+	private void parseAll(ForkJoinPool pool) {
+		results = new LDElement[count];
+		if (count == 0)
+			return;
+		chunkSize = Math.max(1, count / (pool.getParallelism() * CHUNKS_PER_THREAD));
+		pool.invoke(new ChunkTask(0, count));
+	}
+
+	/**
+	 * Parses elements lo (inclusive) to hi (exclusive) with one scanner.
+	 */
+	private void readChunk(int lo, int hi) {
+		JSONByteScanner scanner = source.openUnshared(starts[lo], ends[hi - 1]);
+		try {
+			results[lo] = scanner.readElement();
+			for (int i = lo + 1; i < hi; i++) {
+				int c = scanner.nextClean();
+				if (c != LDParserJSON.ELEMENT_SEPARATOR)
+					throw scanner.error(JSONScanner.expected(LDParserJSON.ELEMENT_SEPARATOR, c));
+				if (keys != null)
+					scanner.readKey(scanner.nextClean());
+				results[i] = scanner.readElement();
+			}
+		}
+		catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -2,15 +2,57 @@ package org.jehanson.livedata.junit;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import org.jehanson.livedata.LDCursor;
 import org.jehanson.livedata.LDElement;
 import org.jehanson.livedata.LDHelpers;
+import org.jehanson.livedata.LDListener;
+import org.jehanson.livedata.LDObject;
+import org.jehanson.livedata.LDPatch;
+import org.jehanson.livedata.LDPath;
+import org.jehanson.livedata.elements.LDBoolean;
+import org.jehanson.livedata.elements.LDDouble;
+import org.jehanson.livedata.elements.LDDoubleArray;
+import org.jehanson.livedata.elements.LDList;
+import org.jehanson.livedata.elements.LDLong;
+import org.jehanson.livedata.elements.LDLongArray;
+import org.jehanson.livedata.elements.LDMap;
+import org.jehanson.livedata.elements.LDReference;
+import org.jehanson.livedata.elements.LDString;
+import org.jehanson.livedata.elements.LDVoid;
 import org.jehanson.livedata.samples.LDSamples;
+import org.jehanson.livedata.serialization.LDBufferChain;
 import org.jehanson.livedata.serialization.LDFormatException;
+import org.jehanson.livedata.serialization.LDGeneratorJSON;
+import org.jehanson.livedata.serialization.LDGzip;
+import org.jehanson.livedata.serialization.LDGzipOutputStream;
+import org.jehanson.livedata.serialization.LDIncrementalParserJSON;
+import org.jehanson.livedata.serialization.LDParserBinary;
 import org.jehanson.livedata.serialization.LDParserJSON;
+import org.jehanson.livedata.serialization.LDRecordReaderJSON;
+import org.jehanson.livedata.serialization.LDRecordWriterJSON;
+import org.jehanson.livedata.serialization.LDSerializationCache;
 import org.jehanson.livedata.serialization.LDSerializer;
+import org.jehanson.livedata.serialization.LDSerializerBinary;
 import org.jehanson.livedata.serialization.LDSerializerJSON;
 import org.junit.Test;
 
@@ -91,4 +133,940 @@ public class JSONConversion {
 			throw new AssertionError("they're not equal");
 	}
 
+	@Test
+	public void errorLocation() throws IOException {
+		String s = "{\n  \"a\": 1,\r\n  \"b\" 2\n}";
+		LDParserJSON par = new LDParserJSON();
+		try {
+			par.parse(new ByteArrayInputStream(s.getBytes()));
+			throw new AssertionError("expected an LDFormatException");
+		}
+		catch (LDFormatException e) {
+			System.out.println(e.getMessage());
+			assert e.getMessage().endsWith("line 3 position 7");
+		}
+	}
+
+	@Test
+	public void nonAsciiStrings() throws IOException, LDFormatException {
+		String s = "{\"caf\u00e9\": \"na\u00efve \u2603 \ud83d\ude00\", "
+				+ "\"esc\": \"tab\\there \\u00e9\\\"\"}";
+		byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+
+		LDParserJSON par = new LDParserJSON();
+		LDElement e1 = par.parse(new ByteArrayInputStream(utf8));
+		LDElement e2 = par.parse(utf8);
+		LDElement e3 = par.parse(ByteBuffer.wrap(utf8));
+		ByteBuffer direct = ByteBuffer.allocateDirect(utf8.length);
+		direct.put(utf8).flip();
+		LDElement e4 = par.parse(direct);
+		LDElement e5 = new LDParserJSON(StandardCharsets.UTF_16).parse(s
+				.getBytes(StandardCharsets.UTF_16));
+
+		System.out.println(e1);
+		LDMap map = (LDMap) e1;
+		assert "na\u00efve \u2603 \ud83d\ude00".equals(((LDString) map
+				.getChild("caf\u00e9")).getValue());
+		assert "tab\there \u00e9\"".equals(((LDString) map.getChild("esc")).getValue());
+		assert e1.equals(e2);
+		assert e1.equals(e3);
+		assert e1.equals(e4);
+		assert e1.equals(e5);
+	}
+
+	@Test
+	public void fileRoundTrip() throws IOException, LDFormatException {
+		File file = File.createTempFile("JSONConversion", ".json");
+		try {
+			LDObject obj1 = new LDObject();
+			obj1.putChild("deep", LDSamples.deepMap(3));
+			OutputStream outs = new FileOutputStream(file);
+			try {
+				new LDSerializerJSON(true).serialize(obj1, outs);
+			}
+			finally {
+				outs.close();
+			}
+
+			LDParserJSON par = new LDParserJSON();
+			LDObject obj2 = new LDObject();
+			par.parse(obj2, file);
+			assert obj1.equals(obj2);
+			assert obj1.getChild("deep").equals(((LDMap) par.parse(file)).getChild("deep"));
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void lazyParse() throws IOException, LDFormatException {
+		ByteArrayOutputStream outs = new ByteArrayOutputStream();
+		LDMap dobj1 = LDSamples.deepMap(3);
+		new LDSerializerJSON(true).serialize(dobj1, outs);
+		byte[] data = outs.toByteArray();
+
+		LDParserJSON par = new LDParserJSON();
+		LDMap lazy = (LDMap) par.parseLazy(data);
+		LDObject root = new LDObject();
+		root.putChild("lazy", lazy);
+		final int[] events = new int[1];
+		root.addListener(new LDListener() {
+			@Override
+			public void parentChanged(LDElement element) {
+			}
+
+			@Override
+			public void valueChanged(LDElement element) {
+				events[0]++;
+			}
+
+			@Override
+			public void structureChanged(LDElement element) {
+				events[0]++;
+			}
+		});
+
+		// Loading fires nothing; changes to loaded children propagate.
+		LDMap submap = (LDMap) lazy.getChild("submap2");
+		assert submap.getChildCount() == ((LDMap) dobj1.getChild("submap2")).getChildCount();
+		assert events[0] == 0;
+		submap.putChild("added", new LDString("x"));
+		assert events[0] == 1;
+		submap.removeChild("added");
+
+		assert lazy.equals(dobj1);
+		assert lazy.equals(par.parseLazy(ByteBuffer.wrap(data)));
+		assert events[0] == 2;
+	}
+
+	@Test
+	public void lazyParseBadChild() throws LDFormatException {
+		byte[] data = "{\"a\":{\"b\":1,,}}".getBytes(StandardCharsets.UTF_8);
+		LDMap sub = (LDMap) ((LDMap) new LDParserJSON().parseLazy(data)).getChild("a");
+		LDString elem = new LDString("x");
+		try {
+			sub.putChild("c", elem);
+			assert false;
+		}
+		catch (LDFormatException e) {
+			// Loading failed before elem was touched.
+			assert elem.getParent() == null;
+		}
+	}
+
+	@Test
+	public void lazyParseThreads() throws Exception {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < 500; i++)
+			sb.append(i == 0 ? "" : ",").append("[1,2,3,{\"a\":[4,5]}]");
+		byte[] data = sb.append("]").toString().getBytes(StandardCharsets.UTF_8);
+		final LDList lazy = (LDList) new LDParserJSON().parseLazy(data);
+
+		// Every thread touches every list at about the same time; each must
+		// be loaded exactly once.
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 500; i++) {
+							LDList item = (LDList) lazy.getChild(i);
+							if (item.getChildCount() != 4)
+								throw new IllegalStateException("child count "
+										+ item.getChildCount());
+						}
+					}
+					catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			};
+		}
+		for (Thread t : threads)
+			t.start();
+		for (Thread t : threads)
+			t.join();
+		assert errors.isEmpty() : errors;
+		assert lazy.equals(new LDParserJSON().parse(data));
+	}
+
+	@Test
+	public void parallelParse() throws IOException, LDFormatException {
+		LDList list = new LDList();
+		LDMap map = new LDMap();
+		for (int i = 0; i < 500; i++) {
+			list.addChild(LDSamples.deepMap(2));
+			map.putChild("k" + i, LDSamples.shallowList());
+		}
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for (LDElement dobj1 : new LDElement[] { list, map, new LDList(), new LDLong(7) }) {
+				ByteArrayOutputStream outs = new ByteArrayOutputStream();
+				new LDSerializerJSON(false).serialize(dobj1, outs);
+				LDElement dobj2 = new LDParserJSON().parseParallel(outs.toByteArray(), pool);
+				assert dobj1.equals(dobj2);
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void records() throws IOException, LDFormatException {
+		List<LDElement> records = new ArrayList<LDElement>();
+		records.add(LDSamples.deepMap(2));
+		records.add(LDSamples.shallowList());
+		records.add(new LDString("line\nbreak"));
+		records.add(new LDLong(42));
+
+		ByteArrayOutputStream outs = new ByteArrayOutputStream();
+		LDRecordWriterJSON w = new LDSerializerJSON(true).createRecordWriter(outs);
+		try {
+			for (LDElement r : records)
+				w.write(r);
+		}
+		finally {
+			w.close();
+		}
+		String s = outs.toString("UTF-8");
+		System.out.println(s);
+		assert s.split("\n").length == records.size();
+
+		LDRecordReaderJSON r = new LDParserJSON().createRecordReader(new ByteArrayInputStream(
+				outs.toByteArray()));
+		try {
+			int i = 0;
+			while (r.hasNext()) {
+				LDElement record = r.next();
+				assert records.get(i++).equals(record);
+			}
+			assert i == records.size();
+		}
+		finally {
+			r.close();
+		}
+	}
+
+	@Test
+	public void numbers() throws IOException, LDFormatException {
+		String[] texts = { "0", "-0", "+5", "007", "-9223372036854775808", "9223372036854775807",
+				"0.1", "-0.0", "1e5", "1E-5", "2.5e+3", "9007199254740993.0", "4.9e-324",
+				"2.2250738585072014E-308", "1.7976931348623157e308", "1e400",
+				"3.14159265358979323846264338" };
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < texts.length; i++)
+			sb.append(i == 0 ? "" : ", ").append(texts[i]);
+		String s = sb.append("]").toString();
+
+		// UTF-8 goes through the byte scanner, ISO-8859-1 the char scanner.
+		LDParserJSON[] parsers = { new LDParserJSON(),
+				new LDParserJSON(StandardCharsets.ISO_8859_1) };
+		for (LDParserJSON par : parsers) {
+			LDList list = (LDList) par.parse(new ByteArrayInputStream(s.getBytes(par.getCharset())));
+			System.out.println(list);
+			for (int i = 0; i < texts.length; i++) {
+				String t = texts[i];
+				LDElement e = list.getChild(i);
+				if (t.contains(".") || t.contains("e") || t.contains("E"))
+					assert Double.doubleToLongBits(((LDDouble) e).getValue()) == Double
+							.doubleToLongBits(Double.parseDouble(t)) : t;
+				else
+					assert ((LDLong) e).getValue() == Long.parseLong(t) : t;
+			}
+		}
+
+		// Odd scalars, too, come out the same either way, or fail either way.
+		String[] odd = { "TRUE", "False", "nULL", "1.", ".5", "-", "1e", "1e+", "0x10", "NaN",
+				"Infinity", "1e99999", "12345678901234567890", "caf\u00e9", "truex" };
+		for (String t : odd) {
+			String[] results = new String[parsers.length];
+			for (int i = 0; i < parsers.length; i++) {
+				byte[] data = ("[" + t + "]").getBytes(parsers[i].getCharset());
+				try {
+					LDElement e = parsers[i].parse(new ByteArrayInputStream(data));
+					results[i] = e.getEType() + " " + e;
+				}
+				catch (LDFormatException e) {
+					results[i] = "error";
+				}
+			}
+			assert results[0].equals(results[1]) : t + ": " + Arrays.toString(results);
+		}
+	}
+
+	@Test
+	public void internedStrings() throws IOException, LDFormatException {
+		String s = "[{\"id\": 1, \"kind\": \"red\"}, {\"id\": 2, \"kind\": \"red\"}, "
+				+ "{\"id\": 3, \"kind\": \"blue\"}]";
+		byte[] data = s.getBytes(StandardCharsets.UTF_8);
+		LDParserJSON par = new LDParserJSON(StandardCharsets.UTF_8,
+				LDParserJSON.Feature.INTERN_KEYS, LDParserJSON.Feature.INTERN_VALUES);
+		LDList list = (LDList) par.parse(data);
+		System.out.println(list);
+		assert list.equals(new LDParserJSON().parse(data));
+
+		LDMap m0 = (LDMap) list.getChild(0);
+		LDMap m1 = (LDMap) list.getChild(1);
+		assert m0.getChildKeys().iterator().next() == m1.getChildKeys().iterator().next();
+		assert ((LDString) m0.getChild("kind")).getValue() == ((LDString) m1.getChild("kind"))
+				.getValue();
+
+		// Lazy loads share the parse's tables. (A parallel parse has a table
+		// per chunk, and these elements may each be a chunk.)
+		LDList lazy = (LDList) par.parseLazy(data);
+		m0 = (LDMap) lazy.getChild(0);
+		m1 = (LDMap) lazy.getChild(1);
+		assert m0.getChildKeys().iterator().next() == m1.getChildKeys().iterator().next();
+		assert ((LDString) m0.getChild("kind")).getValue() == ((LDString) m1.getChild("kind"))
+				.getValue();
+		assert lazy.equals(list);
+		assert par.parseParallel(data, ForkJoinPool.commonPool()).equals(list);
+
+		// An interned key is still checked the first time it's seen.
+		try {
+			par.parse("[{\"a\": 1}, {\"a b\": 2}]".getBytes(StandardCharsets.UTF_8));
+			assert false;
+		}
+		catch (LDFormatException e) {
+			System.out.println(e.getMessage());
+		}
+	}
+
+	@Test
+	public void builtTreeIsLive() throws IOException, LDFormatException {
+		String s = "{\"a\": {\"b\": [1, {\"c\": 2}]}, \"d\": 3, \"d\": 4}";
+		LDObject root = new LDObject();
+		final int[] events = new int[1];
+		root.addListener(new LDListener() {
+			@Override
+			public void parentChanged(LDElement element) {
+			}
+
+			@Override
+			public void valueChanged(LDElement element) {
+				events[0]++;
+			}
+
+			@Override
+			public void structureChanged(LDElement element) {
+				events[0]++;
+			}
+		});
+		new LDParserJSON().parse(root, new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)));
+		System.out.println(root);
+		assert ((LDLong) root.getChild("d")).getValue() == 4;
+
+		// One event per top-level entry, none from building the nested ones.
+		assert events[0] == 3 : events[0];
+		LDList b = (LDList) ((LDMap) root.getChild("a")).getChild("b");
+		LDLong c = (LDLong) ((LDMap) b.getChild(1)).getChild("c");
+		assert c.getParent() == b.getChild(1);
+		c.setValue(5);
+		assert events[0] == 4;
+		b.removeChild(0);
+		assert events[0] == 5;
+	}
+
+	@Test
+	public void incrementalParse() throws IOException, LDFormatException {
+		ByteArrayOutputStream outs = new ByteArrayOutputStream();
+		LDMap dobj1 = LDSamples.deepMap(3);
+		new LDSerializerJSON(true).serialize(dobj1, outs);
+		outs.write("\n[\"caf\u00e9 \ud83d\ude00\", 2.5]\n7".getBytes(StandardCharsets.UTF_8));
+		byte[] data = outs.toByteArray();
+
+		// Chunks of 7 bytes split strings, numbers and multi-byte chars.
+		LDIncrementalParserJSON par = new LDParserJSON(StandardCharsets.UTF_8,
+				LDParserJSON.Feature.INTERN_KEYS).createIncrementalParser();
+		List<LDElement> values = new ArrayList<LDElement>();
+		for (int i = 0; i < data.length; i += 7) {
+			par.feed(ByteBuffer.wrap(data, i, Math.min(7, data.length - i)));
+			LDElement elem;
+			while ((elem = par.poll()) != null)
+				values.add(elem);
+		}
+		// The last value is a number, which only the end of input completes.
+		assert values.size() == 2;
+		par.finish();
+		values.add(par.poll());
+		System.out.println(values);
+		assert values.get(0).equals(dobj1);
+		assert ((LDString) ((LDList) values.get(1)).getChild(0)).getValue().equals(
+				"caf\u00e9 \ud83d\ude00");
+		assert ((LDLong) values.get(2)).getValue() == 7;
+
+		// As in LDParserJSON, only raw control chars that have escapes are
+		// errors; others are content.
+		byte[] ctrl = "[\"a\u0001b\"]".getBytes(StandardCharsets.UTF_8);
+		par = new LDParserJSON().createIncrementalParser();
+		par.feed(ByteBuffer.wrap(ctrl));
+		par.finish();
+		LDElement withCtrl = par.poll();
+		assert withCtrl.equals(new LDParserJSON().parse(ctrl));
+		assert ((LDString) ((LDList) withCtrl).getChild(0)).getValue().equals("a\u0001b");
+		par = new LDParserJSON().createIncrementalParser();
+		try {
+			par.feed(ByteBuffer.wrap("[\"a\tb\"]".getBytes(StandardCharsets.UTF_8)));
+			par.finish();
+			assert false;
+		}
+		catch (LDFormatException e) {
+			System.out.println(e.getMessage());
+		}
+
+		par = new LDParserJSON().createIncrementalParser();
+		par.feed(ByteBuffer.wrap("{\"a\": [1, 2".getBytes(StandardCharsets.UTF_8)));
+		try {
+			par.finish();
+			assert false;
+		}
+		catch (LDFormatException e) {
+			System.out.println(e.getMessage());
+		}
+	}
+
+	@Test
+	public void mergeReload() throws IOException, LDFormatException {
+		String s1 = "{\"name\": \"a\", \"sub\": {\"x\": 1, \"y\": [1, 2, 3]}, \"old\": true}";
+		String s2 = "{\"name\": \"a\", \"sub\": {\"x\": 2, \"y\": [1, 2]}, \"new\": 1.5}";
+		LDParserJSON par = new LDParserJSON();
+		LDObject root = new LDObject();
+		par.parse(root, new ByteArrayInputStream(s1.getBytes(StandardCharsets.UTF_8)));
+		LDMap sub = (LDMap) root.getChild("sub");
+		LDElement name = root.getChild("name");
+
+		final List<LDElement> changed = new ArrayList<LDElement>();
+		root.addListener(new LDListener() {
+			@Override
+			public void parentChanged(LDElement element) {
+			}
+
+			@Override
+			public void valueChanged(LDElement element) {
+				changed.add(element);
+			}
+
+			@Override
+			public void structureChanged(LDElement element) {
+				changed.add(element);
+			}
+		});
+		par.merge(root, new ByteArrayInputStream(s2.getBytes(StandardCharsets.UTF_8)));
+		System.out.println(root);
+		System.out.println(changed);
+
+		assert root.equals(par.parse(new ByteArrayInputStream(s2.getBytes(StandardCharsets.UTF_8))));
+		assert root.getChild("sub") == sub;
+		assert root.getChild("name") == name;
+		// x's value, y's last element, and root's "old" and "new" keys.
+		assert changed.size() == 4 : changed.size();
+	}
+
+	@Test
+	public void byteWriter() throws IOException, LDFormatException {
+		LDMap map = LDSamples.deepMap(4);
+		map.putChild("text", new LDString("q\"b\\s/ t\tc\u0001 \u00e9 \u0085 \u2028 \ud83d\ude00"));
+		LDList list = new LDList();
+		list.addChild(new LDLong(Long.MIN_VALUE));
+		list.addChild(new LDLong(-12));
+		list.addChild(new LDDouble(-1.5e-7));
+		map.putChild("list", list);
+		LDParserJSON par = new LDParserJSON();
+		for (boolean pretty : new boolean[] { false, true }) {
+			LDSerializerJSON ser = new LDSerializerJSON(pretty);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ser.serialize(map, bytes);
+			StringWriter chars = new java.io.StringWriter();
+			ser.serialize(map, chars);
+			String s = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+			System.out.println(s);
+			assert s.equals(chars.toString());
+			assert map.equals(par.parse(new ByteArrayInputStream(bytes.toByteArray())));
+		}
+	}
+
+	@Test
+	public void sharedSerializer() throws Exception {
+		final LDSerializerJSON ser = new LDSerializerJSON(true);
+		final LDMap map = LDSamples.deepMap(4);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		ser.serialize(map, expected);
+		final byte[] bytes = expected.toByteArray();
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < 200; j++) {
+							ByteArrayOutputStream out = new ByteArrayOutputStream();
+							ser.serialize(map, out);
+							if (!Arrays.equals(bytes, out.toByteArray()))
+								throw new AssertionError("output differs");
+						}
+					}
+					catch (Throwable t) {
+						synchronized (failures) {
+							failures.add(t);
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		System.out.println(failures);
+		assert failures.isEmpty();
+	}
+
+	@Test
+	public void generator() throws IOException, LDFormatException {
+		LDMap map = LDSamples.deepMap(3);
+		LDParserJSON par = new LDParserJSON();
+		for (boolean pretty : new boolean[] { false, true }) {
+			LDSerializerJSON ser = new LDSerializerJSON(pretty);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			LDGeneratorJSON gen = ser.createGenerator(bytes);
+			gen.writeStartMap();
+			gen.writeKey("name");
+			gen.writeString("a \"quoted\" name");
+			gen.writeKey("ref");
+			gen.writeReference(URI.create("http://example.com/x"));
+			gen.writeKey("items");
+			gen.writeStartList();
+			for (int i = 0; i < 3; i++) {
+				gen.writeStartMap();
+				gen.writeKey("id");
+				gen.writeLong(i);
+				gen.writeKey("v");
+				gen.writeDouble(i / 2.0);
+				gen.writeEnd();
+			}
+			gen.writeStartList();
+			gen.writeEnd();
+			gen.writeNull();
+			gen.writeEnd();
+			gen.writeKey("deep");
+			gen.writeElement(map);
+			gen.writeKey("flag");
+			gen.writeBoolean(true);
+			gen.writeEnd();
+			gen.flush();
+			assert gen.getDepth() == 0;
+			assert gen.getCount() == 1;
+
+			LDMap expected = new LDMap();
+			expected.putChild("name", new LDString("a \"quoted\" name"));
+			expected.putChild("ref", new LDReference(URI.create("http://example.com/x")));
+			LDList items = new LDList();
+			for (int i = 0; i < 3; i++) {
+				LDMap item = new LDMap();
+				item.putChild("id", new LDLong(i));
+				item.putChild("v", new LDDouble(i / 2.0));
+				items.addChild(item);
+			}
+			items.addChild(new LDList());
+			items.addChild(new LDVoid());
+			expected.putChild("items", items);
+			expected.putChild("deep", map.deepCopy());
+			expected.putChild("flag", new LDBoolean(true));
+
+			System.out.println(bytes.toString("UTF-8"));
+			assert expected.equals(par.parse(new ByteArrayInputStream(bytes.toByteArray())));
+		}
+	}
+
+	@Test
+	public void bufferOutput() throws IOException, LDFormatException {
+		LDMap map = LDSamples.deepMap(4);
+		LDSerializerJSON ser = new LDSerializerJSON(true);
+		LDParserJSON par = new LDParserJSON();
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		ser.serialize(map, expected);
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(expected.size() + 10);
+		ser.serialize(map, direct);
+		direct.flip();
+		assert direct.remaining() == expected.size();
+		assert map.equals(par.parse(direct));
+
+		// Small buffers, so that the text spans many of them.
+		LDBufferChain chain = new LDBufferChain(new LDBufferChain.Pool(100, true, 4));
+		ser.serialize(map, chain);
+		ByteBuffer[] views = chain.getBuffers();
+		System.out.println(views.length + " buffers, " + chain.size() + " bytes");
+		assert views.length > 1;
+		assert chain.size() == expected.size();
+		chain.close();
+
+		File file = File.createTempFile("bufferOutput", ".json");
+		file.deleteOnExit();
+		FileChannel channel = new FileOutputStream(file).getChannel();
+		try {
+			assert ser.serialize(map, channel) == expected.size();
+		}
+		finally {
+			channel.close();
+		}
+		assert map.equals(par.parse(file));
+	}
+
+	@Test
+	public void cachedSerialize() throws IOException {
+		LDObject root = new LDObject();
+		LDList items = new LDList();
+		for (int i = 0; i < 100; i++)
+			items.addChild(LDSamples.deepMap(4));
+		root.putChild("items", items);
+		root.putChild("name", new LDString("cached"));
+		for (boolean pretty : new boolean[] { false, true }) {
+			LDSerializerJSON ser = new LDSerializerJSON(pretty);
+			LDSerializationCache cache = ser.createCache(4 << 20);
+			for (int round = 0; round < 4; round++) {
+				if (round == 2)
+					((LDMap) ((LDMap) items.getChild(50)).getChild("submap3")).putChild("x",
+							new LDLong(round));
+				if (round == 3)
+					root.putChild("name", new LDString("changed"));
+				ByteArrayOutputStream expected = new ByteArrayOutputStream();
+				ser.serialize(root, expected);
+				ByteArrayOutputStream actual = new ByteArrayOutputStream();
+				ser.serialize(root, actual, cache);
+				assert Arrays.equals(expected.toByteArray(), actual.toByteArray()) : round;
+			}
+			System.out.println("hits " + cache.getHitCount() + ", misses " + cache.getMissCount()
+					+ ", " + cache.getBytes() + " bytes in " + cache.getEntryCount() + " entries");
+			assert cache.getBytes() <= cache.getMaxBytes();
+			// Round 1 is one hit on the root. Round 2 re-encodes the path to
+			// the change, and round 3 only the root.
+			assert cache.getHitCount() > 100;
+		}
+	}
+
+	@Test
+	public void binaryRoundTrip() throws IOException {
+		LDMap map = LDSamples.deepMap(4);
+		LDList list = new LDList();
+		list.addChild(new LDLong(Long.MIN_VALUE));
+		list.addChild(new LDLong(Long.MAX_VALUE));
+		list.addChild(new LDLong(-1));
+		list.addChild(new LDDouble(-0.0));
+		list.addChild(new LDDouble(Double.MIN_VALUE));
+		list.addChild(new LDString("\u00e9\u4e2d \ud83d\ude00 \"<not a ref>\""));
+		list.addChild(new LDReference(URI.create("urn:x:y")));
+		list.addChild(new LDVoid());
+		StringBuilder sbuf = new StringBuilder();
+		while (sbuf.length() < 100000)
+			sbuf.append("long string \u00e9 ");
+		list.addChild(new LDString(sbuf.toString()));
+		map.putChild("extremes", list);
+
+		LDSerializerBinary ser = new LDSerializerBinary();
+		LDParserBinary par = new LDParserBinary();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ser.serialize(map, bytes);
+		byte[] data = bytes.toByteArray();
+		System.out.println(data.length + " bytes");
+
+		LDElement fromBytes = par.parse(data);
+		LDElement fromStream = par.parse(new ByteArrayInputStream(data));
+		assert map.equals(fromBytes);
+		assert map.equals(fromStream);
+		LDList copy = (LDList) ((LDMap) fromBytes).getChild("extremes");
+		assert copy.getChild(6).getEType() == LDElement.EType.REFERENCE;
+		assert Double.doubleToRawLongBits(((LDDouble) copy.getChild(3)).getValue()) == Double
+				.doubleToRawLongBits(-0.0);
+		bytes.reset();
+		ser.serialize(new LDDouble(Double.NaN), bytes);
+		assert Double.isNaN(((LDDouble) par.parse(bytes.toByteArray())).getValue());
+
+		LDObject obj = new LDObject();
+		par.parse(obj, new ByteArrayInputStream(data));
+		assert map.equals(obj);
+
+		// Truncated anywhere, the input is rejected.
+		for (int n = 0; n < data.length; n += 97) {
+			try {
+				par.parse(data, 0, n);
+				assert false : n;
+			}
+			catch (LDFormatException e) {
+				// expected
+			}
+		}
+
+		// A string whose length is a lie doesn't get that much memory.
+		bytes.reset();
+		ser.serialize(new LDString("abc"), bytes);
+		byte[] header = bytes.toByteArray();
+		ByteArrayOutputStream lie = new ByteArrayOutputStream();
+		lie.write(header, 0, header.length - 4);
+		lie.write(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07 });
+		lie.write(header, header.length - 3, 3);
+		try {
+			par.parse(new ByteArrayInputStream(lie.toByteArray()));
+			assert false;
+		}
+		catch (LDFormatException e) {
+			System.out.println(e.getMessage());
+		}
+	}
+
+	@Test
+	public void gzipRoundTrip() throws IOException, LDFormatException {
+		LDList list = new LDList();
+		for (int i = 0; i < 50; i++)
+			list.addChild(LDSamples.deepMap(4));
+		LDSerializerJSON ser = new LDSerializerJSON();
+		LDParserJSON par = new LDParserJSON();
+
+		// Small blocks, so there are many members.
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		LDGzipOutputStream gz = new LDGzipOutputStream(bytes, ForkJoinPool.commonPool(), 4096,
+				Deflater.DEFAULT_COMPRESSION);
+		ser.serialize(list, gz);
+		gz.close();
+		byte[] data = bytes.toByteArray();
+		System.out.println(data.length + " bytes gzipped");
+		assert list.equals(par.parse(new GZIPInputStream(new ByteArrayInputStream(data))));
+		assert list.equals(LDGzip.parse(par, new ByteArrayInputStream(data)));
+
+		bytes.reset();
+		LDGzip.serialize(new LDSerializerBinary(), list, bytes);
+		assert list.equals(LDGzip.parse(new LDParserBinary(), new ByteArrayInputStream(bytes
+				.toByteArray())));
+
+		// Single-member gzip from elsewhere, with a file name in the header.
+		bytes.reset();
+		OutputStream plain = new GZIPOutputStream(bytes) {
+			{
+				def.setLevel(Deflater.BEST_SPEED);
+			}
+		};
+		ser.serialize(list, plain);
+		plain.close();
+		data = bytes.toByteArray();
+		byte[] named = new byte[data.length + 4];
+		System.arraycopy(data, 0, named, 0, 10);
+		named[3] = 8;
+		named[10] = 'a';
+		named[11] = '.';
+		named[12] = 'z';
+		named[13] = 0;
+		System.arraycopy(data, 10, named, 14, data.length - 10);
+		assert list.equals(LDGzip.parse(par, new ByteArrayInputStream(named)));
+
+		LDMap map = LDSamples.deepMap(4);
+		bytes.reset();
+		LDGzip.serialize(ser, map, bytes);
+		LDObject obj = new LDObject();
+		LDGzip.parse(par, obj, new ByteArrayInputStream(bytes.toByteArray()));
+		assert map.equals(obj);
+
+		// Corrupt data is an error, not a short result.
+		data[data.length / 2] ^= 0x55;
+		try {
+			LDGzip.parse(par, new ByteArrayInputStream(data));
+			assert false;
+		}
+		catch (IOException e) {
+			// expected
+		}
+		catch (LDFormatException e) {
+			// expected, if the damage reached the parser first
+		}
+
+		// A task the executor turns down is reported, not waited for.
+		Executor full = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				throw new RejectedExecutionException("full");
+			}
+		};
+		gz = new LDGzipOutputStream(new ByteArrayOutputStream(), full, 4096,
+				Deflater.DEFAULT_COMPRESSION);
+		int rejected = 0;
+		for (int i = 0; i < 1000; i++) {
+			try {
+				gz.write(new byte[10000]);
+			}
+			catch (RejectedExecutionException e) {
+				rejected++;
+			}
+		}
+		assert rejected == 1000;
+		try {
+			gz.close();
+			assert false;
+		}
+		catch (RejectedExecutionException e) {
+			// expected
+		}
+
+		// An empty stream is still gzip.
+		bytes.reset();
+		new LDGzipOutputStream(bytes, ForkJoinPool.commonPool()).close();
+		assert new GZIPInputStream(new ByteArrayInputStream(bytes.toByteArray())).read() == -1;
+	}
+
+	@Test
+	public void numericArrays() throws IOException, LDFormatException {
+		LDObject root = new LDObject();
+		LDLongArray longs = new LDLongArray(new long[] { 1, -2, Long.MAX_VALUE });
+		LDDoubleArray doubles = new LDDoubleArray();
+		root.putChild("longs", longs);
+		root.putChild("doubles", doubles);
+		final int[] events = new int[2];
+		root.addListener(new LDListener() {
+			@Override
+			public void parentChanged(LDElement element) {
+			}
+
+			@Override
+			public void valueChanged(LDElement element) {
+				events[0]++;
+			}
+
+			@Override
+			public void structureChanged(LDElement element) {
+				events[1]++;
+			}
+		});
+		longs.setValue(1, 7);
+		longs.setValue(1, 7);
+		doubles.addValues(new double[] { 0.5, 1e300, -0.25, 4.0 }, 0, 3);
+		doubles.addValue(Double.MIN_VALUE);
+		assert events[0] == 1 && events[1] == 2 : Arrays.toString(events);
+		assert longs.getValue(1) == 7 && doubles.getChildCount() == 4;
+
+		// Paths lead to copies of the values.
+		LDCursor cursor = new LDCursor(LDPath.root, root);
+		assert new LDLong(Long.MAX_VALUE).equals(cursor.descendantElement(LDPath
+				.create("longs/2")));
+		assert new LDDouble(-0.25).equals(cursor.descendantElement(LDPath.create("doubles/2")));
+		longs.putChild(Integer.valueOf(4), new LDLong(5));
+		assert Arrays.equals(longs.getValues(), new long[] { 1, 7, Long.MAX_VALUE, 0, 5 });
+
+		// JSON text is that of a list of numbers; parsing detects them on
+		// request.
+		LDMap map = new LDMap();
+		map.putChild("longs", longs.deepCopy());
+		map.putChild("doubles", doubles.deepCopy());
+		map.putChild("empty", new LDLongArray());
+		LDSerializerJSON ser = new LDSerializerJSON(true);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ser.serialize(map, bytes);
+		StringWriter text = new StringWriter();
+		ser.serialize(map, text);
+		assert text.toString().equals(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+		System.out.println(text);
+
+		LDMap asLists = (LDMap) new LDParserJSON().parse(bytes.toByteArray());
+		assert asLists.getChild("longs").getEType() == LDElement.EType.LIST;
+		assert !map.equals(asLists);
+		LDParserJSON par = new LDParserJSON(StandardCharsets.UTF_8,
+				LDParserJSON.Feature.NUMERIC_ARRAYS);
+		LDMap asArrays = (LDMap) par.parse(bytes.toByteArray());
+		assert asArrays.getChild("longs").getEType() == LDElement.EType.LONG_ARRAY;
+		assert asArrays.getChild("doubles").getEType() == LDElement.EType.DOUBLE_ARRAY;
+		assert asArrays.getChild("empty").getEType() == LDElement.EType.LIST;
+		asArrays.putChild("empty", new LDLongArray());
+		assert map.equals(asArrays);
+		assert map.getContentHash().equals(asArrays.getContentHash());
+
+		// Anything else in a list keeps it a list, with nothing lost.
+		String[] mixed = { "[1, 2.5]", "[1.5, 2]", "[1, 2, [3, 4.5]]", "[true, 1]",
+				"[1, 2, \"x\"]", "[1, null]" };
+		LDParserJSON plain = new LDParserJSON();
+		for (String s : mixed) {
+			byte[] data = s.getBytes(StandardCharsets.UTF_8);
+			LDElement elem = par.parse(data);
+			assert elem.getEType() == LDElement.EType.LIST : s;
+			assert plain.parse(data).equals(elem) : s;
+		}
+		LDList nested = (LDList) par.parse("[[1, 2], [3.5], [1, 2, [3.5, 4.5]]]"
+				.getBytes(StandardCharsets.UTF_8));
+		assert nested.getChild(0).getEType() == LDElement.EType.LONG_ARRAY;
+		assert nested.getChild(1).getEType() == LDElement.EType.DOUBLE_ARRAY;
+		LDList third = (LDList) nested.getChild(2);
+		assert third.getChild(1).equals(new LDLong(2));
+		assert third.getChild(2).getEType() == LDElement.EType.DOUBLE_ARRAY;
+
+		// Lazy, parallel and incremental parses make the same arrays.
+		byte[] json = bytes.toByteArray();
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		LDIncrementalParserJSON inc = par.createIncrementalParser();
+		for (int i = 0; i < json.length; i += 5)
+			inc.feed(ByteBuffer.wrap(json, i, Math.min(5, json.length - i)));
+		inc.finish();
+		LDElement[] others = { par.parseLazy(json), par.parseParallel(json, pool), inc.poll() };
+		for (LDElement other : others) {
+			LDMap m = (LDMap) other;
+			assert m.getChild("longs").getEType() == LDElement.EType.LONG_ARRAY;
+			assert m.getChild("doubles").getEType() == LDElement.EType.DOUBLE_ARRAY;
+			assert m.getChild("empty").getEType() == LDElement.EType.LIST;
+		}
+		byte[] top = "[1, 2, 3]".getBytes(StandardCharsets.UTF_8);
+		assert par.parseParallel(top, pool).getEType() == LDElement.EType.LONG_ARRAY;
+		for (String s : mixed) {
+			byte[] data = s.getBytes(StandardCharsets.UTF_8);
+			assert plain.parse(data).equals(par.parseLazy(data)) : s;
+			assert plain.parse(data).equals(par.parseParallel(data, pool)) : s;
+		}
+
+		// Binary keeps the types.
+		bytes.reset();
+		new LDSerializerBinary().serialize(map, bytes);
+		LDElement fromBinary = new LDParserBinary().parse(bytes.toByteArray());
+		assert map.equals(fromBinary);
+		assert ((LDMap) fromBinary).getChild("doubles") instanceof LDDoubleArray;
+
+		// A patch can set a value in an array, but not remove one.
+		LDList patch = new LDList();
+		LDMap op = new LDMap();
+		op.putChild(LDPatch.OP_KEY, new LDString(LDPatch.SET));
+		op.putChild(LDPatch.PATH_KEY, new LDString("/longs/0"));
+		op.putChild(LDPatch.VALUE_KEY, new LDLong(-9));
+		patch.addChild(op);
+		LDPatch.apply(patch, root);
+		assert longs.getValue(0) == -9;
+		op.putChild(LDPatch.OP_KEY, new LDString(LDPatch.REMOVE));
+		try {
+			LDPatch.apply(patch, root);
+			assert false;
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void selectedPaths() throws IOException, LDFormatException {
+		String s = "{\"meta\": {\"a\": 1, \"b\": [true, false]}, \"skip\": {\"x\": \"<bad uri>\"}, "
+				+ "\"items\": [{\"id\": 1, \"v\": 2}, {\"v\": 3}, {\"id\": 3, \"v\": [4]}]}";
+		List<LDPath> paths = new ArrayList<LDPath>();
+		paths.add(LDPath.create("/meta/*"));
+		paths.add(LDPath.create("/items/*/id"));
+		paths.add(LDPath.create("/items/2/v"));
+		LDObject obj = new LDParserJSON().parseSelected(
+				new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)), paths);
+		System.out.println(obj);
+
+		assert obj.getChildCount() == 2;
+		assert ((LDMap) obj.getChild("meta")).getChildCount() == 2;
+		LDList items = (LDList) obj.getChild("items");
+		assert items.getChildCount() == 3;
+		assert items.getChild(1).getEType() == LDElement.EType.VOID;
+		assert ((LDMap) items.getChild(0)).getChildCount() == 1;
+		assert ((LDMap) items.getChild(2)).getChildCount() == 2;
+	}
+
 }
@@ -1,12 +1,32 @@
 package org.jehanson.livedata.junit;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.Random;
 
+import org.jehanson.livedata.LDChangeTracker;
+import org.jehanson.livedata.LDContentHash;
 import org.jehanson.livedata.LDElement;
+import org.jehanson.livedata.LDHelpers;
+import org.jehanson.livedata.LDListener;
+import org.jehanson.livedata.LDObject;
+import org.jehanson.livedata.LDPatch;
 import org.jehanson.livedata.elements.LDBoolean;
+import org.jehanson.livedata.elements.LDDouble;
+import org.jehanson.livedata.elements.LDList;
+import org.jehanson.livedata.elements.LDLong;
 import org.jehanson.livedata.elements.LDMap;
+import org.jehanson.livedata.elements.LDReference;
+import org.jehanson.livedata.elements.LDString;
 import org.jehanson.livedata.samples.LDObjectUsage;
 import org.jehanson.livedata.samples.LDSamples;
+import org.jehanson.livedata.serialization.LDParserJSON;
+import org.jehanson.livedata.serialization.LDSerializerJSON;
 import org.junit.Test;
 
 /**
@@ -64,4 +84,166 @@ public class LDObjectTests {
 		}
 	}
 
+	@Test
+	public void trackChanges() throws Exception {
+		LDObject source = new LDObject(LDSamples.deepMap(4));
+		LDObject replica = new LDObject(LDSamples.deepMap(4));
+		LDChangeTracker tracker = new LDChangeTracker(source);
+		assert !tracker.hasChanges();
+		assert tracker.checkpoint().getChildCount() == 0;
+
+		LDMap submap = (LDMap) source.getChild("submap3");
+		((LDLong) submap.getChild("long")).setValue(7);
+		((LDLong) submap.getChild("long")).setValue(8);
+		LDMap added = LDSamples.deepMap(2);
+		source.putChild("added", added);
+		added.putChild("inner", new LDLong(1));
+		source.removeChild("string");
+		LDList sublist = (LDList) source.getChild("sublist3");
+		sublist.removeChild(sublist.getChildCount() - 1);
+		sublist.setChild(0, new LDString("first"));
+		assert tracker.hasChanges();
+		LDList patch = tracker.checkpoint();
+		System.out.println(LDHelpers.prettyString(patch));
+		assert !tracker.hasChanges();
+		// One op per change: long, added, string, two in sublist3.
+		assert patch.getChildCount() == 5 : patch.getChildCount();
+		LDPatch.apply(patch, replica);
+		assert source.equals(replica);
+
+		// Changes inside what was sent last time, moves, and a detached
+		// subtree that changes after it has left.
+		((LDLong) added.getChild("inner")).setValue(2);
+		LDMap moved = (LDMap) source.removeChild("submap3");
+		((LDDouble) moved.getChild("double")).setValue(1.5);
+		source.putChild("moved", moved);
+		LDMap gone = (LDMap) ((LDMap) moved.getChild("submap2")).getChild("submap1");
+		((LDMap) moved.getChild("submap2")).removeChild("submap1");
+		((LDString) gone.getChild("string")).setValue("gone");
+		sublist.addChild(new LDString("last"));
+
+		// A patch is an ordinary element: send it as JSON.
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new LDSerializerJSON().serialize(tracker.checkpoint(), bytes);
+		LDList received = (LDList) new LDParserJSON().parse(new ByteArrayInputStream(bytes
+				.toByteArray()));
+		LDPatch.apply(received, replica);
+		assert source.equals(replica);
+
+		source.removeAllChildren();
+		LDPatch.apply(tracker.checkpoint(), replica);
+		assert replica.isEmpty();
+		tracker.close();
+	}
+
+	@Test
+	public void contentHashes() {
+		LDMap map1 = LDSamples.deepMap(4);
+		LDMap map2 = new LDMap(LDMap.KeyOrder.ALPHABETICAL);
+		for (Entry<String, LDElement> e : LDSamples.deepMap(4).getChildEntries())
+			map2.putChild(e.getKey(), e.getValue().deepCopy());
+		LDContentHash h1 = map1.getContentHash();
+		System.out.println(h1);
+		assert h1.equals(map2.getContentHash());
+		assert map1.hashCode() == map2.hashCode();
+		assert h1.equals(LDContentHash.parse(h1.toString()));
+
+		// A change is seen at the root; untouched subtrees keep their hashes.
+		LDMap submap = (LDMap) map1.getChild("submap3");
+		LDElement sublist = map1.getChild("sublist3");
+		LDContentHash listHash = sublist.getContentHash();
+		((LDLong) ((LDMap) submap.getChild("submap2")).getChild("long")).setValue(-1);
+		assert !h1.equals(map1.getContentHash());
+		assert !map1.equals(map2);
+		assert sublist.getContentHash() == listHash;
+		((LDLong) ((LDMap) submap.getChild("submap2")).getChild("long")).setValue(1001);
+		assert h1.equals(map1.getContentHash());
+		assert map1.equals(map2);
+
+		// Moving children between keys changes the hash.
+		LDMap swapped = new LDMap();
+		swapped.putChild("a", new LDLong(1));
+		swapped.putChild("b", new LDLong(2));
+		LDContentHash ab = swapped.getContentHash();
+		swapped.putChild("a", new LDLong(2));
+		swapped.putChild("b", new LDLong(1));
+		assert !ab.equals(swapped.getContentHash());
+
+		// Equal values hash alike, however they're written.
+		assert new LDDouble(0.0).getContentHash().equals(new LDDouble(-0.0).getContentHash());
+		assert new LDReference(URI.create("HTTP://Example.COM/a%2fb")).getContentHash().equals(
+				new LDReference(URI.create("http://example.com/a%2Fb")).getContentHash());
+		assert !new LDString("1").getContentHash().equals(new LDLong(1).getContentHash());
+		assert !new LDList().getContentHash().equals(new LDMap().getContentHash());
+	}
+
+	@Test
+	public void mapKeyOrders() {
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < 20; i++)
+			keys.add("k" + (char) ('a' + i));
+		Collections.shuffle(keys, new Random(7));
+		List<String> sortedKeys = new ArrayList<String>(keys);
+		Collections.sort(sortedKeys);
+
+		// Small maps and large keep their order, before and after growing.
+		for (int n : new int[] { 3, 8, 9, 20 }) {
+			LDMap alpha = new LDMap(LDMap.KeyOrder.ALPHABETICAL);
+			LDMap insertion = new LDMap(LDMap.KeyOrder.INSERTION);
+			LDMap any = new LDMap(LDMap.KeyOrder.ANY);
+			for (String key : keys.subList(0, n)) {
+				alpha.putChild(key, new LDString(key));
+				insertion.putChild(key, new LDString(key));
+				any.putChild(key, new LDString(key));
+			}
+			List<String> expected = new ArrayList<String>(keys.subList(0, n));
+			assert new ArrayList<String>(insertion.getChildKeys()).equals(expected) : n;
+			Collections.sort(expected);
+			assert new ArrayList<String>(alpha.getChildKeys()).equals(expected) : n;
+			assert alpha.equals(insertion) && insertion.equals(any) : n;
+
+			// Replacing keeps a key's place; removing closes the gap.
+			String first = keys.get(0);
+			insertion.putChild(first, new LDLong(1));
+			alpha.putChild(first, new LDLong(1));
+			assert insertion.getChildKeys().iterator().next().equals(first) : n;
+			insertion.removeChild(keys.get(1));
+			alpha.removeChild(keys.get(1));
+			expected = new ArrayList<String>(keys.subList(0, n));
+			expected.remove(1);
+			assert new ArrayList<String>(insertion.getChildKeys()).equals(expected) : n;
+			Collections.sort(expected);
+			assert new ArrayList<String>(alpha.getChildKeys()).equals(expected) : n;
+			assert alpha.getChild(keys.get(1)) == null && insertion.getChild(keys.get(1)) == null;
+			assert alpha.getChildCount() == n - 1 && alpha.equals(insertion) : n;
+			assert any.getChild(keys.get(n - 1)).equals(new LDString(keys.get(n - 1))) : n;
+		}
+
+		// Growing fires one event per put, and children keep their parent.
+		LDMap map = new LDMap(LDMap.KeyOrder.INSERTION);
+		final int[] events = new int[1];
+		map.addListener(new LDListener() {
+			@Override
+			public void parentChanged(LDElement element) {
+			}
+
+			@Override
+			public void valueChanged(LDElement element) {
+			}
+
+			@Override
+			public void structureChanged(LDElement element) {
+				events[0]++;
+			}
+		});
+		LDLong first = new LDLong(0);
+		map.putChild("first", first);
+		for (int i = 1; i < 12; i++)
+			map.putChild("k" + i, new LDLong(i));
+		assert events[0] == 12;
+		assert first.getParent() == map && map.locateChild(first).equals("first");
+		map.removeAllChildren();
+		assert map.isEmpty() && first.getParent() == null;
+	}
+
 }
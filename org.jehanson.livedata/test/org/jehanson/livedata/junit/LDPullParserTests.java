@@ -0,0 +1,99 @@
+package org.jehanson.livedata.junit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jehanson.livedata.LDElement;
+import org.jehanson.livedata.elements.LDMap;
+import org.jehanson.livedata.samples.LDSamples;
+import org.jehanson.livedata.serialization.LDFormatException;
+import org.jehanson.livedata.serialization.LDParserJSON;
+import org.jehanson.livedata.serialization.LDPullParserJSON;
+import org.jehanson.livedata.serialization.LDPullParserJSON.Token;
+import org.jehanson.livedata.serialization.LDSerializerJSON;
+import org.junit.Test;
+
+/**
+ * 
+ * @author jehanson
+ */
+public class LDPullParserTests {
+
+	@Test
+	public void tokens() throws IOException, LDFormatException {
+		String s = "{\"a\": [1, 2.5, true, null], \"r\": \"<http://www.example.com>\", \"s\": \"x\"}";
+		LDPullParserJSON pp = new LDParserJSON().createPullParser(new ByteArrayInputStream(
+				s.getBytes()));
+		List<Token> tokens = new ArrayList<Token>();
+		try {
+			Token t;
+			while ((t = pp.next()) != Token.END_DOCUMENT)
+				tokens.add(t);
+		}
+		finally {
+			pp.close();
+		}
+		System.out.println(tokens);
+		assert tokens.size() == 13;
+		assert tokens.get(0) == Token.START_MAP && tokens.get(1) == Token.KEY;
+		assert tokens.get(3) == Token.LONG && tokens.get(4) == Token.DOUBLE;
+		assert tokens.get(9) == Token.REFERENCE && tokens.get(11) == Token.STRING;
+		assert tokens.get(12) == Token.END_MAP;
+	}
+
+	@Test
+	public void readSubtrees() throws IOException, LDFormatException {
+		LDMap dobj1 = LDSamples.deepMap(3);
+		ByteArrayOutputStream outs = new ByteArrayOutputStream();
+		new LDSerializerJSON(true).serialize(dobj1, outs);
+
+		LDPullParserJSON pp = new LDParserJSON().createPullParser(new ByteArrayInputStream(
+				outs.toByteArray()));
+		try {
+			Token first = pp.next();
+			assert first == Token.START_MAP;
+			while (pp.next() == Token.KEY) {
+				String key = pp.getKey();
+				pp.next();
+				if (key.equals("submap2")) {
+					LDElement sub = pp.readElement();
+					assert pp.getToken() == Token.END_MAP;
+					assert sub.equals(dobj1.getChild(key));
+				}
+				else {
+					pp.skipElement();
+				}
+			}
+			assert pp.getToken() == Token.END_MAP && pp.getDepth() == 0;
+			Token last = pp.next();
+			assert last == Token.END_DOCUMENT;
+		}
+		finally {
+			pp.close();
+		}
+	}
+
+	@Test
+	public void badKeys() throws IOException {
+		String[] texts = { "{\"\":1}", "{\"a b\":1}", "{\"a/b\":1}" };
+		for (String s : texts) {
+			LDPullParserJSON pp = new LDParserJSON().createPullParser(new ByteArrayInputStream(
+					s.getBytes()));
+			try {
+				Token first = pp.next();
+				assert first == Token.START_MAP;
+				pp.next();
+				assert false : s;
+			}
+			catch (LDFormatException e) {
+				System.out.println(e.getMessage());
+			}
+			finally {
+				pp.close();
+			}
+		}
+	}
+}
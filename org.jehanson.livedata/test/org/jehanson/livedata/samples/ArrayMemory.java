@@ -0,0 +1,71 @@
+package org.jehanson.livedata.samples;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.jehanson.livedata.LDElement;
+import org.jehanson.livedata.elements.LDDouble;
+import org.jehanson.livedata.elements.LDList;
+import org.jehanson.livedata.elements.LDLong;
+import org.jehanson.livedata.serialization.LDParserJSON;
+import org.jehanson.livedata.serialization.LDSerializerJSON;
+
+/**
+ * Rough heap use and parse time of numeric data as LDLists against
+ * LDLongArrays and LDDoubleArrays. Heap is measured as the difference in
+ * used memory after GC, so run it with nothing else going on.
+ *
+ * @author jehanson
+ */
+public class ArrayMemory {
+
+	private static final int ROWS = 1000;
+	private static final int COLUMNS = 1000;
+
+	public static void main(String[] args) throws IOException {
+		LDList rows = new LDList();
+		for (int i = 0; i < ROWS; i++) {
+			LDList row = new LDList();
+			for (int j = 0; j < COLUMNS; j++) {
+				if (i % 2 == 0)
+					row.addChild(new LDLong((long) i * j));
+				else
+					row.addChild(new LDDouble(i + j / 8.0));
+			}
+			rows.addChild(row);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new LDSerializerJSON().serialize(rows, out);
+		byte[] json = out.toByteArray();
+		rows = null;
+		System.out.println(new String(json, 0, 60, StandardCharsets.UTF_8) + "... "
+				+ json.length + " bytes");
+
+		LDParserJSON lists = new LDParserJSON();
+		LDParserJSON arrays = new LDParserJSON(StandardCharsets.UTF_8,
+				LDParserJSON.Feature.NUMERIC_ARRAYS);
+		for (int pass = 0; pass < 3; pass++) {
+			measure("lists ", lists, json);
+			measure("arrays", arrays, json);
+		}
+	}
+
+	private static void measure(String label, LDParserJSON parser, byte[] json) {
+		long before = usedMemory();
+		long t0 = System.nanoTime();
+		LDElement elem = parser.parse(json);
+		long t1 = System.nanoTime();
+		long after = usedMemory();
+		System.out.printf("%s: %.1f MB, parsed in %.1f ms (%s)%n", label,
+				(after - before) / 1e6, (t1 - t0) / 1e6,
+				((LDList) elem).getChild(0).getEType().getName());
+	}
+
+	private static long usedMemory() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
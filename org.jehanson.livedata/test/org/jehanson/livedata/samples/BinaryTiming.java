@@ -0,0 +1,63 @@
+package org.jehanson.livedata.samples;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.jehanson.livedata.LDElement;
+import org.jehanson.livedata.elements.LDList;
+import org.jehanson.livedata.serialization.LDParserBinary;
+import org.jehanson.livedata.serialization.LDParserJSON;
+import org.jehanson.livedata.serialization.LDSerializer;
+import org.jehanson.livedata.serialization.LDSerializerBinary;
+import org.jehanson.livedata.serialization.LDSerializerJSON;
+
+/**
+ * Rough timing of the binary format against JSON, writing and reading the
+ * same tree. Not a rigorous benchmark; compare runs on the same JVM.
+ *
+ * @author jehanson
+ */
+public class BinaryTiming {
+
+	private static final int ROUNDS = 200;
+
+	public static void main(String[] args) throws IOException {
+		LDList tree = new LDList();
+		for (int i = 0; i < 200; i++)
+			tree.addChild(LDSamples.deepMap(4));
+		LDSerializerJSON jsonSer = new LDSerializerJSON();
+		LDParserJSON jsonPar = new LDParserJSON();
+		LDSerializerBinary binSer = new LDSerializerBinary();
+		LDParserBinary binPar = new LDParserBinary();
+		byte[] json = write(jsonSer, tree);
+		byte[] bin = write(binSer, tree);
+		System.out.println("json " + json.length + " bytes, binary " + bin.length + " bytes");
+		for (int pass = 0; pass < 3; pass++) {
+			long t0 = System.nanoTime();
+			for (int i = 0; i < ROUNDS; i++)
+				write(jsonSer, tree);
+			long t1 = System.nanoTime();
+			for (int i = 0; i < ROUNDS; i++)
+				write(binSer, tree);
+			long t2 = System.nanoTime();
+			LDElement e = null;
+			for (int i = 0; i < ROUNDS; i++)
+				e = jsonPar.parse(json);
+			long t3 = System.nanoTime();
+			for (int i = 0; i < ROUNDS; i++)
+				e = binPar.parse(bin);
+			long t4 = System.nanoTime();
+			System.out.printf("write: json %.2f ms, binary %.2f ms; "
+					+ "read: json %.2f ms, binary %.2f ms%n", (t1 - t0) / 1e6 / ROUNDS,
+					(t2 - t1) / 1e6 / ROUNDS, (t3 - t2) / 1e6 / ROUNDS, (t4 - t3) / 1e6 / ROUNDS);
+			if (!tree.equals(e))
+				throw new IllegalStateException("round trip failed");
+		}
+	}
+
+	private static byte[] write(LDSerializer ser, LDElement elem) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ser.serialize(elem, out);
+		return out.toByteArray();
+	}
+}
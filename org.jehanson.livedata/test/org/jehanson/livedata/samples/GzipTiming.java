@@ -0,0 +1,63 @@
+package org.jehanson.livedata.samples;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.jehanson.livedata.elements.LDList;
+import org.jehanson.livedata.serialization.LDGzip;
+import org.jehanson.livedata.serialization.LDParserJSON;
+import org.jehanson.livedata.serialization.LDSerializerJSON;
+
+/**
+ * Rough timing of gzipped save and load, by hand-wrapped java.util.zip
+ * streams and by {@link LDGzip}. Not a rigorous benchmark; compare runs on
+ * the same machine.
+ *
+ * @author jehanson
+ */
+public class GzipTiming {
+
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws IOException {
+		LDList tree = new LDList();
+		for (int i = 0; i < 20000; i++)
+			tree.addChild(LDSamples.deepMap(4));
+		LDSerializerJSON ser = new LDSerializerJSON();
+		LDParserJSON par = new LDParserJSON();
+		System.out.println(ForkJoinPool.commonPool().getParallelism() + " worker threads");
+		for (int pass = 0; pass < 3; pass++) {
+			ByteArrayOutputStream plain = new ByteArrayOutputStream();
+			ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+			long t0 = System.nanoTime();
+			for (int i = 0; i < ROUNDS; i++) {
+				plain.reset();
+				OutputStream gz = new GZIPOutputStream(plain, 1 << 16);
+				ser.serialize(tree, gz);
+				gz.close();
+			}
+			long t1 = System.nanoTime();
+			for (int i = 0; i < ROUNDS; i++) {
+				parallel.reset();
+				LDGzip.serialize(ser, tree, parallel);
+			}
+			long t2 = System.nanoTime();
+			for (int i = 0; i < ROUNDS; i++)
+				par.parse(new GZIPInputStream(new ByteArrayInputStream(plain.toByteArray()),
+						1 << 16));
+			long t3 = System.nanoTime();
+			for (int i = 0; i < ROUNDS; i++)
+				LDGzip.parse(par, new ByteArrayInputStream(parallel.toByteArray()));
+			long t4 = System.nanoTime();
+			System.out.printf("save: plain %.0f ms (%d bytes), parallel %.0f ms (%d bytes); "
+					+ "load: plain %.0f ms, background %.0f ms%n", (t1 - t0) / 1e6 / ROUNDS,
+					plain.size(), (t2 - t1) / 1e6 / ROUNDS, parallel.size(), (t3 - t2) / 1e6
+							/ ROUNDS, (t4 - t3) / 1e6 / ROUNDS);
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package org.jehanson.livedata.samples;
+
+import org.jehanson.livedata.LDElement;
+import org.jehanson.livedata.elements.LDLong;
+import org.jehanson.livedata.elements.LDMap;
+
+/**
+ * Rough heap use of many small maps, in each key order, not counting their
+ * children. Heap is measured as the difference in used memory after GC, so
+ * run it with nothing else going on.
+ *
+ * @author jehanson
+ */
+public class MapMemory {
+
+	private static final int MAPS = 200000;
+
+	private static final String[] KEYS = { "id", "name", "type", "x", "y", "z", "w", "t" };
+
+	public static void main(String[] args) {
+		for (int size : new int[] { 0, 2, 4, 8, 16 }) {
+			for (LDMap.KeyOrder order : LDMap.KeyOrder.values()) {
+				LDElement[][] children = new LDElement[MAPS][size];
+				for (int i = 0; i < MAPS; i++) {
+					for (int j = 0; j < size; j++)
+						children[i][j] = new LDLong(j);
+				}
+				LDMap[] maps = new LDMap[MAPS];
+				long before = usedMemory();
+				for (int i = 0; i < MAPS; i++) {
+					LDMap map = new LDMap(order);
+					for (int j = 0; j < size; j++)
+						map.putChild(key(j), children[i][j]);
+					maps[i] = map;
+				}
+				long after = usedMemory();
+				System.out.printf("%2d keys, %-12s: %4d bytes per map%n", size, order,
+						(after - before) / MAPS);
+				if (maps[MAPS - 1].getChildCount() != size)
+					throw new IllegalStateException();
+			}
+		}
+	}
+
+	private static String key(int j) {
+		return (j < KEYS.length) ? KEYS[j] : KEYS[j - KEYS.length] + "2";
+	}
+
+	private static long usedMemory() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
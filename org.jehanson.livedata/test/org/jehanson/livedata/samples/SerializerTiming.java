@@ -0,0 +1,89 @@
+package org.jehanson.livedata.samples;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+import org.jehanson.livedata.elements.LDList;
+import org.jehanson.livedata.elements.LDString;
+import org.jehanson.livedata.serialization.LDSerializerJSON;
+
+/**
+ * Rough timing of string serialization, for long ASCII strings and for
+ * strings that mix ASCII with other scripts. Not a rigorous benchmark; run it
+ * with the same JVM and flags before and after a change and compare.
+ *
+ * @author jehanson
+ */
+public class SerializerTiming {
+
+	private static final int STRING_COUNT = 1000;
+	private static final int STRING_LENGTH = 1000;
+	private static final int ROUNDS = 200;
+
+	public static void main(String[] args) throws IOException {
+		LDSerializerJSON ser = new LDSerializerJSON();
+		LDList ascii = strings("The quick brown fox jumps over the lazy dog. ");
+		LDList mixed = strings("abc d\u00e9f \u4e2d\u6587 \u0436\u0437 x\ud83d\ude00y \"q\" ");
+		for (int pass = 0; pass < 3; pass++) {
+			time("ascii, stream", ser, ascii, true);
+			time("ascii, writer", ser, ascii, false);
+			time("mixed, stream", ser, mixed, true);
+			time("mixed, writer", ser, mixed, false);
+		}
+	}
+
+	private static LDList strings(String pattern) {
+		LDList list = new LDList();
+		StringBuilder sbuf = new StringBuilder();
+		for (int i = 0; i < STRING_COUNT; i++) {
+			sbuf.setLength(0);
+			while (sbuf.length() < STRING_LENGTH)
+				sbuf.append(pattern);
+			sbuf.setLength(STRING_LENGTH);
+			sbuf.append(i);
+			list.addChild(new LDString(sbuf.toString()));
+		}
+		return list;
+	}
+
+	private static void time(String name, LDSerializerJSON ser, LDList list, boolean stream)
+			throws IOException {
+		OutputStream nullStream = new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		};
+		Writer nullWriter = new Writer() {
+			@Override
+			public void write(char[] cbuf, int off, int len) {
+			}
+
+			@Override
+			public void write(String str, int off, int len) {
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		long t0 = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++) {
+			if (stream)
+				ser.serialize(list, nullStream);
+			else
+				ser.serialize(list, nullWriter);
+		}
+		long t1 = System.nanoTime();
+		double chars = (double) ROUNDS * STRING_COUNT * STRING_LENGTH;
+		System.out.printf("%s: %.2f ns/char%n", name, (t1 - t0) / chars);
+	}
+}